@@ -22,6 +22,7 @@ package uk.ac.susx.tag.classificationframework;
 
 import com.google.common.collect.Lists;
 import uk.ac.susx.tag.classificationframework.classifiers.Classifier;
+import uk.ac.susx.tag.classificationframework.classifiers.LabelScores;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
 import uk.ac.susx.tag.classificationframework.exceptions.EvaluationException;
 import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
@@ -98,8 +99,9 @@ public class Evaluation {
         }
 
         // Obtain confusion counts and totals
+        LabelScores scratch = new LabelScores();
         for (ProcessedInstance doc : goldStandardDocs) {
-            String systemLabel = pipeline.labelString(classifier.bestLabel(doc.features));
+            String systemLabel = pipeline.labelString(classifier.bestLabel(doc.features, scratch));
             String goldLabel = pipeline.labelString(doc.getLabel());
 
             if (!labels.contains(goldLabel)) throw new EvaluationException("The Gold standard contains labels that the classifier is unaware of.");
@@ -24,6 +24,7 @@ import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import it.unimi.dsi.fastutil.ints.*;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 import uk.ac.susx.tag.classificationframework.exceptions.FeatureExtractionException;
 import uk.ac.susx.tag.classificationframework.exceptions.QueryingException;
 import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
@@ -221,7 +222,7 @@ public class Querying {
         if (labels!=null) labelVocab.addAll(labels);
         Int2IntOpenHashMap featureCounts = new Int2IntOpenHashMap();
         for (ProcessedInstance document : documents) {
-            for (int feature : new IntOpenHashSet(document.features)){
+            for (int feature : document.getSparseFeatures().features()){
                 featureCounts.addTo(feature, 1);
             }
             if (document.getLabel()!=-1) labelVocab.add(document.getLabel());
@@ -284,7 +285,7 @@ public class Querying {
         // Obtain counts (non-probabilistic)
         for (ProcessedInstance document : documents) {
 
-            IntSet features = new IntOpenHashSet(document.features); // Only count features once per document for IG calc.
+            int[] features = document.getSparseFeatures().features(); // Only count features once per document for IG calc.
             int label = document.getLabel();
             if (label == -1) throw new FeatureExtractionException("A ProcessedInstance is unlabelled: " + document);
 
@@ -389,21 +390,24 @@ public class Querying {
 
         // Acquire probabilistic counts
         for (ProcessedInstance document : documents) {
+            SparseFeatureVector features = document.getSparseFeatures();
 
             // Counts for correlation purposes
             for (Int2DoubleMap.Entry entry : document.getLabelProbabilities().int2DoubleEntrySet()){
                 int label = entry.getIntKey();
                 double P = entry.getDoubleValue();
                 labelCounts.addTo(label, P);
-                for (int feature : document.features) jointCounts.get(label).addTo(feature, P);
+                Int2DoubleOpenHashMap labelJointCounts = jointCounts.get(label);
+                for (int i = 0; i < features.size(); i++) labelJointCounts.addTo(features.feature(i), features.count(i) * P);
             }
 
             // Counts for LabelledFeatureData purposes
             if (labelledFeatureData != null) {
-                labelledFeatureData.totalFeatureCount += document.features.length;
-                for (int feature : document.features) {
+                labelledFeatureData.totalFeatureCount += features.totalCount();
+                for (int i = 0; i < features.size(); i++) {
+                    int feature = features.feature(i);
                     if (labelledFeatureData.featureCounts.containsKey(feature)){
-                        labelledFeatureData.featureCounts.addTo(feature, 1);
+                        labelledFeatureData.featureCounts.addTo(feature, features.count(i));
                     }
 
 
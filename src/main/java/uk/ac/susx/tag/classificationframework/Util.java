@@ -26,11 +26,13 @@ import com.google.common.collect.Sets;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import it.unimi.dsi.fastutil.ints.*;
+import uk.ac.susx.tag.classificationframework.classifiers.BatchClassifier;
 import uk.ac.susx.tag.classificationframework.classifiers.Classifier;
 import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
 import uk.ac.susx.tag.classificationframework.clusters.ClusteredProcessedInstance;
 import uk.ac.susx.tag.classificationframework.datastructures.Instance;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 import uk.ac.susx.tag.classificationframework.datastructures.StringIndexer;
 import uk.ac.susx.tag.classificationframework.exceptions.FeatureExtractionException;
 
@@ -66,7 +68,7 @@ import static java.nio.file.Files.move;
  * Classification convenience methods:
  *  - setFeatureAlpha()   : Set the pseudo-counts of a NB classifier, passing String features instead of ints.
  *  - initNBWithLabels()  : Create a new NB classifier initialised with particular class labels, specified with strings.
- *  - classifyInstances() : Use NB to set the labelling of a collection of ProcessedInstances.
+ *  - classifyInstances() : Use NB to set the labelling of a collection of ProcessedInstances (optionally across several threads).
  *  - classifyInstancesIterable() : Get iterable over ProcessedInstances, each being classified lazily on call to .next()
  *  - inferVocabulary()   : Infer the vocabulary of a collection of ProcessedInstances
  *
@@ -183,7 +185,7 @@ public class Util {
         }
         for (ProcessedInstance document : documents){
             total++;
-            for (int docFeature : new IntOpenHashSet(document.features)) {
+            for (int docFeature : document.getSparseFeatures().features()) {
                 if (indexedFeatureCounts.containsKey(docFeature)) {
                     indexedFeatureCounts.addTo(docFeature, 1);
                 }
@@ -301,6 +303,16 @@ public class Util {
         }
     }
 
+    /**
+     * Use NB to set the labelling of a collection of ProcessedInstances, splitting the work
+     * across *parallelism* threads. See BatchClassifier.
+     */
+    public static void classifyInstances(Collection<ProcessedInstance> instances, Classifier classifier, int parallelism){
+        try (BatchClassifier batchClassifier = new BatchClassifier(classifier, parallelism)) {
+            batchClassifier.classify(instances);
+        }
+    }
+
     public static Iterable<ProcessedInstance> classifyInstancesIterable(final Iterable<ProcessedInstance> instances,
                                                                         final Classifier classifier) {
 
@@ -628,10 +640,11 @@ public class Util {
 
         // Count word Frequencies
         for (ProcessedInstance i : data) {
-            for (int featIdx : i.features) {
-                wordFreq.addTo(featIdx, 1.);
-                n++;
+            SparseFeatureVector features = i.getSparseFeatures();
+            for (int j = 0; j < features.size(); j++) {
+                wordFreq.addTo(features.feature(j), features.count(j));
             }
+            n += features.totalCount();
         }
         // P(w) -> Probability of word w in the given data
         Int2DoubleOpenHashMap wordProb = new Int2DoubleOpenHashMap();
@@ -20,25 +20,24 @@ package uk.ac.susx.tag.classificationframework.classifiers;
  * #L%
  */
 
-import it.unimi.dsi.fastutil.doubles.DoubleCollection;
-import it.unimi.dsi.fastutil.doubles.DoubleIterator;
 import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
-
-import java.util.Iterator;
-import java.util.NoSuchElementException;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 
 /**
  * Class provides functionality for predicting labels of documents.
  *
  * One method must be implemented in subclasses, "logpriorPlusLoglikelihood".
- * For document D and each label L, this method should return a mapping:
+ * For document D and each label L, this method should fill a LabelScores with:
  *
  *   L ==> Log(P(L)) + Log(P(D|L))
  *
+ * The map-returning methods are convenience adapters over the LabelScores methods,
+ * which can be used to classify many documents without allocating.
+ *
  * All features and labels should be of type int (e.g. by externally indexing them).
  * The classifier is therefore  agnostic to type of features and labels.
  *
@@ -57,11 +56,29 @@ abstract public class AbstractNaiveBayesClassifier implements Classifier, Instan
 
     /**
      * Any implementing NaiveBayesClassifier should implement this method.
-     * For each label in labels:
+     * Clear *scores*, then for each label in labels:
      *   Calculate: log(P(label)) + log(P(features|label))
-     * Place in mapping: label --> log(P(label)) + log(P(features|label))
+     * Add to scores: label --> log(P(label)) + log(P(features|label))
      */
-    public abstract Int2DoubleOpenHashMap logpriorPlusLoglikelihood(int[] features);
+    public abstract void logpriorPlusLoglikelihood(int[] features, LabelScores scores);
+
+    /**
+     * Same as above, for features counted into a SparseFeatureVector. The default implementation scores the
+     * dense form. Implementations should override it to look up each distinct feature once, multiplying its
+     * log likelihood by its count.
+     */
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores) {
+        logpriorPlusLoglikelihood(features.toDense(), scores);
+    }
+
+    /**
+     * @return a mapping: label --> log(P(label)) + log(P(features|label))
+     */
+    public Int2DoubleOpenHashMap logpriorPlusLoglikelihood(int[] features){
+        LabelScores scores = new LabelScores(labels.size());
+        logpriorPlusLoglikelihood(features, scores);
+        return scores.toMap();
+    }
 
     @Override
     public IntSet getLabels() { return labels; }
@@ -73,16 +90,18 @@ abstract public class AbstractNaiveBayesClassifier implements Classifier, Instan
      */
     @Override
     public Int2DoubleOpenHashMap predict(int[] features) {
-        Int2DoubleOpenHashMap posteriorProbabilities = logpriorPlusLoglikelihood(features);
-        double maxLogProbability = max(posteriorProbabilities.values());
-        for (Int2DoubleMap.Entry entry : posteriorProbabilities.int2DoubleEntrySet())
-            entry.setValue(Math.exp(entry.getDoubleValue()-maxLogProbability));
-        double normalisation = 0;
-        for (double probability : posteriorProbabilities.values())
-            normalisation += probability;
-        for (Int2DoubleMap.Entry entry : posteriorProbabilities.int2DoubleEntrySet())
-            entry.setValue(entry.getDoubleValue()/normalisation);
-        return posteriorProbabilities;
+        LabelScores scores = new LabelScores(labels.size());
+        predict(features, scores);
+        return scores.toMap();
+    }
+
+    /**
+     * Fill *scores* with P(label|features) for each class label.
+     */
+    @Override
+    public void predict(int[] features, LabelScores scores) {
+        logpriorPlusLoglikelihood(features, scores);
+        scores.normaliseLogScores();
     }
 
     /**
@@ -90,8 +109,28 @@ abstract public class AbstractNaiveBayesClassifier implements Classifier, Instan
      */
     @Override
     public int bestLabel(int[] features) {
-        Int2DoubleOpenHashMap labelScores = logpriorPlusLoglikelihood(features);
-        return argMax(labelScores);
+        return bestLabel(features, new LabelScores(labels.size()));
+    }
+
+    /**
+     * @return the most probable class label (posteriors are never normalised, only the log scores are compared)
+     */
+    @Override
+    public int bestLabel(int[] features, LabelScores scratch) {
+        logpriorPlusLoglikelihood(features, scratch);
+        return scratch.argMax();
+    }
+
+    @Override
+    public void predict(SparseFeatureVector features, LabelScores scores) {
+        logpriorPlusLoglikelihood(features, scores);
+        scores.normaliseLogScores();
+    }
+
+    @Override
+    public int bestLabel(SparseFeatureVector features, LabelScores scratch) {
+        logpriorPlusLoglikelihood(features, scratch);
+        return scratch.argMax();
     }
 
     @Override
@@ -102,39 +141,6 @@ abstract public class AbstractNaiveBayesClassifier implements Classifier, Instan
     public void train(Iterable<ProcessedInstance> labelledDocuments)
     {}
 
-    /**
-     * @return the max double in *doubles*
-     */
-    private double max(DoubleCollection doubles){
-        DoubleIterator iterator = doubles.iterator();
-        if (!iterator.hasNext()) throw new NoSuchElementException("Empty collection");
-        double max = iterator.nextDouble();
-        while (iterator.hasNext()) {
-            double d = iterator.nextDouble();
-            if (d > max) max = d;
-        }
-        return max;
-    }
-
-    /**
-     * @return The int key which is mapped to the greatest double value.
-     */
-    private int argMax(Int2DoubleMap map) {
-        Iterator<Int2DoubleMap.Entry> i = map.int2DoubleEntrySet().iterator();
-        if (!i.hasNext()) throw new NoSuchElementException("Empty collection");
-        Int2DoubleMap.Entry entry = i.next();
-        int maxArg = entry.getIntKey();
-        double maxValue = entry.getDoubleValue();
-        while (i.hasNext()){
-            entry = i.next();
-            if (entry.getDoubleValue() > maxValue){
-                maxArg = entry.getIntKey();
-                maxValue = entry.getDoubleValue();
-            }
-        }
-        return maxArg;
-    }
-
     public static Int2DoubleOpenHashMap normaliseScoresByDocLength(Int2DoubleOpenHashMap scores, int docLength){
         for (Int2DoubleMap.Entry entry : scores.int2DoubleEntrySet())
             entry.setValue(entry.getDoubleValue() / docLength);
@@ -0,0 +1,122 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Classifies large collections of ProcessedInstances concurrently, setting the labelling
+ * of each instance in place (as Util.classifyInstances() does on a single thread).
+ *
+ * The collection is split recursively across a fork-join pool, until each task has
+ * no more than the batch size of instances to classify.
+ *
+ * Usage:
+ *
+ *   try (BatchClassifier batchClassifier = new BatchClassifier(classifier, 8)) {
+ *       batchClassifier.classify(unlabelledPool);
+ *   }
+ *
+ * The classifier must be safe for concurrent prediction. All of the naive bayes classifiers
+ * are, provided that they are not trained while classification is underway.
+ */
+public class BatchClassifier implements AutoCloseable {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final Classifier classifier;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool; // True if the pool was created by this BatchClassifier, and so should be shut down by it
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Classify using the common fork-join pool.
+     */
+    public BatchClassifier(Classifier classifier) {
+        this(classifier, ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * Classify using a new pool of *parallelism* threads, which is shut down by close().
+     */
+    public BatchClassifier(Classifier classifier, int parallelism) {
+        this(classifier, new ForkJoinPool(parallelism), true);
+    }
+
+    /**
+     * Classify using an existing pool (which close() will leave running).
+     */
+    public BatchClassifier(Classifier classifier, ForkJoinPool pool) {
+        this(classifier, pool, false);
+    }
+
+    private BatchClassifier(Classifier classifier, ForkJoinPool pool, boolean ownsPool) {
+        this.classifier = classifier;
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    public Classifier getClassifier() { return classifier; }
+
+    public int getBatchSize() { return batchSize; }
+
+    /**
+     * Set the largest number of instances that a single task will classify, before
+     * the work is split further.
+     */
+    public BatchClassifier setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Set the labelling of each instance to the classifier's prediction, blocking until all are done.
+     */
+    public void classify(Collection<ProcessedInstance> instances) {
+        List<ProcessedInstance> instanceList = instances instanceof List && instances instanceof RandomAccess ?
+                (List<ProcessedInstance>) instances : new ArrayList<>(instances);
+        if (instanceList.isEmpty()) return;
+        pool.invoke(new ClassificationTask(instanceList, 0, instanceList.size()));
+    }
+
+    /**
+     * Shut down the pool if it was created by this BatchClassifier.
+     */
+    @Override
+    public void close() {
+        if (ownsPool) pool.shutdown();
+    }
+
+    private class ClassificationTask extends RecursiveAction {
+
+        private final List<ProcessedInstance> instances;
+        private final int from; // Inclusive
+        private final int to;   // Exclusive
+
+        ClassificationTask(List<ProcessedInstance> instances, int from, int to) {
+            this.instances = instances;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchSize) {
+                for (int i = from; i < to; i++) {
+                    ProcessedInstance instance = instances.get(i);
+                    instance.setLabeling(classifier.predict(instance.features));
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ClassificationTask(instances, from, middle),
+                          new ClassificationTask(instances, middle, to));
+            }
+        }
+    }
+}
@@ -20,8 +20,10 @@ package uk.ac.susx.tag.classificationframework.classifiers;
  * #L%
  */
 
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 
 /**
  * Interface defining the behaviour of a classifier.
@@ -63,4 +65,42 @@ public interface Classifier {
      * @return The most probable label.
      */
     public int bestLabel(int[] features);
+
+    /**
+     * Same as predict(int[]), except that the probability of each label is written into
+     * *scores* (replacing its contents), so that a single LabelScores can be reused
+     * across many predictions without allocating.
+     *
+     * The default implementation copies the mapping returned by predict(int[]); classifiers
+     * should override it where they can fill *scores* directly.
+     */
+    public default void predict(int[] features, LabelScores scores) {
+        scores.clear();
+        for (Int2DoubleMap.Entry entry : predict(features).int2DoubleEntrySet())
+            scores.add(entry.getIntKey(), entry.getDoubleValue());
+    }
+
+    /**
+     * Same as bestLabel(int[]), except that *scratch* may be used as working space by the
+     * classifier instead of allocating its own. Its contents afterwards are unspecified.
+     */
+    public default int bestLabel(int[] features, LabelScores scratch) {
+        return bestLabel(features);
+    }
+
+    /**
+     * Same as predict(int[], LabelScores), for a document whose features have been counted into a
+     * SparseFeatureVector. The default implementation predicts on the dense form; classifiers should
+     * override it where they can look up each distinct feature once and weight it by its count.
+     */
+    public default void predict(SparseFeatureVector features, LabelScores scores) {
+        predict(features.toDense(), scores);
+    }
+
+    /**
+     * Same as bestLabel(int[], LabelScores), for a document whose features have been counted into a SparseFeatureVector.
+     */
+    public default int bestLabel(SparseFeatureVector features, LabelScores scratch) {
+        return bestLabel(features.toDense(), scratch);
+    }
 }
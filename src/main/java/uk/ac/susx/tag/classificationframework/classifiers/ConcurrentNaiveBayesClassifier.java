@@ -0,0 +1,378 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import com.google.gson.stream.JsonWriter;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A NaiveBayesClassifier which many threads can train (with trainOnInstance() or train())
+ * and classify with at once, without any external locking.
+ *
+ * Each training thread accumulates its counts in its own buffer. A buffer is folded into the
+ * shared counts once it holds *flushThreshold* documents, or when flush() is called. Folding
+ * takes a write lock, whereas classification takes a read lock, so a prediction always sees the
+ * counts as they were between two folds, and never a partially applied document.
+ *
+ * This means that counts in unflushed buffers are not seen by classification. Call flush()
+ * once training is finished (or whenever the model must be up-to-date):
+ *
+ *   ConcurrentNaiveBayesClassifier nb = new ConcurrentNaiveBayesClassifier(labels);
+ *   ... many threads call nb.trainOnInstance(...) ...
+ *   nb.flush();
+ *
+ * Every other method which changes the model (e.g. setFeatureAlpha(), deleteFeature(), emTrain())
+ * flushes all buffers first, and holds the write lock while it makes its change. Any changes made
+ * directly to the maps returned by the getters are not protected.
+ */
+public class ConcurrentNaiveBayesClassifier extends NaiveBayesClassifier {
+
+    public static final int DEFAULT_FLUSH_THRESHOLD = 1000;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Queue<TrainingBuffer> buffers = new ConcurrentLinkedQueue<>(); // The buffer of every live thread which has trained
+    private final ThreadLocal<TrainingBuffer> threadBuffer = ThreadLocal.withInitial(this::newBuffer);
+
+    private volatile int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+
+    public ConcurrentNaiveBayesClassifier() {
+        super();
+    }
+
+    public ConcurrentNaiveBayesClassifier(IntSet labels) {
+        super(labels);
+    }
+
+    public int getFlushThreshold() { return flushThreshold; }
+
+    /**
+     * Set the number of documents that a thread buffers before folding them into the shared counts.
+     * A threshold of 1 folds every document immediately.
+     */
+    public void setFlushThreshold(int flushThreshold) {
+        if (flushThreshold < 1) throw new IllegalArgumentException("Flush threshold must be at least 1");
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * Fold the buffered counts of every thread into the shared counts. The buffers of threads
+     * which have ended are then dropped.
+     */
+    public void flush() {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            for (Iterator<TrainingBuffer> i = buffers.iterator(); i.hasNext();) {
+                TrainingBuffer buffer = i.next();
+                flush(buffer);
+                if (buffer.isAbandoned()) i.remove(); // Its thread will never train on it again
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Buffer the counts of a document in this thread's buffer, folding the buffer into the shared
+     * counts if it has reached the flush threshold.
+     */
+    @Override
+    public void trainOnInstance(int label, int[] features, double labelProbability, double weight) {
+        if (features.length == 0 || label < 0) return;
+        buffer(counts -> counts.trainOnInstance(label, features, labelProbability, weight));
+    }
+
+    @Override
+    public void trainOnInstance(int label, SparseFeatureVector features, double labelProbability, double weight) {
+        if (features.isEmpty() || label < 0) return;
+        buffer(counts -> counts.trainOnInstance(label, features, labelProbability, weight));
+    }
+
+    /**
+     * Untraining is not buffered: it applies straight to the shared counts, under the write lock.
+     */
+    @Override
+    public void untrainOnInstance(int label, SparseFeatureVector features, double labelProbability, double weight) {
+        if (features.isEmpty() || label < 0) return;
+        write(() -> {
+            super.trainOnInstance(label, features, labelProbability, -weight);
+            forgetUntrained(label, features);
+        });
+    }
+
+    /**
+     * Relabelling is not buffered either, so that classification never sees the document with neither label.
+     */
+    @Override
+    public void relabel(int oldLabel, int newLabel, SparseFeatureVector features, double weight) {
+        if (oldLabel == newLabel || features.isEmpty()) return;
+        write(() -> {
+            if (oldLabel >= 0) {
+                super.trainOnInstance(oldLabel, features, 1, -weight);
+                forgetUntrained(oldLabel, features);
+            }
+            super.trainOnInstance(newLabel, features, 1, weight);
+        });
+    }
+
+    private void buffer(Consumer<NaiveBayesClassifier> training) {
+        TrainingBuffer buffer = threadBuffer.get();
+        boolean full;
+        synchronized (buffer) {
+            training.accept(buffer.counts);
+            full = ++buffer.documents >= flushThreshold;
+        }
+        if (full) {
+            Lock writeLock = lock.writeLock();
+            writeLock.lock();
+            try {
+                flush(buffer);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Classification, under the read lock.
+     */
+
+    @Override
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores) {
+        read(() -> { super.logpriorPlusLoglikelihood(features, scores); return null; });
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores) {
+        read(() -> { super.logpriorPlusLoglikelihood(features, scores); return null; });
+    }
+
+    @Override
+    public double likelihood(int feature, int label) {
+        return read(() -> super.likelihood(feature, label));
+    }
+
+    @Override
+    public double[] likelihoods(int label, int[] features) {
+        return read(() -> super.likelihoods(label, features));
+    }
+
+    @Override
+    public Int2DoubleMap labelPriors() {
+        return read(super::labelPriors);
+    }
+
+    @Override
+    public double featureCount(int feature) {
+        return read(() -> super.featureCount(feature));
+    }
+
+    @Override
+    public double realFeatureCount(int feature) {
+        return read(() -> super.realFeatureCount(feature));
+    }
+
+    @Override
+    public double pseudoFeatureCount(int feature) {
+        return read(() -> super.pseudoFeatureCount(feature));
+    }
+
+    @Override
+    public AbstractNaiveBayesClassifier getPrecomputedClassifier() {
+        return read(super::getPrecomputedClassifier);
+    }
+
+    @Override
+    protected void writeJson(JsonWriter writer, File out, FeatureExtractionPipeline pipeline) throws IOException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            super.writeJson(writer, out, pipeline);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void writeBinary(File out, FeatureExtractionPipeline pipeline) throws IOException {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            super.writeBinary(out, pipeline);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /*
+     * Alterations, which flush the buffers first, under the write lock.
+     */
+
+    @Override
+    public void setLabelSmoothing(double smoothingValue) {
+        write(() -> super.setLabelSmoothing(smoothingValue));
+    }
+
+    @Override
+    public void setFeatureSmoothing(double smoothingValue) {
+        write(() -> super.setFeatureSmoothing(smoothingValue));
+    }
+
+    @Override
+    public void setLabelAlpha(int label, double alpha) {
+        write(() -> super.setLabelAlpha(label, alpha));
+    }
+
+    @Override
+    public void setFeatureAlpha(int feature, int label, double alpha) {
+        write(() -> super.setFeatureAlpha(feature, label, alpha));
+    }
+
+    @Override
+    public void unlabelFeature(int feature, int label) {
+        write(() -> super.unlabelFeature(feature, label));
+    }
+
+    @Override
+    public IntSet getInfrequentFeatures(double frequencyCutoff) {
+        return read(() -> super.getInfrequentFeatures(frequencyCutoff));
+    }
+
+    @Override
+    public IntSet trimInfrequentFeature(double frequencyCutoff) {
+        return write(() -> super.trimInfrequentFeature(frequencyCutoff));
+    }
+
+    @Override
+    public void deleteFeatures(IntSet features) {
+        write(() -> super.deleteFeatures(features));
+    }
+
+    @Override
+    public void deleteFeature(int feature) {
+        write(() -> super.deleteFeature(feature));
+    }
+
+    @Override
+    public void scaleCounts(double factor) {
+        write(() -> super.scaleCounts(factor));
+    }
+
+    @Override
+    public void setLabelMultiplier(int label, double multiplier) {
+        write(() -> super.setLabelMultiplier(label, multiplier));
+    }
+
+    @Override
+    public void empiricalLabelPriors(boolean empiricalLabelPriors) {
+        write(() -> super.empiricalLabelPriors(empiricalLabelPriors));
+    }
+
+    /**
+     * Segmenting starts recording which features change, and numbers the segment, so it takes the write lock.
+     */
+    @Override
+    NaiveBayesClassifierSegmented.Snapshot segmentAll() {
+        return write(() -> super.segmentAll());
+    }
+
+    @Override
+    NaiveBayesClassifierSegmented.Snapshot segmentChanges(long since) {
+        return write(() -> super.segmentChanges(since));
+    }
+
+    /**
+     * The Expectation step of emTrain() classifies under the read lock as usual, only this
+     * (the Maximisation step) takes the write lock.
+     */
+    @Override
+    protected void mStep(NaiveBayesClassifier nb) {
+        write(() -> super.mStep(nb));
+    }
+
+    /**
+     * Register a buffer for the current thread, first dropping any buffers whose threads have
+     * ended with nothing left to flush.
+     */
+    private TrainingBuffer newBuffer() {
+        buffers.removeIf(TrainingBuffer::isSpent);
+        TrainingBuffer buffer = new TrainingBuffer();
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * @return The number of buffers registered (for testing).
+     */
+    int numBuffers() { return buffers.size(); }
+
+    /**
+     * Fold a buffer into the shared counts (the write lock must be held).
+     */
+    private void flush(TrainingBuffer buffer) {
+        NaiveBayesClassifier counts;
+        synchronized (buffer) {
+            if (buffer.documents == 0) return;
+            counts = buffer.counts;
+            buffer.counts = new NaiveBayesClassifier();
+            buffer.documents = 0;
+        }
+        super.mStep(counts);
+    }
+
+    private <T> T read(Supplier<T> reading) {
+        Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            return reading.get();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void write(Runnable alteration) {
+        write(() -> { alteration.run(); return null; });
+    }
+
+    private <T> T write(Supplier<T> alteration) {
+        Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            flush(); // Re-entrant
+            return alteration.get();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * The counts which a single thread has accumulated since its last flush.
+     * Guarded by its own monitor, since another thread may flush it.
+     */
+    private static class TrainingBuffer {
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread()); // Created on its own thread
+        NaiveBayesClassifier counts = new NaiveBayesClassifier();
+        int documents = 0;
+
+        boolean isAbandoned() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        synchronized boolean isSpent() {
+            return documents == 0 && isAbandoned();
+        }
+    }
+}
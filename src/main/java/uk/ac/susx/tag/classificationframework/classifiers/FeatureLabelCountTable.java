@@ -0,0 +1,333 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+import java.util.Arrays;
+
+import static uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifierMapped.mix;
+
+/**
+ * Joint counts of (feature, label) pairs, keyed once by feature. Each feature owns a row holding its
+ * count under every label, so that counting or looking up a feature under all labels costs a single
+ * probe of the table, and its counts are adjacent in memory.
+ *
+ * The table is open-addressing (linear probing) from feature to row, over parallel primitive arrays:
+ *
+ *   slots:        row of the feature in each slot, or EMPTY
+ *   rowFeatures:  feature of each row
+ *   counts:       row r holds the count of its feature under each label in [r*stride, r*stride + numColumns)
+ *   rowTotals:    count of the feature of each row across all labels
+ *
+ * Labels are given columns in the order that they are first counted. See NaiveBayesClassifierFeatureMajor.
+ */
+public class FeatureLabelCountTable {
+
+    private static final int EMPTY = -1;
+
+    private int[] slots;
+    private int mask;               // Slot capacity - 1 (the capacity is a power of 2)
+
+    private int[] rowFeatures;
+    private double[] counts;
+    private double[] rowTotals;
+    private int numRows = 0;
+
+    private final Int2IntOpenHashMap labelColumns = new Int2IntOpenHashMap(); // Label --> column (-1 if never counted)
+    private int[] columnLabels;
+    private int numColumns = 0;
+    private int stride;             // Capacity of each row, at least numColumns
+
+    public FeatureLabelCountTable() {
+        this(16, 2);
+    }
+
+    /**
+     * @param expectedFeatures Number of features to allocate space for.
+     * @param expectedLabels Number of labels to allocate space for.
+     */
+    public FeatureLabelCountTable(int expectedFeatures, int expectedLabels) {
+        labelColumns.defaultReturnValue(-1);
+        stride = Math.max(1, expectedLabels);
+        columnLabels = new int[stride];
+        int rows = Math.max(4, expectedFeatures);
+        rowFeatures = new int[rows];
+        rowTotals = new double[rows];
+        counts = new double[rows * stride];
+        allocateSlots(rows);
+    }
+
+    /**
+     * @return The number of features (rows).
+     */
+    public int size() { return numRows; }
+
+    /**
+     * @return The number of labels (columns).
+     */
+    public int numColumns() { return numColumns; }
+
+    /**
+     * @return The feature of *row*.
+     */
+    public int feature(int row) { return rowFeatures[row]; }
+
+    /**
+     * @return The label of *column*.
+     */
+    public int label(int column) { return columnLabels[column]; }
+
+    /**
+     * @return The column of *label*, or -1 if it has never been counted.
+     */
+    public int column(int label) { return labelColumns.get(label); }
+
+    /**
+     * @return The row of *feature*, or -1 if it has never been counted.
+     */
+    public int row(int feature) {
+        int slot = slot(feature);
+        return slot < 0 ? -1 : slots[slot];
+    }
+
+    /**
+     * @return The count of the feature of *row* under the label of *column*.
+     */
+    public double count(int row, int column) { return counts[row * stride + column]; }
+
+    /**
+     * @return The count of the feature of *row* under every label.
+     */
+    public double rowTotal(int row) { return rowTotals[row]; }
+
+    /**
+     * @return The count of *feature* under *label*.
+     */
+    public double get(int feature, int label) {
+        int row = row(feature);
+        int column = column(label);
+        return row < 0 || column < 0 ? 0 : counts[row * stride + column];
+    }
+
+    /**
+     * @return The count of *feature* under every label.
+     */
+    public double total(int feature) {
+        int row = row(feature);
+        return row < 0 ? 0 : rowTotals[row];
+    }
+
+    /**
+     * Add *count* to the count of *feature* under *label*.
+     * @return The row of *feature*.
+     */
+    public int add(int feature, int label, double count) {
+        return addToColumn(feature, addColumn(label), count);
+    }
+
+    /**
+     * Add *count* to the count of *feature* under the label of *column* (see addColumn()).
+     * @return The row of *feature*.
+     */
+    public int addToColumn(int feature, int column, double count) {
+        int row = addRow(feature);
+        counts[row * stride + column] += count;
+        rowTotals[row] += count;
+        return row;
+    }
+
+    /**
+     * @return The column of *label*, giving it a new column if it has never been counted.
+     */
+    public int addColumn(int label) {
+        int column = labelColumns.get(label);
+        if (column >= 0) return column;
+        if (numColumns == stride) resizeRows(rowFeatures.length, stride * 2);
+        column = numColumns++;
+        columnLabels[column] = label;
+        labelColumns.put(label, column);
+        return column;
+    }
+
+    /**
+     * @return The row of *feature*, giving it a new row of zero counts if it has never been counted.
+     */
+    public int addRow(int feature) {
+        int slot = mix(feature) & mask;
+        while (true) {
+            int row = slots[slot];
+            if (row == EMPTY) break;
+            if (rowFeatures[row] == feature) return row;
+            slot = (slot + 1) & mask;
+        }
+        if (numRows == rowFeatures.length) {
+            resizeRows(rowFeatures.length * 2, stride);
+            return addRow(feature);
+        }
+        int row = numRows++;
+        rowFeatures[row] = feature;
+        slots[slot] = row;
+        return row;
+    }
+
+    /**
+     * Add every count of *other* to this table.
+     */
+    public void addAll(FeatureLabelCountTable other) {
+        int[] columns = new int[other.numColumns];
+        for (int c = 0; c < other.numColumns; c++)
+            columns[c] = addColumn(other.columnLabels[c]);
+        for (int r = 0; r < other.numRows; r++) {
+            int row = addRow(other.rowFeatures[r]);
+            for (int c = 0; c < other.numColumns; c++)
+                counts[row * stride + columns[c]] += other.counts[r * other.stride + c];
+            rowTotals[row] += other.rowTotals[r];
+        }
+    }
+
+    /**
+     * Add every count of label-major *jointCounts* (label --> feature --> count) to this table.
+     */
+    public void addAll(Int2ObjectMap<Int2DoubleOpenHashMap> jointCounts) {
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> labelEntry : jointCounts.int2ObjectEntrySet()) {
+            int column = addColumn(labelEntry.getIntKey());
+            ObjectIterator<Int2DoubleMap.Entry> i = labelEntry.getValue().int2DoubleEntrySet().fastIterator();
+            while (i.hasNext()) {
+                Int2DoubleMap.Entry entry = i.next();
+                addToColumn(entry.getIntKey(), column, entry.getDoubleValue());
+            }
+        }
+    }
+
+    /**
+     * Multiply every count by *factor*.
+     */
+    public void scale(double factor) {
+        for (int i = 0; i < numRows * stride; i++) counts[i] *= factor;
+        for (int row = 0; row < numRows; row++) rowTotals[row] *= factor;
+    }
+
+    /**
+     * Remove the rows of *features*, in a single pass over the rows.
+     * @return The sum of the counts removed under each label, indexed by column.
+     */
+    public double[] removeAll(IntSet features) {
+        double[] removed = new double[numColumns];
+        int kept = 0;
+        for (int row = 0; row < numRows; row++) {
+            if (features.contains(rowFeatures[row])) {
+                for (int c = 0; c < numColumns; c++)
+                    removed[c] += counts[row * stride + c];
+                continue;
+            }
+            if (kept != row) {
+                rowFeatures[kept] = rowFeatures[row];
+                rowTotals[kept] = rowTotals[row];
+                System.arraycopy(counts, row * stride, counts, kept * stride, stride);
+            }
+            kept++;
+        }
+        if (kept < numRows) {
+            Arrays.fill(counts, kept * stride, numRows * stride, 0);
+            Arrays.fill(rowTotals, kept, numRows, 0);
+            numRows = kept;
+            rehash();
+        }
+        return removed;
+    }
+
+    /**
+     * Remove the row of *feature*, without disturbing the other rows' slots: the slots after it in its probe
+     * run are shifted back over the gap, and the last row is moved into the freed row.
+     * @return True if *feature* had a row.
+     */
+    public boolean remove(int feature) {
+        int hole = slot(feature);
+        if (hole < 0) return false;
+        int row = slots[hole];
+        for (int slot = (hole + 1) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int home = mix(rowFeatures[slots[slot]]) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) { // The hole lies between its home and its slot
+                slots[hole] = slots[slot];
+                hole = slot;
+            }
+        }
+        slots[hole] = EMPTY;
+        int last = --numRows;
+        if (row != last) {
+            rowFeatures[row] = rowFeatures[last];
+            rowTotals[row] = rowTotals[last];
+            System.arraycopy(counts, last * stride, counts, row * stride, numColumns);
+            slots[slot(rowFeatures[row])] = row;
+        }
+        Arrays.fill(counts, last * stride, (last + 1) * stride, 0);
+        rowTotals[last] = 0;
+        return true;
+    }
+
+    /**
+     * @return A label-major copy of the non-zero counts: label --> feature --> count.
+     */
+    public Int2ObjectMap<Int2DoubleOpenHashMap> toLabelMajor() {
+        Int2ObjectMap<Int2DoubleOpenHashMap> jointCounts = new Int2ObjectOpenHashMap<>();
+        for (int c = 0; c < numColumns; c++)
+            jointCounts.put(columnLabels[c], new Int2DoubleOpenHashMap());
+        for (int row = 0; row < numRows; row++) {
+            for (int c = 0; c < numColumns; c++) {
+                double count = counts[row * stride + c];
+                if (count != 0) jointCounts.get(columnLabels[c]).put(rowFeatures[row], count);
+            }
+        }
+        return jointCounts;
+    }
+
+    /**
+     * Grow (or re-stride) the row arrays, keeping the rows and their slots.
+     */
+    private void resizeRows(int rowCapacity, int newStride) {
+        rowFeatures = Arrays.copyOf(rowFeatures, rowCapacity);
+        rowTotals = Arrays.copyOf(rowTotals, rowCapacity);
+        double[] newCounts = new double[rowCapacity * newStride];
+        for (int row = 0; row < numRows; row++)
+            System.arraycopy(counts, row * stride, newCounts, row * newStride, numColumns);
+        counts = newCounts;
+        if (newStride != stride) columnLabels = Arrays.copyOf(columnLabels, newStride);
+        stride = newStride;
+        if (rowCapacity * 2 > slots.length) allocateSlots(rowCapacity);
+    }
+
+    private void allocateSlots(int rowCapacity) {
+        int capacity = 2;
+        while (capacity < rowCapacity * 2L) capacity <<= 1; // Load factor of at most 0.5
+        slots = new int[capacity];
+        mask = capacity - 1;
+        rehash();
+    }
+
+    /**
+     * @return The slot holding the row of *feature*, or -1 if it has never been counted.
+     */
+    private int slot(int feature) {
+        int slot = mix(feature) & mask;
+        while (true) {
+            int row = slots[slot];
+            if (row == EMPTY) return -1;
+            if (rowFeatures[row] == feature) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        Arrays.fill(slots, EMPTY);
+        for (int row = 0; row < numRows; row++) {
+            int slot = mix(rowFeatures[row]) & mask;
+            while (slots[slot] != EMPTY) slot = (slot + 1) & mask;
+            slots[slot] = row;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+import uk.ac.susx.tag.classificationframework.exceptions.EvaluationException;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates a trained NaiveBayesClassifier on held-out documents under many settings of its label smoothing,
+ * feature smoothing, label multipliers and empiricalLabelPriors, without retraining for each setting.
+ *
+ * None of these settings change the counts. On construction, the real counts plus pseudo-counts of each
+ * held-out feature under each label are read from the classifier once. Then:
+ *
+ *   - for each distinct feature smoothing, the log likelihood of every held-out document under every label
+ *     is computed once (a log per distinct held-out feature and label, and one denominator per label).
+ *   - for each setting, only the log priors are computed, and added to the log likelihoods of its feature
+ *     smoothing to pick the best label of each document.
+ *
+ * Both steps run on *parallelism* threads. The classifier is not modified, and should not be trained while
+ * the sweep is constructed. Usage:
+ *
+ *   HyperparameterSweep sweep = new HyperparameterSweep(nb, heldOutDocs, 8);
+ *   List<HyperparameterSweep.Result> table = sweep.run(HyperparameterSweep.grid(
+ *           new double[]{1, 5, 10},            // Label smoothing
+ *           new double[]{0.1, 0.5, 1},         // Feature smoothing
+ *           new boolean[]{true, false},        // Empirical label priors
+ *           Collections.singletonList(new Int2DoubleOpenHashMap()))); // Label multipliers (none)
+ *   table.get(0).setting.applyTo(nb);          // Adopt the best setting
+ *
+ * This is the scoring of the NaiveBayesClassifier (or the feature-major and concurrent ones). The SFE and feature
+ * marginals classifiers score differently, and are refused, as is the one-vs-rest classifier, whose counts are
+ * held by its learners (each of which can be swept).
+ */
+public class HyperparameterSweep {
+
+    private final int parallelism;
+    private final int[] labelOrder;
+    private final Int2IntOpenHashMap labelPositions;
+    private final int vocabSize;
+
+    // Per label position
+    private final double[] docCounts;
+    private final double[] labelAlphas;
+    private final double[] labelTotals;         // Real counts plus pseudo-counts of every feature under the label
+
+    // Held-out features: each distinct held-out feature in the vocab has a row
+    private final double[] counts;              // Row r holds the real + pseudo counts of a feature in [r*numLabels, (r+1)*numLabels)
+
+    // Held-out documents: document d holds (row, occurrences) pairs in [documentStarts[d], documentStarts[d+1])
+    private final int[] documentStarts;
+    private final int[] documentRows;
+    private final int[] documentOccurrences;
+    private final int[] documentLengths;        // Occurrences of vocab features in each document
+    private final int[] goldPositions;          // Label position of each document's gold label
+
+    public HyperparameterSweep(NaiveBayesClassifier classifier, Iterable<ProcessedInstance> heldOutDocuments, int parallelism) {
+        if (classifier instanceof NaiveBayesClassifierSFE || classifier instanceof NaiveBayesClassifierFeatureMarginals)
+            throw new IllegalArgumentException(classifier.getClass().getSimpleName() + " does not score as a NaiveBayesClassifier, so cannot be swept");
+        if (classifier instanceof NaiveBayesOVRClassifier)
+            throw new IllegalArgumentException("NaiveBayesOVRClassifier holds its counts in its learners, so cannot be swept; sweep a learner instead");
+        this.parallelism = Math.max(1, parallelism);
+
+        labelOrder = classifier.getLabels().toIntArray();
+        Arrays.sort(labelOrder);
+        labelPositions = new Int2IntOpenHashMap(labelOrder.length);
+        labelPositions.defaultReturnValue(-1);
+        for (int i = 0; i < labelOrder.length; i++) labelPositions.put(labelOrder[i], i);
+        vocabSize = classifier.getVocab().size();
+
+        docCounts = new double[labelOrder.length];
+        labelAlphas = new double[labelOrder.length];
+        labelTotals = new double[labelOrder.length];
+        for (int i = 0; i < labelOrder.length; i++) {
+            docCounts[i] = classifier.docCount(labelOrder[i]);
+            labelAlphas[i] = classifier.labelAlphas.get(labelOrder[i]);
+            labelTotals[i] = classifier.labelCount(labelOrder[i]) + classifier.featureAlphaTotals.get(labelOrder[i]);
+        }
+
+        Int2IntOpenHashMap featureRows = new Int2IntOpenHashMap();
+        featureRows.defaultReturnValue(-1);
+        IntArrayList starts = new IntArrayList();
+        IntArrayList rows = new IntArrayList();
+        IntArrayList occurrences = new IntArrayList();
+        IntArrayList lengths = new IntArrayList();
+        IntArrayList golds = new IntArrayList();
+        for (ProcessedInstance document : heldOutDocuments) {
+            int gold = labelPositions.get(document.getLabel());
+            if (gold < 0) throw new EvaluationException("The Gold standard contains labels that the classifier is unaware of.");
+            golds.add(gold);
+            starts.add(rows.size());
+            SparseFeatureVector features = document.getSparseFeatures();
+            int length = 0;
+            for (int j = 0; j < features.size(); j++) {
+                int feature = features.feature(j);
+                if (!classifier.getVocab().contains(feature)) continue;
+                int row = featureRows.get(feature);
+                if (row < 0) {
+                    row = featureRows.size();
+                    featureRows.put(feature, row);
+                }
+                rows.add(row);
+                occurrences.add(features.count(j));
+                length += features.count(j);
+            }
+            lengths.add(length);
+        }
+        starts.add(rows.size());
+        documentStarts = starts.toIntArray();
+        documentRows = rows.toIntArray();
+        documentOccurrences = occurrences.toIntArray();
+        documentLengths = lengths.toIntArray();
+        goldPositions = golds.toIntArray();
+
+        int numLabels = labelOrder.length;
+        counts = new double[featureRows.size() * numLabels];
+        for (Int2IntMap.Entry entry : featureRows.int2IntEntrySet()) {
+            int offset = entry.getIntValue() * numLabels;
+            for (int i = 0; i < numLabels; i++)
+                counts[offset + i] = classifier.getFromMap(labelOrder[i], entry.getIntKey(), classifier.labelFeatureAlphas)
+                                   + classifier.jointCount(entry.getIntKey(), labelOrder[i]);
+        }
+    }
+
+    public HyperparameterSweep(NaiveBayesClassifier classifier, Iterable<ProcessedInstance> heldOutDocuments) {
+        this(classifier, heldOutDocuments, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return The number of held-out documents.
+     */
+    public int numDocuments() { return goldPositions.length; }
+
+    /**
+     * Evaluate every setting on the held-out documents.
+     * @return A result per setting, best first (by accuracy, then by macro-averaged FB1).
+     */
+    public List<Result> run(List<Setting> settings) {
+        // Group the settings by feature smoothing, which is all that the log likelihoods depend on
+        Map<Double, double[]> logLikelihoods = new LinkedHashMap<>();
+        for (Setting setting : settings) logLikelihoods.put(setting.featureSmoothing, null);
+        List<Double> featureSmoothings = new ArrayList<>(logLikelihoods.keySet());
+
+        double[][] computed = new double[featureSmoothings.size()][];
+        ParallelRange.forEach(computed.length, parallelism, i -> computed[i] = logLikelihoods(featureSmoothings.get(i)));
+        for (int i = 0; i < computed.length; i++) logLikelihoods.put(featureSmoothings.get(i), computed[i]);
+
+        Result[] results = new Result[settings.size()];
+        ParallelRange.forEach(results.length, parallelism, i -> results[i] = evaluate(settings.get(i), logLikelihoods.get(settings.get(i).featureSmoothing)));
+
+        List<Result> table = new ArrayList<>(Arrays.asList(results));
+        table.sort(Comparator.comparingDouble((Result r) -> r.accuracy).thenComparingDouble(r -> r.macroFB1).reversed());
+        return table;
+    }
+
+    /**
+     * @return Every combination of the given values, in the order of the arguments (the last varying fastest).
+     */
+    public static List<Setting> grid(double[] labelSmoothings, double[] featureSmoothings, boolean[] empiricalLabelPriors, List<? extends Int2DoubleMap> labelMultipliers) {
+        List<Setting> settings = new ArrayList<>();
+        for (double labelSmoothing : labelSmoothings)
+            for (double featureSmoothing : featureSmoothings)
+                for (boolean empirical : empiricalLabelPriors)
+                    for (Int2DoubleMap multipliers : labelMultipliers)
+                        settings.add(new Setting(labelSmoothing, featureSmoothing, empirical, multipliers));
+        return settings;
+    }
+
+    /**
+     * @return log(P(document|label)) of every document, at [document * numLabels + label position].
+     */
+    private double[] logLikelihoods(double featureSmoothing) {
+        int numLabels = labelOrder.length;
+        double[] logDenominators = new double[numLabels];
+        for (int i = 0; i < numLabels; i++)
+            logDenominators[i] = Math.log(labelTotals[i] + featureSmoothing * vocabSize);
+
+        double[] logNumerators = new double[counts.length];
+        for (int k = 0; k < counts.length; k++)
+            logNumerators[k] = Math.log(featureSmoothing + counts[k]);
+
+        double[] logLikelihoods = new double[goldPositions.length * numLabels];
+        for (int d = 0; d < goldPositions.length; d++) {
+            int offset = d * numLabels;
+            for (int k = documentStarts[d]; k < documentStarts[d + 1]; k++) {
+                int row = documentRows[k] * numLabels;
+                int occurrences = documentOccurrences[k];
+                for (int i = 0; i < numLabels; i++)
+                    logLikelihoods[offset + i] += occurrences * logNumerators[row + i];
+            }
+            for (int i = 0; i < numLabels; i++)
+                logLikelihoods[offset + i] -= documentLengths[d] * logDenominators[i];
+        }
+        return logLikelihoods;
+    }
+
+    private Result evaluate(Setting setting, double[] logLikelihoods) {
+        int numLabels = labelOrder.length;
+        double[] logPriors = logPriors(setting);
+        int[][] confusion = new int[numLabels][numLabels]; // [gold][predicted]
+        int correct = 0;
+        for (int d = 0; d < goldPositions.length; d++) {
+            int offset = d * numLabels;
+            int best = 0;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < numLabels; i++) {
+                double score = logPriors[i] + logLikelihoods[offset + i];
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+            confusion[goldPositions[d]][best]++;
+            if (best == goldPositions[d]) correct++;
+        }
+        return new Result(setting, labelOrder, confusion, correct, goldPositions.length);
+    }
+
+    /**
+     * The label priors of NaiveBayesClassifier.labelPriors(), under *setting*.
+     */
+    private double[] logPriors(Setting setting) {
+        double[] logPriors = new double[labelOrder.length];
+        double sum = 0;
+        for (int i = 0; i < labelOrder.length; i++) {
+            double multiplier = setting.labelMultipliers.containsKey(labelOrder[i]) ? setting.labelMultipliers.get(labelOrder[i]) : 1;
+            double empiricalCount = setting.empiricalLabelPriors ? docCounts[i] : 1;
+            logPriors[i] = multiplier * (setting.labelSmoothing + labelAlphas[i] + empiricalCount);
+            sum += logPriors[i];
+        }
+        for (int i = 0; i < labelOrder.length; i++)
+            logPriors[i] = Math.log(logPriors[i] / sum);
+        return logPriors;
+    }
+
+    /**
+     * One combination of the settings which don't change the counts of a NaiveBayesClassifier.
+     */
+    public static class Setting {
+
+        public final double labelSmoothing;
+        public final double featureSmoothing;
+        public final boolean empiricalLabelPriors;
+        public final Int2DoubleMap labelMultipliers;   // Labels which are absent have a multiplier of 1
+
+        public Setting(double labelSmoothing, double featureSmoothing, boolean empiricalLabelPriors, Int2DoubleMap labelMultipliers) {
+            this.labelSmoothing = labelSmoothing;
+            this.featureSmoothing = featureSmoothing;
+            this.empiricalLabelPriors = empiricalLabelPriors;
+            this.labelMultipliers = new Int2DoubleOpenHashMap(labelMultipliers);
+        }
+
+        public Setting(double labelSmoothing, double featureSmoothing, boolean empiricalLabelPriors) {
+            this(labelSmoothing, featureSmoothing, empiricalLabelPriors, new Int2DoubleOpenHashMap());
+        }
+
+        /**
+         * Give *classifier* this setting (replacing all of its label multipliers).
+         */
+        public void applyTo(NaiveBayesClassifier classifier) {
+            classifier.setLabelSmoothing(labelSmoothing);
+            classifier.setFeatureSmoothing(featureSmoothing);
+            classifier.empiricalLabelPriors(empiricalLabelPriors);
+            classifier.getLabelMultipliers().clear();
+            for (Int2DoubleMap.Entry entry : labelMultipliers.int2DoubleEntrySet())
+                classifier.setLabelMultiplier(entry.getIntKey(), entry.getDoubleValue());
+            classifier.invalidateScoringCache();
+        }
+
+        @Override
+        public String toString() {
+            return "labelSmoothing=" + labelSmoothing + " featureSmoothing=" + featureSmoothing
+                 + " empiricalLabelPriors=" + empiricalLabelPriors + " labelMultipliers=" + labelMultipliers;
+        }
+    }
+
+    /**
+     * The evaluation of a setting on the held-out documents. Measures are as in Evaluation.
+     */
+    public static class Result {
+
+        public final Setting setting;
+        public final double accuracy;
+        public final int totalCorrect;
+        public final int totalDocuments;
+        public final double macroFB1;                      // Mean of the FB1 of each label
+        public final Int2ObjectMap<double[]> measures;     // Label --> [Precision, Recall, FB1]
+
+        Result(Setting setting, int[] labelOrder, int[][] confusion, int totalCorrect, int totalDocuments) {
+            this.setting = setting;
+            this.totalCorrect = totalCorrect;
+            this.totalDocuments = totalDocuments;
+            this.accuracy = ((double) totalCorrect) / totalDocuments;
+            this.measures = new Int2ObjectOpenHashMap<>();
+            double fb1Sum = 0;
+            for (int i = 0; i < labelOrder.length; i++) {
+                int truePositives = confusion[i][i];
+                int falsePositives = 0;
+                int falseNegatives = 0;
+                for (int j = 0; j < labelOrder.length; j++) {
+                    if (j != i) {
+                        falsePositives += confusion[j][i];
+                        falseNegatives += confusion[i][j];
+                    }
+                }
+                double precision = truePositives + falsePositives == 0 ? 1 : truePositives / (double) (truePositives + falsePositives);
+                double recall = truePositives + falseNegatives == 0 ? 1 : truePositives / (double) (truePositives + falseNegatives);
+                double fb1 = precision + recall == 0 ? 0 : (2 * precision * recall) / (precision + recall);
+                measures.put(labelOrder[i], new double[]{precision, recall, fb1});
+                fb1Sum += fb1;
+            }
+            this.macroFB1 = labelOrder.length == 0 ? 0 : fb1Sum / labelOrder.length;
+        }
+
+        public double precision(int label) { return measures.get(label)[0]; }
+        public double recall(int label)    { return measures.get(label)[1]; }
+        public double fb1(int label)       { return measures.get(label)[2]; }
+
+        @Override
+        public String toString() {
+            DecimalFormat df = new DecimalFormat("#.###");
+            return "Accuracy " + df.format(accuracy) + "  Macro FB1 " + df.format(macroFB1) + "  " + setting;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the label probabilities of a pool of (unlabelled) documents up to date with a NaiveBayesClassifier
+ * which is being trained, e.g. to rank the pool for active learning after each labelling action (see
+ * Querying.queryInstances()), without re-scoring every feature of every document each time.
+ *
+ * A document's log score under a label is:
+ *
+ *   log prior  +  sum over its features in the vocab of (count * log numerator)  -  (its features in the vocab) * log denominator
+ *
+ * The priors and denominators are one number per label, but the numerators are one per feature and label.
+ * Training on a document only changes the numerators of its own features. So the rescorer keeps the middle
+ * term of each document under each label, and an index from each feature to the documents that contain it.
+ * rescore() asks the classifier which features have changed (as NaiveBayesClassifierSegmented does), and
+ * corrects the middle term of only the documents containing those features. Then every document's label
+ * probabilities are recomputed from its kept terms, at a cost per document of the number of labels (rather
+ * than of its features times the number of labels).
+ *
+ * A change which alters every numerator (e.g. setFeatureSmoothing(), or a new label) re-scores every
+ * document in full. The rescorer asks for the changes since its own last segment of the classifier, so it
+ * can share the classifier with NaiveBayesClassifierSegmented snapshots (or other rescorers). Usage:
+ *
+ *   IncrementalRescorer rescorer = new IncrementalRescorer(nb, unlabelledDocs);  // Scores every document
+ *   ... nb.trainOnInstance(...) ...
+ *   rescorer.rescore();                                                         // Label probabilities are up to date
+ *   Querying.queryInstances(unlabelledDocs);
+ *
+ * Each correction of a middle term adds rounding error, so every *fullRescoreInterval* rescores, or once the
+ * rounding error that a document may have gathered exceeds *maxDrift*, rescore() re-scores every document in full.
+ * The label probabilities are written into each document's existing map.
+ *
+ * The features of the documents are read once, on construction. Changes made directly to the maps returned
+ * by the classifier's getters are not seen; call rescoreAll() after making them.
+ */
+public class IncrementalRescorer {
+
+    public static final int DEFAULT_FULL_RESCORE_INTERVAL = 1000;
+    public static final double DEFAULT_MAX_DRIFT = 1E-9;
+
+    private final NaiveBayesClassifier nb;
+    private final List<ProcessedInstance> documents;
+    private final SparseFeatureVector[] features;                // Features of each document, as on construction
+    private final Int2ObjectOpenHashMap<int[]> postings;         // Feature --> documents containing it
+
+    private long sequence;                                       // Number of the classifier's segment the scores are up to date with
+    private int[] labelOrder;
+    private double[] logPriors;                                  // Log prior of each label, in the order of labelOrder
+    private double[] logDenominators;                            // Log likelihood denominator of each label, in the order of labelOrder
+    private Int2ObjectOpenHashMap<double[]> logNumerators;       // Indexed feature in the vocab --> log numerator under each label
+
+    private double[] numeratorSums;                              // [document * labels + label] sum of count * log numerator
+    private int[] vocabLengths;                                  // Number of each document's feature occurrences which are in the vocab
+    private double[] drift;                                      // Bound on the rounding error gathered by each document's numerator sums
+
+    private int fullRescoreInterval = DEFAULT_FULL_RESCORE_INTERVAL;
+    private double maxDrift = DEFAULT_MAX_DRIFT;
+    private int incrementalRescores;                             // Number of incremental rescores since the last full one
+    private final LabelScores scores = new LabelScores();
+
+    public IncrementalRescorer(NaiveBayesClassifier nb, List<ProcessedInstance> documents) {
+        this.nb = nb;
+        this.documents = documents;
+        features = new SparseFeatureVector[documents.size()];
+        Int2ObjectOpenHashMap<IntArrayList> index = new Int2ObjectOpenHashMap<>();
+        for (int d = 0; d < features.length; d++) {
+            features[d] = documents.get(d).getSparseFeatures();
+            for (int i = 0; i < features[d].size(); i++) {
+                IntArrayList containing = index.get(features[d].feature(i));
+                if (containing == null) index.put(features[d].feature(i), containing = new IntArrayList());
+                containing.add(d);
+            }
+        }
+        postings = new Int2ObjectOpenHashMap<>(index.size());
+        for (Int2ObjectMap.Entry<IntArrayList> entry : index.int2ObjectEntrySet())
+            postings.put(entry.getIntKey(), entry.getValue().toIntArray());
+        rescoreAll();
+    }
+
+    public int getFullRescoreInterval() { return fullRescoreInterval; }
+
+    /**
+     * Set the number of incremental rescores after which the next rescore() re-scores every document in full.
+     */
+    public void setFullRescoreInterval(int fullRescoreInterval) {
+        if (fullRescoreInterval < 1) throw new IllegalArgumentException("Full rescore interval must be at least 1");
+        this.fullRescoreInterval = fullRescoreInterval;
+    }
+
+    public double getMaxDrift() { return maxDrift; }
+
+    /**
+     * Set the rounding error (in log score) that a document may gather from incremental corrections before
+     * every document is re-scored in full.
+     */
+    public void setMaxDrift(double maxDrift) {
+        if (!(maxDrift > 0)) throw new IllegalArgumentException("Max drift must be positive");
+        this.maxDrift = maxDrift;
+    }
+
+    /**
+     * Bring the label probabilities of every document up to date with the classifier, re-scoring from their
+     * features only the documents which contain features that have changed since the last rescore (unless a
+     * full rescore is due, see setFullRescoreInterval() and setMaxDrift()).
+     * @return The number of documents re-scored from their features.
+     */
+    public int rescore() {
+        if (incrementalRescores >= fullRescoreInterval) return rescoreAll();
+        NaiveBayesClassifierSegmented.Snapshot changes = nb.segmentChanges(sequence);
+        if (changes == null || !Arrays.equals(changes.labelOrder, labelOrder))
+            return rescoreAll();
+        adopt(changes);
+
+        int numLabels = labelOrder.length;
+        IntSet rescored = new IntOpenHashSet();
+        boolean drifted = false;
+        for (Int2ObjectMap.Entry<double[]> entry : changes.logNumerators.int2ObjectEntrySet()) {
+            int feature = entry.getIntKey();
+            int[] containing = postings.get(feature);
+            if (containing == null) continue; // In no document of the pool
+            double[] before = logNumerators.get(feature);
+            double[] after = entry.getValue() == NaiveBayesClassifierSegmented.DELETED ? null : entry.getValue();
+            if (after == null) logNumerators.remove(feature);
+            else logNumerators.put(feature, after);
+            int vocabChange = (after == null ? 0 : 1) - (before == null ? 0 : 1);
+            for (int d : containing) {
+                int count = features[d].countOf(feature);
+                int offset = d * numLabels;
+                double largest = 0;
+                for (int l = 0; l < numLabels; l++) {
+                    numeratorSums[offset + l] += count * ((after == null ? 0 : after[l]) - (before == null ? 0 : before[l]));
+                    largest = Math.max(largest, Math.abs(numeratorSums[offset + l]));
+                }
+                drift[d] += Math.ulp(largest);
+                if (drift[d] > maxDrift) drifted = true;
+                vocabLengths[d] += count * vocabChange;
+                rescored.add(d);
+            }
+        }
+        if (drifted) return rescoreAll();
+        incrementalRescores++;
+        updateLabelProbabilities();
+        return rescored.size();
+    }
+
+    /**
+     * Re-score every document from its features.
+     * @return The number of documents re-scored from their features (all of them).
+     */
+    public int rescoreAll() {
+        NaiveBayesClassifierSegmented.Snapshot all = nb.segmentAll();
+        adopt(all);
+
+        int numLabels = labelOrder.length;
+        logNumerators = new Int2ObjectOpenHashMap<>();
+        for (Int2ObjectMap.Entry<double[]> entry : all.logNumerators.int2ObjectEntrySet())
+            if (postings.containsKey(entry.getIntKey())) logNumerators.put(entry.getIntKey(), entry.getValue());
+
+        numeratorSums = new double[features.length * numLabels];
+        vocabLengths = new int[features.length];
+        drift = new double[features.length];
+        incrementalRescores = 0;
+        for (int d = 0; d < features.length; d++) {
+            int offset = d * numLabels;
+            for (int i = 0; i < features[d].size(); i++) {
+                double[] row = logNumerators.get(features[d].feature(i));
+                if (row == null) continue; // Not in the vocab
+                int count = features[d].count(i);
+                for (int l = 0; l < numLabels; l++)
+                    numeratorSums[offset + l] += count * row[l];
+                vocabLengths[d] += count;
+            }
+        }
+        updateLabelProbabilities();
+        return features.length;
+    }
+
+    /**
+     * Fill *scores* with the log score of each label for the document at *index* in the pool, as the classifier
+     * scored it at the last rescore.
+     */
+    public void logScores(int index, LabelScores scores) {
+        scores.reset(labelOrder);
+        int offset = index * labelOrder.length;
+        for (int l = 0; l < labelOrder.length; l++)
+            scores.set(l, logPriors[l] + numeratorSums[offset + l] - vocabLengths[index] * logDenominators[l]);
+    }
+
+    public List<ProcessedInstance> getDocuments() { return documents; }
+
+    private void adopt(NaiveBayesClassifierSegmented.Snapshot snapshot) {
+        sequence = snapshot.sequence;
+        labelOrder = snapshot.labelOrder;
+        logPriors = snapshot.logPriors;
+        logDenominators = snapshot.logDenominators;
+    }
+
+    /**
+     * The priors and denominators may have changed, so every document's probabilities are recomputed from its kept
+     * terms, and written into its existing map of label probabilities.
+     */
+    private void updateLabelProbabilities() {
+        for (int d = 0; d < features.length; d++) {
+            logScores(d, scores);
+            scores.normaliseLogScores();
+            ProcessedInstance document = documents.get(d);
+            Int2DoubleOpenHashMap probabilities = document.getLabelProbabilities();
+            for (int l = 0; l < scores.size(); l++)
+                probabilities.put(scores.label(l), scores.score(l));
+            if (probabilities.size() > scores.size()) { // Labels which the classifier does not have
+                probabilities.clear();
+                for (int l = 0; l < scores.size(); l++)
+                    probabilities.put(scores.label(l), scores.score(l));
+            }
+            document.setLabeling(probabilities); // The most probable label
+        }
+    }
+}
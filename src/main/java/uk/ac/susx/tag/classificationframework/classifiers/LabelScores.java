@@ -0,0 +1,193 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Reusable holder for one score per class label, used to predict without allocating.
+ *
+ * Scores are held at dense label positions 0 to size()-1. The label at a position
+ * is given by label(position). A classifier fills the holder in whatever label order
+ * is convenient to it, replacing its previous contents, e.g.:
+ *
+ *   LabelScores scores = new LabelScores();
+ *   for (ProcessedInstance document : documents) {
+ *       classifier.predict(document.features, scores);
+ *       for (int i = 0; i < scores.size(); i++)
+ *           System.out.println(scores.label(i) + ": " + scores.score(i));
+ *   }
+ *
+ * A LabelScores is not thread-safe; use one per thread.
+ */
+public class LabelScores {
+
+    private int[] labels;
+    private double[] scores;
+    private int size = 0;
+
+    private LabelScores scratch = null; // Lazily created holder for classifiers that combine the scores of other classifiers
+    private int[][] intBuffers = new int[0][];          // Lazily created working arrays of classifiers, see intBuffer()
+    private double[][] doubleBuffers = new double[0][];
+
+    public LabelScores() {
+        this(8);
+    }
+
+    public LabelScores(int initialCapacity) {
+        labels = new int[initialCapacity];
+        scores = new double[initialCapacity];
+    }
+
+    public int size() { return size; }
+
+    public int label(int position) { return labels[position]; }
+
+    public double score(int position) { return scores[position]; }
+
+    public void set(int position, double score) { scores[position] = score; }
+
+    public void addTo(int position, double increment) { scores[position] += increment; }
+
+    /**
+     * The backing array of scores; only the first size() entries are meaningful.
+     * It may be replaced by a larger array whenever this holder is refilled.
+     */
+    public double[] scores() { return scores; }
+
+    /**
+     * Remove all labels and scores (the capacity is retained).
+     */
+    public void clear() { size = 0; }
+
+    /**
+     * Append a label with its score.
+     * @return The position of the label.
+     */
+    public int add(int label, double score) {
+        ensureCapacity(size + 1);
+        labels[size] = label;
+        scores[size] = score;
+        return size++;
+    }
+
+    /**
+     * Replace the contents with *labelOrder*, each label with a score of 0.
+     */
+    public void reset(int[] labelOrder) {
+        ensureCapacity(labelOrder.length);
+        System.arraycopy(labelOrder, 0, labels, 0, labelOrder.length);
+        Arrays.fill(scores, 0, labelOrder.length, 0);
+        size = labelOrder.length;
+    }
+
+    /**
+     * @return The position of *label*, or -1 if it has no score.
+     */
+    public int positionOf(int label) {
+        for (int i = 0; i < size; i++)
+            if (labels[i] == label) return i;
+        return -1;
+    }
+
+    /**
+     * @return The score of *label*, or 0 if it has no score (mirroring a default Int2DoubleOpenHashMap).
+     */
+    public double get(int label) {
+        int position = positionOf(label);
+        return position < 0 ? 0 : scores[position];
+    }
+
+    /**
+     * @return The label with the greatest score.
+     */
+    public int argMax() {
+        if (size == 0) throw new NoSuchElementException("Empty collection");
+        int maxPosition = 0;
+        for (int i = 1; i < size; i++)
+            if (scores[i] > scores[maxPosition]) maxPosition = i;
+        return labels[maxPosition];
+    }
+
+    /**
+     * Treating the scores as log probabilities, the log of the sum of the probabilities
+     * (e.g. log(P(features)) given log(P(label)) + log(P(features|label)) for every label),
+     * computed without underflow.
+     */
+    public double logSumExp() {
+        if (size == 0) return Double.NEGATIVE_INFINITY;
+        double maxLogProbability = scores[0];
+        for (int i = 1; i < size; i++)
+            if (scores[i] > maxLogProbability) maxLogProbability = scores[i];
+        if (maxLogProbability == Double.NEGATIVE_INFINITY) return maxLogProbability;
+        double sum = 0;
+        for (int i = 0; i < size; i++)
+            sum += Math.exp(scores[i] - maxLogProbability);
+        return maxLogProbability + Math.log(sum);
+    }
+
+    /**
+     * Treating the scores as unnormalised log probabilities (e.g. log(P(label)) + log(P(features|label))),
+     * convert them in place to probabilities which sum to 1.
+     */
+    public void normaliseLogScores() {
+        if (size == 0) return;
+        double maxLogProbability = scores[0];
+        for (int i = 1; i < size; i++)
+            if (scores[i] > maxLogProbability) maxLogProbability = scores[i];
+        double normalisation = 0;
+        for (int i = 0; i < size; i++) {
+            scores[i] = Math.exp(scores[i] - maxLogProbability);
+            normalisation += scores[i];
+        }
+        for (int i = 0; i < size; i++)
+            scores[i] /= normalisation;
+    }
+
+    /**
+     * @return A new mapping from each label to its score.
+     */
+    public Int2DoubleOpenHashMap toMap() {
+        Int2DoubleOpenHashMap map = new Int2DoubleOpenHashMap(size);
+        for (int i = 0; i < size; i++)
+            map.put(labels[i], scores[i]);
+        return map;
+    }
+
+    /**
+     * A second holder, owned by this one. Classifiers which build their scores from the scores of
+     * other classifiers (e.g. the one-vs-rest classifiers) use it to avoid allocating their own.
+     */
+    public LabelScores scratch() {
+        if (scratch == null) scratch = new LabelScores(labels.length);
+        return scratch;
+    }
+
+    /**
+     * Working array number *index* of at least *length* ints, owned by this holder, so that a classifier
+     * filling it can avoid allocating per document. Its contents are left over from the last use.
+     */
+    int[] intBuffer(int index, int length) {
+        if (index >= intBuffers.length) intBuffers = Arrays.copyOf(intBuffers, index + 1);
+        if (intBuffers[index] == null || intBuffers[index].length < length) intBuffers[index] = new int[Math.max(8, length)];
+        return intBuffers[index];
+    }
+
+    /**
+     * As intBuffer(), for doubles.
+     */
+    double[] doubleBuffer(int index, int length) {
+        if (index >= doubleBuffers.length) doubleBuffers = Arrays.copyOf(doubleBuffers, index + 1);
+        if (doubleBuffers[index] == null || doubleBuffers[index].length < length) doubleBuffers[index] = new double[Math.max(8, length)];
+        return doubleBuffers[index];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > labels.length) {
+            int newCapacity = Math.max(capacity, labels.length * 2);
+            labels = Arrays.copyOf(labels, newCapacity);
+            scores = Arrays.copyOf(scores, newCapacity);
+        }
+    }
+}
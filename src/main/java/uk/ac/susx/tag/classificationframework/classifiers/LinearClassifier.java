@@ -0,0 +1,562 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.ModelState.ClassifierName;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A discriminative linear classifier over the same feature indices as the naive bayes classifiers: multinomial
+ * logistic regression (Loss.LOGISTIC) or a multi-class linear SVM (Loss.HINGE, the Crammer-Singer hinge loss).
+ *
+ * The weights are a single array indexed by feature index and label position:
+ *
+ *   weights[feature * numLabels + position]     (positions are the labels in ascending order, see getLabelOrder())
+ *
+ * so the array is as long as the greatest feature index trained on, times the number of labels. Features which
+ * were never trained on (or which have greater indices) are ignored when classifying.
+ *
+ * Training is stochastic gradient descent over the documents in a shuffled order, for a number of epochs, with a
+ * learning rate of learningRate / (1 + epoch). Each step only updates the rows of the document's features. With a
+ * parallelism of more than 1, each epoch is split between that many threads, which update the shared weights
+ * without any locking ("Hogwild!"). Since documents rarely share most of their features, the updates rarely
+ * collide, and an update which is lost to a collision costs little. A parallelism of 1 is deterministic.
+ *
+ * L2 and L1 regularisation are also applied sparsely: a row is only brought up to date with the regularisation
+ * of the steps since it was last touched, when it is next touched (and every row at the end of training). L1 uses
+ * the cumulative penalty of Tsuruoka et al. (2009), which clips weights at zero, so it produces sparse models.
+ *
+ * Training continues from the current weights, so train() can be called again on new documents. Usage:
+ *
+ *   LinearClassifier linear = new LinearClassifier();
+ *   linear.setLoss(LinearClassifier.Loss.HINGE);
+ *   linear.setParallelism(8);
+ *   linear.train(labelledDocs);
+ *   int label = linear.bestLabel(features);
+ *
+ * The probabilities given by predict() are the softmax of the scores. These are calibrated for the LOGISTIC
+ * loss, but only a ranking for the HINGE loss. Save it with a ModelState (see ModelState.linearClassifier), or
+ * writeJson(), which like the naive bayes classifiers converts features and labels to their strings.
+ */
+public class LinearClassifier implements InstanceBasedTrainableClassifier {
+
+    public static final ClassifierName CLASSIFIER_NAME = ClassifierName.LINEAR;
+
+    public enum Loss {
+        LOGISTIC,
+        HINGE
+    }
+
+    private Loss loss = Loss.LOGISTIC;
+    private double learningRate = 0.1;
+    private double l1 = 0;          // L1 regularisation strength
+    private double l2 = 1E-4;       // L2 regularisation strength
+    private int epochs = 10;
+    private int parallelism = 1;
+    private long seed = 0;
+
+    private IntSet labels = new IntOpenHashSet();
+    private IntSet vocab = new IntOpenHashSet();
+    private int[] labelOrder = new int[0];
+    private Int2IntOpenHashMap labelPositions = newPositionMap();
+    private double[] weights = new double[0];   // [feature * numLabels + label position]
+    private double[] biases = new double[0];    // [label position]
+
+    private Map<String, Object> metadata = new HashMap<>();
+
+    public LinearClassifier() {
+        metadata.put("classifier_class_name", CLASSIFIER_NAME);
+    }
+
+    /**
+     * Pre-specify the labels, so that a label is known even if it is absent from the training documents.
+     */
+    public LinearClassifier(IntSet labels) {
+        this();
+        resize(0, labels);
+    }
+
+    public ClassifierName getClassifierName() { return CLASSIFIER_NAME; }
+    public Map<String, Object> getMetadata() { return metadata; }
+
+    public Loss getLoss() { return loss; }
+    public void setLoss(Loss loss) { this.loss = loss; }
+    public double getLearningRate() { return learningRate; }
+    public void setLearningRate(double learningRate) {
+        checkL2Decay(learningRate, l2);
+        this.learningRate = learningRate;
+    }
+    public double getL1() { return l1; }
+    public void setL1(double l1) { this.l1 = l1; }
+    public double getL2() { return l2; }
+    public void setL2(double l2) {
+        checkL2Decay(learningRate, l2);
+        this.l2 = l2;
+    }
+    public int getEpochs() { return epochs; }
+    public void setEpochs(int epochs) { this.epochs = epochs; }
+    public int getParallelism() { return parallelism; }
+
+    /**
+     * Each step scales the weights by (1 - learning rate * l2), which must stay positive, or the lazy L2
+     * regularisation (see Training) would take the log of zero or less and turn every weight into NaN.
+     * The first epoch has the greatest learning rate, so it is the one checked.
+     */
+    private static void checkL2Decay(double learningRate, double l2) {
+        if (learningRate * l2 >= 1)
+            throw new IllegalArgumentException("Learning rate * L2 strength must be less than 1, not " + learningRate * l2);
+    }
+
+    /**
+     * Set the number of threads which train at once (without locking, see class documentation).
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set the seed of the shuffling of the documents in each epoch.
+     */
+    public void setSeed(long seed) { this.seed = seed; }
+
+    @Override
+    public IntSet getLabels() { return labels; }
+    @Override
+    public IntSet getVocab() { return vocab; }
+
+    /**
+     * @return The labels in the order of their label positions (ascending).
+     */
+    public int[] getLabelOrder() { return labelOrder; }
+
+    /**
+     * @return The weight of *feature* for *label* (0 if either is unknown).
+     */
+    public double weight(int feature, int label) {
+        int position = labelPositions.get(label);
+        long index = (long) feature * labelOrder.length + position;
+        return position < 0 || feature < 0 || index >= weights.length ? 0 : weights[(int) index];
+    }
+
+    public double bias(int label) {
+        int position = labelPositions.get(label);
+        return position < 0 ? 0 : biases[position];
+    }
+
+    /*
+     * Training
+     */
+
+    @Override
+    public void train(Iterable<ProcessedInstance> labelledDocuments) {
+        checkL2Decay(learningRate, l2); // The settings may have been read by readJson()
+        List<SparseFeatureVector> documents = new ArrayList<>();
+        IntArrayList documentLabels = new IntArrayList();
+        IntSet newLabels = new IntOpenHashSet(labels);
+        int featureCapacity = weights.length / Math.max(1, labelOrder.length);
+        for (ProcessedInstance document : labelledDocuments) {
+            SparseFeatureVector features = document.getSparseFeatures();
+            if (features.isEmpty() || document.getLabel() < 0) continue; // As NaiveBayesClassifier.trainOnInstance()
+            documents.add(features);
+            documentLabels.add(document.getLabel());
+            newLabels.add(document.getLabel());
+            for (int i = 0; i < features.size(); i++) {
+                if (features.feature(i) < 0) throw new IllegalArgumentException("Negative feature index: " + features.feature(i));
+                vocab.add(features.feature(i));
+            }
+            featureCapacity = Math.max(featureCapacity, features.feature(features.size() - 1) + 1);
+        }
+        resize(featureCapacity, newLabels);
+        if (documents.isEmpty() || labelOrder.length < 2) return;
+
+        int[] positions = new int[documents.size()];
+        for (int d = 0; d < positions.length; d++) positions[d] = labelPositions.get(documentLabels.getInt(d));
+        new Training(documents, positions).run();
+    }
+
+    /**
+     * Unlabelled documents are not used (this is not a semi-supervised learner).
+     */
+    @Override
+    public void train(Iterable<ProcessedInstance> labelledDocuments, Iterable<ProcessedInstance> unlabelledDocuments) {
+        train(labelledDocuments);
+    }
+
+    /**
+     * Grow the weights to hold *featureCapacity* features and *newLabels*, keeping the weights of the current labels.
+     */
+    private void resize(int featureCapacity, IntSet newLabels) {
+        int[] newOrder = newLabels.toIntArray();
+        Arrays.sort(newOrder);
+        int oldCapacity = weights.length / Math.max(1, labelOrder.length);
+        if (Arrays.equals(newOrder, labelOrder) && featureCapacity <= oldCapacity) return;
+        featureCapacity = Math.max(featureCapacity, oldCapacity);
+        if ((long) featureCapacity * newOrder.length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Feature indices up to " + featureCapacity + " with " + newOrder.length + " labels are too many to hold.");
+
+        Int2IntOpenHashMap newPositions = newPositionMap();
+        for (int i = 0; i < newOrder.length; i++) newPositions.put(newOrder[i], i);
+        double[] newWeights = new double[featureCapacity * newOrder.length];
+        double[] newBiases = new double[newOrder.length];
+        for (int i = 0; i < labelOrder.length; i++) {
+            int position = newPositions.get(labelOrder[i]);
+            newBiases[position] = biases[i];
+            for (int feature = 0; feature < oldCapacity; feature++)
+                newWeights[feature * newOrder.length + position] = weights[feature * labelOrder.length + i];
+        }
+        labels = new IntOpenHashSet(newOrder);
+        labelOrder = newOrder;
+        labelPositions = newPositions;
+        weights = newWeights;
+        biases = newBiases;
+    }
+
+    /**
+     * The state of a single call to train(): the documents, and the step at which each feature row was last
+     * brought up to date with the regularisation.
+     */
+    private class Training {
+
+        private final List<SparseFeatureVector> documents;
+        private final int[] positions;          // Label position of each document
+        private final int numLabels = labelOrder.length;
+        private final long totalSteps;
+
+        private final long[] lastSteps;         // Step up to which each feature row has been regularised
+        private final double[] penalties;       // L1 penalty applied to each weight so far (null without L1)
+        private final double[] epochEtas;       // Learning rate of each epoch
+        private final double[] cumulativeEtas;  // Sum of the learning rates of every step before each epoch
+        private final double[] cumulativeLogDecays; // Sum of log(1 - eta * l2) of every step before each epoch
+
+        Training(List<SparseFeatureVector> documents, int[] positions) {
+            this.documents = documents;
+            this.positions = positions;
+            totalSteps = (long) epochs * documents.size();
+            lastSteps = new long[weights.length / numLabels];
+            penalties = l1 > 0 ? new double[weights.length] : null;
+            epochEtas = new double[epochs];
+            cumulativeEtas = new double[epochs + 1];
+            cumulativeLogDecays = new double[epochs + 1];
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                epochEtas[epoch] = learningRate / (1 + epoch);
+                cumulativeEtas[epoch + 1] = cumulativeEtas[epoch] + documents.size() * epochEtas[epoch];
+                cumulativeLogDecays[epoch + 1] = cumulativeLogDecays[epoch] + documents.size() * Math.log(1 - epochEtas[epoch] * l2);
+            }
+        }
+
+        void run() {
+            int n = documents.size();
+            int[] order = new int[n];
+            for (int d = 0; d < n; d++) order[d] = d;
+            int threads = Math.min(parallelism, n);
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                shuffle(order, new Random(seed + epoch));
+                long firstStep = (long) epoch * n;
+                double eta = epochEtas[epoch];
+                ParallelRange.forEach(threads, threads, thread -> {
+                    double[] scores = new double[numLabels];
+                    int from = (int) ((long) n * thread / threads);
+                    int to = (int) ((long) n * (thread + 1) / threads);
+                    for (int k = from; k < to; k++)
+                        step(order[k], firstStep + k, eta, scores);
+                });
+            }
+            for (int feature = 0; feature < lastSteps.length; feature++)
+                regularise(feature, totalSteps);
+        }
+
+        /**
+         * A step of gradient descent on a single document.
+         */
+        private void step(int document, long step, double eta, double[] scores) {
+            SparseFeatureVector features = documents.get(document);
+            for (int j = 0; j < features.size(); j++)
+                regularise(features.feature(j), step);
+            score(features, scores);
+
+            int gold = positions[document];
+            if (loss == Loss.LOGISTIC) {
+                softmax(scores, numLabels);
+                scores[gold] -= 1;                  // Gradient of the loss with respect to each score
+                for (int j = 0; j < features.size(); j++) {
+                    int offset = features.feature(j) * numLabels;
+                    double rate = eta * features.count(j);
+                    for (int i = 0; i < numLabels; i++)
+                        weights[offset + i] -= rate * scores[i];
+                }
+                for (int i = 0; i < numLabels; i++)
+                    biases[i] -= eta * scores[i];
+            } else {
+                int rival = -1;                     // The highest scoring wrong label
+                for (int i = 0; i < numLabels; i++)
+                    if (i != gold && (rival < 0 || scores[i] > scores[rival])) rival = i;
+                if (scores[gold] - scores[rival] >= 1) return; // Outside the margin
+                for (int j = 0; j < features.size(); j++) {
+                    int offset = features.feature(j) * numLabels;
+                    double rate = eta * features.count(j);
+                    weights[offset + gold] += rate;
+                    weights[offset + rival] -= rate;
+                }
+                biases[gold] += eta;
+                biases[rival] -= eta;
+            }
+        }
+
+        /**
+         * Apply to the row of *feature* the regularisation of the steps before *step* which it has missed.
+         */
+        private void regularise(int feature, long step) {
+            long last = lastSteps[feature];
+            if (last >= step) return;
+            lastSteps[feature] = step;
+            int offset = feature * numLabels;
+            if (l2 > 0) {
+                double decay = Math.exp(cumulative(cumulativeLogDecays, step) - cumulative(cumulativeLogDecays, last));
+                for (int i = offset; i < offset + numLabels; i++) weights[i] *= decay;
+            }
+            if (penalties != null) {
+                // Cumulative penalty: the total L1 penalty that every weight could have received so far
+                double total = l1 * cumulative(cumulativeEtas, step);
+                for (int i = offset; i < offset + numLabels; i++) {
+                    double w = weights[i];
+                    if (w > 0) weights[i] = Math.max(0, w - (total + penalties[i]));
+                    else if (w < 0) weights[i] = Math.min(0, w + (total - penalties[i]));
+                    penalties[i] += weights[i] - w;
+                }
+            }
+        }
+
+        /**
+         * @return The sum of the per-step values before *step*, given the sum before each epoch in *cumulative*.
+         */
+        private double cumulative(double[] cumulative, long step) {
+            int n = documents.size();
+            int epoch = (int) Math.min(step / n, epochs);
+            if (epoch == epochs) return cumulative[epochs];
+            double perStep = (cumulative[epoch + 1] - cumulative[epoch]) / n;
+            return cumulative[epoch] + (step - (long) epoch * n) * perStep;
+        }
+    }
+
+    /*
+     * Classification
+     */
+
+    /**
+     * Write the score of each label (in the order of getLabelOrder()) into *scores*.
+     */
+    private void score(SparseFeatureVector features, double[] scores) {
+        int numLabels = labelOrder.length;
+        System.arraycopy(biases, 0, scores, 0, numLabels);
+        for (int j = 0; j < features.size(); j++) {
+            long offset = (long) features.feature(j) * numLabels;
+            if (features.feature(j) < 0 || offset >= weights.length) continue;
+            for (int i = 0; i < numLabels; i++)
+                scores[i] += features.count(j) * weights[(int) offset + i];
+        }
+    }
+
+    private void score(int[] features, double[] scores) {
+        int numLabels = labelOrder.length;
+        System.arraycopy(biases, 0, scores, 0, numLabels);
+        for (int feature : features) {
+            long offset = (long) feature * numLabels;
+            if (feature < 0 || offset >= weights.length) continue;
+            for (int i = 0; i < numLabels; i++)
+                scores[i] += weights[(int) offset + i];
+        }
+    }
+
+    private static void softmax(double[] scores, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) max = Math.max(max, scores[i]);
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            scores[i] = Math.exp(scores[i] - max);
+            sum += scores[i];
+        }
+        for (int i = 0; i < n; i++) scores[i] /= sum;
+    }
+
+    private static void shuffle(int[] order, Random random) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    /**
+     * Clear *scores*, then fill it with the (unnormalised) score of each label.
+     */
+    public void scores(int[] features, LabelScores scores) {
+        scores.reset(labelOrder);
+        score(features, scores.scores());
+    }
+
+    public void scores(SparseFeatureVector features, LabelScores scores) {
+        scores.reset(labelOrder);
+        score(features, scores.scores());
+    }
+
+    @Override
+    public Int2DoubleOpenHashMap predict(int[] features) {
+        LabelScores scores = new LabelScores(labelOrder.length);
+        predict(features, scores);
+        return scores.toMap();
+    }
+
+    @Override
+    public void predict(int[] features, LabelScores scores) {
+        scores(features, scores);
+        scores.normaliseLogScores();
+    }
+
+    @Override
+    public void predict(SparseFeatureVector features, LabelScores scores) {
+        scores(features, scores);
+        scores.normaliseLogScores();
+    }
+
+    @Override
+    public int bestLabel(int[] features) {
+        return bestLabel(features, new LabelScores(labelOrder.length));
+    }
+
+    @Override
+    public int bestLabel(int[] features, LabelScores scratch) {
+        scores(features, scratch);
+        return scratch.argMax();
+    }
+
+    @Override
+    public int bestLabel(SparseFeatureVector features, LabelScores scratch) {
+        scores(features, scratch);
+        return scratch.argMax();
+    }
+
+    /*
+     * Persistence
+     */
+
+    /**
+     * Write classifier to file in JSON representation. Features and labels are converted to their strings.
+     * Only the rows of the vocab are written.
+     */
+    public void writeJson(File out, FeatureExtractionPipeline pipeline) throws IOException {
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"))) {
+            writer.beginObject();
+            writer.name("loss").value(loss.name());
+            writer.name("learningRate").value(learningRate);
+            writer.name("l1").value(l1);
+            writer.name("l2").value(l2);
+            writer.name("epochs").value(epochs);
+            writer.name("labels").beginArray();
+            for (int label : labelOrder) writer.value(pipeline.labelString(label));
+            writer.endArray();
+            writer.name("biases"); writeJsonDoubles(writer, biases, 0, biases.length);
+            writer.name("weights").beginObject();
+            for (int feature : vocab) {
+                writer.name(pipeline.featureString(feature));
+                writeJsonDoubles(writer, weights, feature * labelOrder.length, labelOrder.length);
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+    }
+
+    private static void writeJsonDoubles(JsonWriter writer, double[] values, int from, int length) throws IOException {
+        writer.beginArray();
+        for (int i = from; i < from + length; i++) writer.value(values[i]);
+        writer.endArray();
+    }
+
+    /**
+     * Read classifier from file in JSON representation. Convert all features and labels from their string representation.
+     */
+    public static LinearClassifier readJson(File in, FeatureExtractionPipeline pipeline) throws IOException {
+        LinearClassifier linear = new LinearClassifier();
+        int[] fileLabels = new int[0];
+        double[] fileBiases = new double[0];
+        Int2ObjectMap<double[]> rows = new Int2ObjectOpenHashMap<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(in), "UTF-8"))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "loss": linear.loss = Loss.valueOf(reader.nextString()); break;
+                    case "learningRate": linear.learningRate = reader.nextDouble(); break;
+                    case "l1": linear.l1 = reader.nextDouble(); break;
+                    case "l2": linear.l2 = reader.nextDouble(); break;
+                    case "epochs": linear.epochs = reader.nextInt(); break;
+                    case "labels":
+                        IntArrayList labelList = new IntArrayList();
+                        reader.beginArray();
+                        while (reader.hasNext()) labelList.add(pipeline.labelIndex(reader.nextString()));
+                        reader.endArray();
+                        fileLabels = labelList.toIntArray();
+                        break;
+                    case "biases": fileBiases = readJsonDoubles(reader); break;
+                    case "weights":
+                        reader.beginObject();
+                        while (reader.hasNext()) rows.put(pipeline.featureIndex(reader.nextName()), readJsonDoubles(reader));
+                        reader.endObject();
+                        break;
+                    default: reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        // The pipeline may index the labels and features differently to the one which the file was written with
+        int featureCapacity = 0;
+        for (int feature : rows.keySet()) featureCapacity = Math.max(featureCapacity, feature + 1);
+        linear.resize(featureCapacity, new IntOpenHashSet(fileLabels));
+        int numLabels = linear.labelOrder.length;
+        for (int i = 0; i < fileLabels.length; i++) {
+            int position = linear.labelPositions.get(fileLabels[i]);
+            linear.biases[position] = fileBiases[i];
+            for (int feature : rows.keySet())
+                linear.weights[feature * numLabels + position] = rows.get(feature)[i];
+        }
+        linear.vocab.addAll(rows.keySet());
+        return linear;
+    }
+
+    private static double[] readJsonDoubles(JsonReader reader) throws IOException {
+        DoubleArrayList values = new DoubleArrayList();
+        reader.beginArray();
+        while (reader.hasNext()) values.add(reader.nextDouble());
+        reader.endArray();
+        return values.toDoubleArray();
+    }
+
+    private static Int2IntOpenHashMap newPositionMap() {
+        Int2IntOpenHashMap positions = new Int2IntOpenHashMap();
+        positions.defaultReturnValue(-1);
+        return positions;
+    }
+}
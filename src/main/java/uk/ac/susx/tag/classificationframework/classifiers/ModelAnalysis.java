@@ -0,0 +1,295 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the language models of the labels of a naive bayes classifier with each other, and with those of
+ * another version of the same model.
+ *
+ * On construction, P(feature|label) of every feature in the vocabulary is materialised once into a dense vector
+ * per label, whose positions are the features in ascending order. All divergences are then computed over these
+ * vectors, one row of label pairs per task, on *parallelism* threads. Divergences are in bits.
+ *
+ * Usage:
+ *
+ *   ModelAnalysis analysis = new ModelAnalysis(nb, 8);
+ *   List<LabelPair> confusable = analysis.jsDivergences().closestPairs(10);
+ *
+ *   // Between two versions of a model
+ *   List<LabelDrift> drift = new ModelAnalysis(previousNB, 8).drift(analysis);
+ */
+public class ModelAnalysis {
+
+    private static final double LN_2 = Math.log(2);
+
+    private final int parallelism;
+    private final int[] labelOrder;                // Label at each position, in ascending order
+    private final Int2IntOpenHashMap labelPositions;
+    private final double[] priors;                 // P(label) at each label position
+    private final int[] features;                  // Feature at each position, in ascending order
+    private final double[][] likelihoods;          // likelihoods[label position][feature position] = P(feature|label)
+
+    public ModelAnalysis(NaiveBayesClassifier classifier, int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+
+        labelOrder = classifier.getLabels().toIntArray();
+        Arrays.sort(labelOrder);
+        labelPositions = positions(labelOrder);
+
+        Int2DoubleMap labelPriors = classifier.labelPriors();
+        priors = new double[labelOrder.length];
+        for (int i = 0; i < labelOrder.length; i++)
+            priors[i] = labelPriors.get(labelOrder[i]);
+
+        features = classifier.getVocab().toIntArray();
+        Arrays.sort(features);
+
+        likelihoods = new double[labelOrder.length][];
+        ParallelRange.forEach(labelOrder.length, parallelism, i -> likelihoods[i] = classifier.likelihoods(labelOrder[i], features));
+    }
+
+    public ModelAnalysis(NaiveBayesClassifier classifier) {
+        this(classifier, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return The labels in the order of their positions in the results.
+     */
+    public int[] getLabelOrder() { return labelOrder; }
+
+    public int[] getFeatures() { return features; }
+
+    /**
+     * @return P(feature|label) of each feature of getFeatures().
+     */
+    public double[] getLikelihoods(int label) { return likelihoods[labelPositions.get(label)]; }
+
+    /**
+     * Kullback-Leibler divergence KL(p||q) of every ordered pair of labels. As NaiveBayesClassifier.pairWiseLabelKLD(),
+     * features which have a likelihood of zero under either label are skipped.
+     */
+    public LabelDivergences klDivergences() {
+        int n = labelOrder.length;
+        double[][] divergences = new double[n][n];
+        ParallelRange.forEach(n, parallelism, p -> {
+            for (int q = 0; q < n; q++) {
+                if (p != q) divergences[p][q] = kld(likelihoods[p], likelihoods[q]);
+            }
+        });
+        return new LabelDivergences(labelOrder, labelPositions, divergences);
+    }
+
+    /**
+     * Jensen-Shannon divergence of every pair of labels; symmetric, and between 0 and 1.
+     */
+    public LabelDivergences jsDivergences() {
+        int n = labelOrder.length;
+        double[][] divergences = new double[n][n];
+        ParallelRange.forEach(n, parallelism, p -> {
+            for (int q = p + 1; q < n; q++) {
+                divergences[p][q] = jsd(likelihoods[p], likelihoods[q]);
+            }
+        });
+        for (int p = 0; p < n; p++) {
+            for (int q = 0; q < p; q++) divergences[p][q] = divergences[q][p];
+        }
+        return new LabelDivergences(labelOrder, labelPositions, divergences);
+    }
+
+    /**
+     * Drift of each label from this version of a model to *newer*. Features in the vocabulary of only one version
+     * have a likelihood of zero in the other.
+     * @return The drift of every label of either version, in ascending order of label.
+     */
+    public List<LabelDrift> drift(ModelAnalysis newer) {
+        // Align the vocabularies, by merging the sorted features of both versions
+        int[] union = new int[features.length + newer.features.length];
+        int[] oldPositions = new int[union.length];
+        int[] newPositions = new int[union.length];
+        int size = 0;
+        int o = 0;
+        int n = 0;
+        while (o < features.length || n < newer.features.length) {
+            int oldFeature = o < features.length ? features[o] : Integer.MAX_VALUE;
+            int newFeature = n < newer.features.length ? newer.features[n] : Integer.MAX_VALUE;
+            int feature = Math.min(oldFeature, newFeature);
+            boolean inOld = o < features.length && oldFeature == feature;
+            boolean inNew = n < newer.features.length && newFeature == feature;
+            union[size] = feature;
+            oldPositions[size] = inOld ? o++ : -1;
+            newPositions[size] = inNew ? n++ : -1;
+            size++;
+        }
+        int addedFeatures = size - features.length;
+        int removedFeatures = size - newer.features.length;
+
+        int[] labels = mergeLabels(labelOrder, newer.labelOrder);
+        LabelDrift[] drift = new LabelDrift[labels.length];
+        int numFeatures = size;
+        ParallelRange.forEach(labels.length, parallelism, i -> {
+            int label = labels[i];
+            int oldLabel = labelPositions.get(label);
+            int newLabel = newer.labelPositions.get(label);
+            double[] p = aligned(oldLabel < 0 ? null : likelihoods[oldLabel], oldPositions, numFeatures);
+            double[] q = aligned(newLabel < 0 ? null : newer.likelihoods[newLabel], newPositions, numFeatures);
+            drift[i] = new LabelDrift(label, oldLabel >= 0, newLabel >= 0,
+                                      oldLabel >= 0 && newLabel >= 0 ? jsd(p, q) : 1,
+                                      (newLabel < 0 ? 0 : newer.priors[newLabel]) - (oldLabel < 0 ? 0 : priors[oldLabel]),
+                                      addedFeatures, removedFeatures);
+        });
+        return Arrays.asList(drift);
+    }
+
+    /**
+     * The divergences between each pair of labels.
+     */
+    public static class LabelDivergences {
+
+        private final int[] labelOrder;
+        private final Int2IntOpenHashMap labelPositions;
+        private final double[][] divergences;
+
+        LabelDivergences(int[] labelOrder, Int2IntOpenHashMap labelPositions, double[][] divergences) {
+            this.labelOrder = labelOrder;
+            this.labelPositions = labelPositions;
+            this.divergences = divergences;
+        }
+
+        public int[] getLabelOrder() { return labelOrder; }
+
+        /**
+         * @return The divergences, indexed by the positions of the labels in getLabelOrder().
+         */
+        public double[][] getMatrix() { return divergences; }
+
+        public double get(int label1, int label2) {
+            return divergences[labelPositions.get(label1)][labelPositions.get(label2)];
+        }
+
+        /**
+         * @return The *limit* pairs of distinct labels with the smallest divergence (i.e. the most confusable),
+         *         in ascending order of divergence. Only one order of each pair is included.
+         */
+        public List<LabelPair> closestPairs(int limit) {
+            List<LabelPair> pairs = new ArrayList<>();
+            for (int p = 0; p < labelOrder.length; p++) {
+                for (int q = p + 1; q < labelOrder.length; q++) {
+                    double divergence = Math.min(divergences[p][q], divergences[q][p]);
+                    pairs.add(new LabelPair(labelOrder[p], labelOrder[q], divergence));
+                }
+            }
+            Collections.sort(pairs, (a, b) -> Double.compare(a.divergence, b.divergence));
+            return pairs.subList(0, Math.min(limit, pairs.size()));
+        }
+    }
+
+    public static class LabelPair {
+
+        public final int label1;
+        public final int label2;
+        public final double divergence;
+
+        public LabelPair(int label1, int label2, double divergence) {
+            this.label1 = label1;
+            this.label2 = label2;
+            this.divergence = divergence;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(%d, %d): %.4f", label1, label2, divergence);
+        }
+    }
+
+    /**
+     * The change of a label's model between two versions of a model.
+     */
+    public static class LabelDrift {
+
+        public final int label;
+        public final boolean inOld;              // Whether the older version has the label
+        public final boolean inNew;              // Whether the newer version has the label
+        public final double jsDivergence;        // Between the label's likelihoods in both versions (1 if it is missing from either)
+        public final double priorChange;         // P(label) in the newer version minus P(label) in the older
+        public final int addedFeatures;          // Features only in the newer vocabulary
+        public final int removedFeatures;        // Features only in the older vocabulary
+
+        public LabelDrift(int label, boolean inOld, boolean inNew, double jsDivergence, double priorChange, int addedFeatures, int removedFeatures) {
+            this.label = label;
+            this.inOld = inOld;
+            this.inNew = inNew;
+            this.jsDivergence = jsDivergence;
+            this.priorChange = priorChange;
+            this.addedFeatures = addedFeatures;
+            this.removedFeatures = removedFeatures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("label %d: JS divergence %.4f, prior change %+.4f, features +%d -%d",
+                    label, jsDivergence, priorChange, addedFeatures, removedFeatures);
+        }
+    }
+
+    /**
+     * KL(p||q) in bits, skipping positions where either is zero.
+     */
+    private static double kld(double[] p, double[] q) {
+        double divergence = 0;
+        for (int k = 0; k < p.length; k++) {
+            double pk = p[k];
+            double qk = q[k];
+            if (pk == 0 || qk == 0 || pk == qk) continue;
+            divergence += pk * Math.log(pk / qk);
+        }
+        return divergence / LN_2;
+    }
+
+    /**
+     * JS(p, q) = (KL(p||m) + KL(q||m)) / 2 in bits, where m = (p + q) / 2.
+     */
+    private static double jsd(double[] p, double[] q) {
+        double divergence = 0;
+        for (int k = 0; k < p.length; k++) {
+            double pk = p[k];
+            double qk = q[k];
+            double mk = (pk + qk) / 2;
+            if (pk > 0) divergence += pk * Math.log(pk / mk);
+            if (qk > 0) divergence += qk * Math.log(qk / mk);
+        }
+        return divergence / (2 * LN_2);
+    }
+
+    private static double[] aligned(double[] values, int[] positions, int size) {
+        double[] aligned = new double[size];
+        if (values == null) return aligned;
+        for (int i = 0; i < size; i++) {
+            if (positions[i] >= 0) aligned[i] = values[positions[i]];
+        }
+        return aligned;
+    }
+
+    private static int[] mergeLabels(int[] labels1, int[] labels2) {
+        int[] merged = Arrays.copyOf(labels1, labels1.length + labels2.length);
+        System.arraycopy(labels2, 0, merged, labels1.length, labels2.length);
+        Arrays.sort(merged);
+        int size = 0;
+        for (int i = 0; i < merged.length; i++) {
+            if (size == 0 || merged[size - 1] != merged[i]) merged[size++] = merged[i];
+        }
+        return Arrays.copyOf(merged, size);
+    }
+
+    private static Int2IntOpenHashMap positions(int[] order) {
+        Int2IntOpenHashMap positions = new Int2IntOpenHashMap(order.length);
+        positions.defaultReturnValue(-1);
+        for (int i = 0; i < order.length; i++) positions.put(order[i], i);
+        return positions;
+    }
+}
@@ -0,0 +1,175 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Serves a model which is still being trained, by publishing immutable pre-computed snapshots of it.
+ *
+ * Readers call current() (or classifier()) to get the latest published snapshot. This is a single
+ * read of an atomic reference, so readers never wait on training or on publication. Training goes
+ * through update(), which applies a change to the trainable model. A new snapshot is only published
+ * by publish(), or in the background by publishEvery(), so the cost of pre-computing is paid at most
+ * once per period, rather than once per change.
+ *
+ * Usage:
+ *
+ *   try (ModelHandle<NaiveBayesClassifier> handle = new ModelHandle<>(nb, true)) {
+ *       handle.publishEvery(5, TimeUnit.SECONDS);
+ *
+ *       // Training thread(s)
+ *       handle.update(model -> model.trainOnInstance(label, features, 1, 1));
+ *
+ *       // Serving threads
+ *       handle.classifier().predict(features);
+ *   }
+ *
+ * Updates and publication are serialised with each other. If the model is a
+ * ConcurrentNaiveBayesClassifier, then it may instead be trained directly from many threads,
+ * and its buffers are flushed before each snapshot.
+ */
+public class ModelHandle<T extends NaiveBayesPrecomputable> implements AutoCloseable {
+
+    private final T model;
+    private final boolean compiled;   // Whether snapshots are compiled to feature-major form (see NaiveBayesClassifierCompiled)
+    private final AtomicReference<Snapshot> published = new AtomicReference<>();
+    private final Object modelLock = new Object();
+
+    private long modifications = 0;            // Number of updates applied (guarded by modelLock)
+    private long publishedModifications = 0;   // Number of updates applied when the current snapshot was taken (guarded by modelLock)
+
+    private ScheduledExecutorService publisher = null;
+    private ScheduledFuture<?> scheduledPublication = null;
+
+    /**
+     * Manage *model*, publishing a first snapshot immediately.
+     * @param compiled If true, snapshots are compiled into feature-major NaiveBayesClassifierCompiled instances.
+     */
+    public ModelHandle(T model, boolean compiled) {
+        this.model = model;
+        this.compiled = compiled;
+        publish();
+    }
+
+    public ModelHandle(T model) {
+        this(model, false);
+    }
+
+    /**
+     * @return The latest published snapshot (never blocks).
+     */
+    public Snapshot current() {
+        return published.get();
+    }
+
+    /**
+     * @return The classifier of the latest published snapshot (never blocks).
+     */
+    public AbstractNaiveBayesClassifier classifier() {
+        return published.get().getClassifier();
+    }
+
+    /**
+     * Apply *alteration* to the trainable model. The change is seen by readers once
+     * the next snapshot is published.
+     */
+    public void update(Consumer<? super T> alteration) {
+        synchronized (modelLock) {
+            alteration.accept(model);
+            modifications++;
+        }
+    }
+
+    /**
+     * Flag that the model was changed without going through update() (e.g. trained directly
+     * on several threads), so that the next scheduled publication takes place.
+     */
+    public void markModified() {
+        synchronized (modelLock) {
+            modifications++;
+        }
+    }
+
+    /**
+     * Pre-compute and publish a snapshot of the model as it stands.
+     * @return The new snapshot.
+     */
+    public Snapshot publish() {
+        synchronized (modelLock) {
+            if (model instanceof ConcurrentNaiveBayesClassifier)
+                ((ConcurrentNaiveBayesClassifier) model).flush();
+            Snapshot previous = published.get();
+            Snapshot snapshot = new Snapshot(model.getPrecomputedClassifier(compiled),
+                                             previous == null ? 1 : previous.version + 1,
+                                             System.currentTimeMillis());
+            published.set(snapshot);
+            publishedModifications = modifications;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Publish a snapshot only if the model has been updated since the last one was taken.
+     * @return True if a snapshot was published.
+     */
+    public boolean publishIfModified() {
+        synchronized (modelLock) {
+            if (modifications == publishedModifications) return false;
+            publish();
+            return true;
+        }
+    }
+
+    /**
+     * Publish a new snapshot every *period* in the background, whenever the model has been updated.
+     * Replaces any previous schedule.
+     */
+    public synchronized ModelHandle<T> publishEvery(long period, TimeUnit unit) {
+        if (scheduledPublication != null) scheduledPublication.cancel(false);
+        if (publisher == null) {
+            publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "model-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        scheduledPublication = publisher.scheduleWithFixedDelay(this::publishIfModified, period, period, unit);
+        return this;
+    }
+
+    /**
+     * Stop any background publication. The latest snapshot remains available.
+     */
+    @Override
+    public synchronized void close() {
+        if (publisher != null) {
+            publisher.shutdown();
+            publisher = null;
+            scheduledPublication = null;
+        }
+    }
+
+    /**
+     * An immutable, pre-computed version of the model.
+     */
+    public static class Snapshot {
+
+        private final AbstractNaiveBayesClassifier classifier;
+        private final long version;     // Starting from 1, incremented on each publication
+        private final long timestamp;   // Time of publication in milliseconds since the epoch
+
+        Snapshot(AbstractNaiveBayesClassifier classifier, long version, long timestamp) {
+            this.classifier = classifier;
+            this.version = version;
+            this.timestamp = timestamp;
+        }
+
+        public AbstractNaiveBayesClassifier getClassifier() { return classifier; }
+        public long getVersion() { return version; }
+        public long getTimestamp() { return timestamp; }
+    }
+}
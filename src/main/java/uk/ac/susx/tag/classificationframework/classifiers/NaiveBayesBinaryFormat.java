@@ -0,0 +1,283 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary serialisation of a NaiveBayesClassifier's counts. See NaiveBayesClassifier.writeBinary()
+ * and readBinary().
+ *
+ * Like the JSON format, all features and labels are stored as their strings, so that a model can be
+ * re-indexed by any pipeline. But each string is stored only once, in a table, and everything else
+ * refers to its position in the table. Layout (all big-endian):
+ *
+ *   Header:        int MAGIC, int FORMAT_VERSION, string classifier name
+ *   Settings:      double labelSmoothing, double featureSmoothing, boolean empiricalLabelPriors
+ *   String tables: int label count, label strings; int feature count, feature strings
+ *   labels, vocab: int size, int[] table positions
+ *   Label maps:    (labelMultipliers, docCounts, labelCounts, featureAlphaTotals, labelAlphas)
+ *                  int size, int[] label positions, double[] values
+ *   Joint maps:    (jointCounts, labelFeatureAlphas)
+ *                  int label count, then per label: int label position, int size, int[] feature positions, double[] values
+ *
+ * A string is an int byte length followed by its UTF-8 bytes. Reading loads the file in one go, pulls each array
+ * out in bulk, and indexes each string in the tables with the pipeline exactly once.
+ */
+class NaiveBayesBinaryFormat {
+
+    static final int MAGIC = 0x4E42434D;  // "NBCM"
+    static final int FORMAT_VERSION = 1;
+
+    private NaiveBayesBinaryFormat() {}
+
+    static void write(NaiveBayesClassifier nb, File out, FeatureExtractionPipeline pipeline) throws IOException {
+        StringTable labelTable = new StringTable();
+        StringTable featureTable = new StringTable();
+        Int2ObjectMap<Int2DoubleOpenHashMap> jointCounts = nb.getJointCounts(); // Materialised by feature-major classifiers
+        labelTable.addAll(nb.labels);
+        for (Int2DoubleOpenHashMap labelMap : new Int2DoubleOpenHashMap[]{nb.labelMultipliers, nb.docCounts, nb.labelCounts, nb.featureAlphaTotals, nb.labelAlphas})
+            labelTable.addAll(labelMap.keySet());
+        featureTable.addAll(nb.vocab);
+        addAll(jointCounts, labelTable, featureTable);
+        addAll(nb.labelFeatureAlphas, labelTable, featureTable);
+
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16))) {
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            writeString(data, nb.getClassifierName().name());
+
+            data.writeDouble(nb.getLabelSmoothing());
+            data.writeDouble(nb.getFeatureSmoothing());
+            data.writeBoolean(nb.empiricalLabelPriors);
+
+            labelTable.write(data, pipeline, false);
+            featureTable.write(data, pipeline, true);
+
+            writeIntSet(data, nb.labels, labelTable);
+            writeIntSet(data, nb.vocab, featureTable);
+
+            writeInt2DoubleMap(data, nb.labelMultipliers, labelTable);
+            writeInt2DoubleMap(data, nb.docCounts, labelTable);
+            writeInt2DoubleMap(data, nb.labelCounts, labelTable);
+            writeInt2DoubleMap(data, nb.featureAlphaTotals, labelTable);
+            writeInt2DoubleMap(data, nb.labelAlphas, labelTable);
+
+            writeInt2ObjectMap(data, jointCounts, labelTable, featureTable);
+            writeInt2ObjectMap(data, nb.labelFeatureAlphas, labelTable, featureTable);
+        }
+    }
+
+    static NaiveBayesClassifier read(File in, FeatureExtractionPipeline pipeline) throws IOException {
+        ByteBuffer buffer;
+        try (FileInputStream stream = new FileInputStream(in); FileChannel channel = stream.getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Binary model of " + size + " bytes is too large to read (the limit is " + Integer.MAX_VALUE + "): " + in);
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer) < 0) break;
+            buffer.flip();
+        }
+        try {
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a binary naive bayes model: " + in);
+            int version = buffer.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported binary model version " + version + " (expected " + FORMAT_VERSION + "): " + in);
+            String classifierName = readString(buffer, in);
+            if (!NaiveBayesClassifier.CLASSIFIER_NAME.name().equals(classifierName))
+                throw new IOException("Binary model is of classifier " + classifierName + ", expected " + NaiveBayesClassifier.CLASSIFIER_NAME + ": " + in);
+
+            NaiveBayesClassifier nb = new NaiveBayesClassifier();
+            nb.setLabelSmoothing(buffer.getDouble());
+            nb.setFeatureSmoothing(buffer.getDouble());
+            nb.empiricalLabelPriors = buffer.get() != 0;
+
+            int[] labelIndices = readStringTable(buffer, pipeline, false, in);
+            int[] featureIndices = readStringTable(buffer, pipeline, true, in);
+
+            nb.labels = readIntSet(buffer, labelIndices);
+            nb.vocab = readIntSet(buffer, featureIndices);
+
+            nb.labelMultipliers = readInt2DoubleMap(buffer, labelIndices);
+            nb.docCounts = readInt2DoubleMap(buffer, labelIndices);
+            nb.labelCounts = readInt2DoubleMap(buffer, labelIndices);
+            nb.featureAlphaTotals = readInt2DoubleMap(buffer, labelIndices);
+            nb.labelAlphas = readInt2DoubleMap(buffer, labelIndices);
+
+            nb.jointCounts = readInt2ObjectMap(buffer, labelIndices, featureIndices);
+            nb.labelFeatureAlphas = readInt2ObjectMap(buffer, labelIndices, featureIndices);
+            nb.invalidateScoringCache();
+            return nb;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary model: " + in, e);
+        }
+    }
+
+/********************************
+ * Writing
+ ********************************/
+
+    /**
+     * Assigns each distinct index a position, in order of first appearance.
+     */
+    private static class StringTable {
+
+        private final Int2IntOpenHashMap positions = new Int2IntOpenHashMap();
+        private final IntArrayList indices = new IntArrayList();
+
+        StringTable() { positions.defaultReturnValue(-1); }
+
+        void addAll(IntSet indexSet) {
+            for (int index : indexSet) {
+                if (positions.get(index) < 0) {
+                    positions.put(index, indices.size());
+                    indices.add(index);
+                }
+            }
+        }
+
+        int positionOf(int index) { return positions.get(index); }
+
+        void write(DataOutputStream data, FeatureExtractionPipeline pipeline, boolean areFeatures) throws IOException {
+            data.writeInt(indices.size());
+            for (int i = 0; i < indices.size(); i++) {
+                int index = indices.getInt(i);
+                writeString(data, areFeatures ? pipeline.featureString(index) : pipeline.labelString(index));
+            }
+        }
+    }
+
+    /**
+     * Add the labels and features of a joint map to the string tables.
+     */
+    private static void addAll(Int2ObjectMap<Int2DoubleOpenHashMap> jointMap, StringTable labelTable, StringTable featureTable) {
+        labelTable.addAll(jointMap.keySet());
+        for (Int2DoubleOpenHashMap featureMap : jointMap.values())
+            featureTable.addAll(featureMap.keySet());
+    }
+
+    private static void writeString(DataOutputStream data, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static void writeIntSet(DataOutputStream data, IntSet set, StringTable table) throws IOException {
+        data.writeInt(set.size());
+        for (int index : set)
+            data.writeInt(table.positionOf(index));
+    }
+
+    private static void writeInt2DoubleMap(DataOutputStream data, Int2DoubleOpenHashMap map, StringTable table) throws IOException {
+        int[] positions = new int[map.size()];
+        double[] values = new double[map.size()];
+        int i = 0;
+        ObjectIterator<Int2DoubleMap.Entry> entries = map.int2DoubleEntrySet().fastIterator();
+        while (entries.hasNext()) {
+            Int2DoubleMap.Entry entry = entries.next();
+            positions[i] = table.positionOf(entry.getIntKey());
+            values[i++] = entry.getDoubleValue();
+        }
+        data.writeInt(positions.length);
+        for (int position : positions) data.writeInt(position);
+        for (double value : values) data.writeDouble(value);
+    }
+
+    private static void writeInt2ObjectMap(DataOutputStream data, Int2ObjectMap<Int2DoubleOpenHashMap> map, StringTable labelTable, StringTable featureTable) throws IOException {
+        data.writeInt(map.size());
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : map.int2ObjectEntrySet()) {
+            data.writeInt(labelTable.positionOf(entry.getIntKey()));
+            writeInt2DoubleMap(data, entry.getValue(), featureTable);
+        }
+    }
+
+/********************************
+ * Reading
+ ********************************/
+
+    /**
+     * Read a string, first checking that its length fits in what remains of the model *in*.
+     */
+    private static String readString(ByteBuffer buffer, File in) throws IOException {
+        int offset = buffer.position();
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("Corrupt binary model: string of length " + length + " at offset " + offset + " overruns the file: " + in);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a string table, indexing each string with the pipeline.
+     * @return The index of the string at each position of the table.
+     */
+    private static int[] readStringTable(ByteBuffer buffer, FeatureExtractionPipeline pipeline, boolean areFeatures, File in) throws IOException {
+        int[] indices = new int[buffer.getInt()];
+        for (int i = 0; i < indices.length; i++) {
+            String string = readString(buffer, in);
+            indices[i] = areFeatures ? pipeline.featureIndex(string) : pipeline.labelIndex(string);
+        }
+        return indices;
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int length) {
+        int[] ints = new int[length];
+        buffer.asIntBuffer().get(ints);
+        buffer.position(buffer.position() + length * Integer.BYTES);
+        return ints;
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer, int length) {
+        double[] doubles = new double[length];
+        buffer.asDoubleBuffer().get(doubles);
+        buffer.position(buffer.position() + length * Double.BYTES);
+        return doubles;
+    }
+
+    private static IntSet readIntSet(ByteBuffer buffer, int[] indices) {
+        int[] positions = readInts(buffer, buffer.getInt());
+        IntSet set = new IntOpenHashSet(positions.length);
+        for (int position : positions)
+            set.add(indices[position]);
+        return set;
+    }
+
+    private static Int2DoubleOpenHashMap readInt2DoubleMap(ByteBuffer buffer, int[] indices) {
+        int size = buffer.getInt();
+        int[] positions = readInts(buffer, size);
+        double[] values = readDoubles(buffer, size);
+        Int2DoubleOpenHashMap map = new Int2DoubleOpenHashMap(size);
+        for (int i = 0; i < size; i++)
+            map.put(indices[positions[i]], values[i]);
+        return map;
+    }
+
+    private static Int2ObjectMap<Int2DoubleOpenHashMap> readInt2ObjectMap(ByteBuffer buffer, int[] labelIndices, int[] featureIndices) {
+        int size = buffer.getInt();
+        Int2ObjectMap<Int2DoubleOpenHashMap> map = new Int2ObjectOpenHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            int label = labelIndices[buffer.getInt()];
+            map.put(label, readInt2DoubleMap(buffer, featureIndices));
+        }
+        return map;
+    }
+}
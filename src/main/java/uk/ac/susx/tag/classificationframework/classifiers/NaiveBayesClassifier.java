@@ -24,16 +24,20 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntIterable;
 import it.unimi.dsi.fastutil.ints.IntIterator;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
-import org.apache.commons.math.util.MathUtils;
 import uk.ac.susx.tag.classificationframework.datastructures.ModelState.ClassifierName;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
 
 import java.io.File;
@@ -42,10 +46,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.RandomAccess;
 
 /**
  * Naive bayes classifier which stores its data as counts.
@@ -77,6 +83,23 @@ import java.util.stream.Collectors;
  *
  *   efficientNB = new NaiveBayesClassifierPreComputed(NB)
  *
+ * Between training steps, the log prior and the log of the likelihood denominator of each label are
+ * cached for scoring. The cache is invalidated by every method which trains or alters the classifier.
+ * If you modify the counts directly (e.g. through the maps returned by the getters), then you must
+ * call invalidateScoringCache() yourself.
+ *
+ * Likewise, the total real and pseudo count of each feature across labels is built on first use (by
+ * featureCount() or trimming), and then kept up to date by every method which changes the counts. So
+ * trimming infrequent features after each round of training costs one scan of the vocabulary. If you
+ * modify the counts directly, call invalidateFeatureTotals().
+ *
+ * For serving a classifier which is trained continuously, see NaiveBayesClassifierSegmented, which can be
+ * brought up to date at the cost of the features changed since it was last updated:
+ *
+ *   servedNB = NB.getSegmentedClassifier()
+ *   ... train NB ...
+ *   servedNB = servedNB.update(NB)
+ *
  * User: Andrew D. Robertson
  * Date: 25/07/2013
  * Time: 16:13
@@ -100,6 +123,16 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
 
 	private Map<String, Object> metadata = new HashMap<>();
 
+    private volatile ScoringCache scoringCache = null; // Built lazily on scoring, discarded whenever the counts change
+    private volatile FeatureTotals featureTotals = null; // Built lazily on counting features, then kept up to date
+
+    private boolean trackingChanges = false;            // Set by the first segment taken (see segmentAll())
+    private long version = 1;                           // Changes are stamped with the version, which each segment taken advances
+    private long allFeaturesChangedAt = 0;              // Version of the last change which altered the likelihood numerator of every feature
+    private IntArrayList changedFeatures = new IntArrayList();   // Log of changed features, stamped in nondecreasing order by...
+    private LongArrayList changeVersions = new LongArrayList();  // ... the version that each was changed at
+    private Int2IntOpenHashMap lastChange = new Int2IntOpenHashMap(); // Feature --> position of its latest entry in the log
+
 	public static final ClassifierName CLASSIFIER_NAME = ClassifierName.NB;
 
     /**
@@ -134,9 +167,9 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
 		return this.metadata;
 	}
 
-	public void setLabelSmoothing(double smoothingValue) {labelSmoothing = smoothingValue;}
+	public void setLabelSmoothing(double smoothingValue) {labelSmoothing = smoothingValue; invalidateScoringCache();}
 	public double getLabelSmoothing() {return labelSmoothing;}
-    public void setFeatureSmoothing(double smoothingValue) {featureSmoothing = smoothingValue;}
+    public void setFeatureSmoothing(double smoothingValue) {featureSmoothing = smoothingValue; allFeaturesChangedAt = version; invalidateScoringCache();}
 	public double getFeatureSmoothing() {return featureSmoothing;}
 
     /**
@@ -145,6 +178,7 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
     public void setLabelAlpha(int label, double alpha){
         labels.add(label);
         labelAlphas.addTo(label, alpha);
+        invalidateScoringCache();
     }
     public Int2DoubleOpenHashMap getLabelAlphas(){ return labelAlphas; }
 
@@ -154,8 +188,14 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
     public void setFeatureAlpha(int feature, int label, double alpha){
         labels.add(label);
         vocab.add(feature);
-        featureAlphaTotals.addTo(label, alpha - getFromMap(label, labelFeatureAlphas).get(feature));
-        getFromMap(label, labelFeatureAlphas).put(feature, alpha);
+        Int2DoubleOpenHashMap alphas = getFromMap(label, labelFeatureAlphas);
+        double change = alpha - alphas.get(feature);
+        featureAlphaTotals.addTo(label, change);
+        alphas.put(feature, alpha);
+        FeatureTotals totals = featureTotals;
+        if (totals != null) totals.pseudo.addTo(feature, change);
+        featureChanged(feature);
+        invalidateScoringCache();
     }
     public Int2ObjectMap<Int2DoubleOpenHashMap> getLabelledFeatures(){ return labelFeatureAlphas; }
 
@@ -164,48 +204,115 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         labelFeatureAlphas.get(label).remove(feature);
         boolean seen = false;
         for (int l : labels) {
-            if (getFromMap(l, jointCounts).containsKey(feature)) seen = true;
-            if (getFromMap(l, labelFeatureAlphas).containsKey(feature)) seen = true;
+            Int2DoubleOpenHashMap alphas = labelFeatureAlphas.get(l);
+            if (hasRealCounts(feature, l)) seen = true;
+            if (alphas != null && alphas.containsKey(feature)) seen = true;
         }
         // If the feature was only in vocab because it was labelled explicitly with this label, then remove it from vocab
         if (!seen) vocab.remove(feature);
+        invalidateScoringCache();
     }
 
     /**
-     * Delete all features with frequency less than *frequencyCutoff* including pseudo-counts.
+     * Get all features with frequency less than *frequencyCutoff* including pseudo-counts.
+     * A single scan of the vocab, looking up each feature's running total.
      */
     public IntSet getInfrequentFeatures(double frequencyCutoff){
-        return vocab.stream()
-                .filter(feature -> featureCount(feature) < frequencyCutoff)
-                .collect(Collectors.toCollection(IntOpenHashSet::new));
+        FeatureTotals totals = getFeatureTotals();
+        IntSet infrequent = new IntOpenHashSet();
+        for (IntIterator i = vocab.iterator(); i.hasNext();) {
+            int feature = i.nextInt();
+            if (totals.count(feature) < frequencyCutoff) infrequent.add(feature);
+        }
+        return infrequent;
     }
 
     @Override
     public IntSet trimInfrequentFeature(double frequencyCutoff) {
         IntSet features = getInfrequentFeatures(frequencyCutoff);
-        features.stream()
-                .forEach(this::deleteFeature);
+        deleteFeatures(features);
         return features;
     }
 
     public void deleteFeature(int feature){
-        for (int label : getLabels()){
-            if (hasPseudoCounts(feature, label))
-                unlabelFeature(feature, label);
-            if (hasRealCounts(feature, label))
-                getFromMap(label, labelFeatureAlphas).remove(feature);
-        } vocab.remove(feature);
+        deleteFeatures(IntSets.singleton(feature));
+    }
+
+    /**
+     * Remove all evidence of *features* (real counts and pseudo-counts) from the classifier,
+     * with a single pass over the counts of each label.
+     */
+    public void deleteFeatures(IntSet features){
+        if (features.isEmpty()) return;
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : jointCounts.int2ObjectEntrySet())
+            labelCounts.addTo(entry.getIntKey(), -removeAll(entry.getValue(), features));
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : labelFeatureAlphas.int2ObjectEntrySet())
+            featureAlphaTotals.addTo(entry.getIntKey(), -removeAll(entry.getValue(), features));
+        vocab.removeAll(features);
+        FeatureTotals totals = featureTotals;
+        if (totals != null) {
+            removeAll(totals.real, features);
+            removeAll(totals.pseudo, features);
+        }
+        for (IntIterator i = features.iterator(); i.hasNext();)
+            featureChanged(i.nextInt());
+        invalidateScoringCache();
+    }
+
+    /**
+     * Remove *features* from *counts*, iterating over whichever is smaller.
+     * @return The sum of the counts removed.
+     */
+    private static double removeAll(Int2DoubleOpenHashMap counts, IntSet features){
+        double removed = 0;
+        if (features.size() < counts.size()) {
+            for (IntIterator i = features.iterator(); i.hasNext();) {
+                int feature = i.nextInt();
+                if (counts.containsKey(feature)) removed += counts.remove(feature);
+            }
+        } else {
+            ObjectIterator<Int2DoubleMap.Entry> i = counts.int2DoubleEntrySet().fastIterator();
+            while (i.hasNext()) {
+                Int2DoubleMap.Entry entry = i.next();
+                if (features.contains(entry.getIntKey())) {
+                    removed += entry.getDoubleValue();
+                    i.remove();
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Multiply every real count (but not the pseudo-counts) by *factor*, e.g. to decay the evidence of older
+     * documents before adding newer ones (see OnlineEMTrainer).
+     */
+    public void scaleCounts(double factor){
+        scale(docCounts, factor);
+        scale(labelCounts, factor);
+        for (Int2DoubleOpenHashMap counts : jointCounts.values()) scale(counts, factor);
+        FeatureTotals totals = featureTotals;
+        if (totals != null) scale(totals.real, factor);
+        allFeaturesChangedAt = version;
+        invalidateScoringCache();
+    }
+
+    private static void scale(Int2DoubleOpenHashMap counts, double factor){
+        for (ObjectIterator<Int2DoubleMap.Entry> i = counts.int2DoubleEntrySet().fastIterator(); i.hasNext();) {
+            Int2DoubleMap.Entry entry = i.next();
+            entry.setValue(entry.getDoubleValue() * factor);
+        }
     }
 
     public boolean hasPseudoCounts(int feature, int label){
-        return getFromMap(label, labelFeatureAlphas).get(feature) > 0;
+        return getFromMap(label, feature, labelFeatureAlphas) > 0;
     }
 
     public boolean hasRealCounts(int feature, int label){
-        return getFromMap(label, jointCounts).get(feature) > 0;
+        return jointCount(feature, label) > 0;
     }
 
-    public void setLabelMultiplier(int label, double multiplier){  labelMultipliers.put(label, multiplier); }
+    public void setLabelMultiplier(int label, double multiplier){  labelMultipliers.put(label, multiplier); invalidateScoringCache(); }
     public Int2DoubleOpenHashMap getLabelMultipliers() { return labelMultipliers; }
 
 
@@ -217,7 +324,7 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
      */
     public void train(Iterable<ProcessedInstance> documents, double weight){
         for (ProcessedInstance doc : documents){
-            trainOnInstance(doc.getLabel(), doc.features, 1, weight);
+            trainOnInstance(doc.getLabel(), doc.getSparseFeatures(), 1, weight);
         }
     }
 
@@ -228,7 +335,7 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
     public void train(Iterable<ProcessedInstance> documents, IntIterable weights){
         IntIterator w = weights.iterator();
         for (ProcessedInstance doc : documents){
-            trainOnInstance(doc.getLabel(), doc.features, 1, w.nextInt());
+            trainOnInstance(doc.getLabel(), doc.getSparseFeatures(), 1, w.nextInt());
         }
     }
 
@@ -249,6 +356,29 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         mStep(eStep(documents, weight, classifier));
     }
 
+    /**
+     * As above, except that the Expectation step is sharded across *parallelism* threads. Each shard
+     * of documents is labelled into its own counts, which are merged pairwise before the Maximisation step.
+     * *classifier* must be safe to predict with from several threads (the naive bayes classifiers are).
+     * A parallelism of 1 or less is no different to the above.
+     */
+    public void emTrain(Iterable<ProcessedInstance> documents, double weight, Classifier classifier, int parallelism) {
+        if (parallelism <= 1) {
+            emTrain(documents, weight, classifier);
+            return;
+        }
+        List<ProcessedInstance> documentList;
+        if (documents instanceof List && documents instanceof RandomAccess) {
+            documentList = (List<ProcessedInstance>) documents;
+        } else {
+            documentList = new ArrayList<>();
+            for (ProcessedInstance document : documents) documentList.add(document);
+        }
+        mStep(ParallelRange.reduce(documentList.size(), parallelism, 1,
+                (from, to) -> eStep(documentList.subList(from, to), weight, classifier),
+                (first, second) -> { first.mStep(second); return first; }));
+    }
+
     public void emTrain(Iterable<ProcessedInstance> documents, double weight){
         emTrain(documents, weight, this);
     }
@@ -257,6 +387,10 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         emTrain(documents, 0.1, classifier);
     }
 
+    public void emTrain(Iterable<ProcessedInstance> documents, Classifier classifier, int parallelism){
+        emTrain(documents, 0.1, classifier, parallelism);
+    }
+
     public void emTrain(Iterable<ProcessedInstance> documents) {
         emTrain(documents, 0.1, this);
     }
@@ -273,11 +407,98 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         if (label < 0) return; // Skip documents which bear no label
         labels.add(label);
         docCounts.addTo(label, labelProbability * weight);
+        FeatureTotals totals = featureTotals;
         for (int feature : features) {
             vocab.add(feature);
             labelCounts.addTo(label, labelProbability * weight);
             getFromMap(label,jointCounts).addTo(feature, labelProbability * weight);
+            if (totals != null) totals.real.addTo(feature, labelProbability * weight);
+            featureChanged(feature);
         }
+        invalidateScoringCache();
+    }
+
+    /**
+     * Same as above, except that each distinct feature is counted once, weighted by its number of occurrences.
+     */
+    public void trainOnInstance(int label, SparseFeatureVector features, double labelProbability, double weight){
+        if (features.isEmpty()) return; // Skip documents with no features
+        if (label < 0) return; // Skip documents which bear no label
+        labels.add(label);
+        double increment = labelProbability * weight;
+        docCounts.addTo(label, increment);
+        labelCounts.addTo(label, features.totalCount() * increment);
+        Int2DoubleOpenHashMap labelJointCounts = getFromMap(label, jointCounts);
+        FeatureTotals totals = featureTotals;
+        for (int i = 0; i < features.size(); i++) {
+            vocab.add(features.feature(i));
+            labelJointCounts.addTo(features.feature(i), features.count(i) * increment);
+            if (totals != null) totals.real.addTo(features.feature(i), features.count(i) * increment);
+            featureChanged(features.feature(i));
+        }
+        invalidateScoringCache();
+    }
+
+    /**
+     * Remove the counts of a document which was trained on with trainOnInstance() (with the same label, features,
+     * label probability and weight), as if it had never been trained on. Features left with no counts or
+     * pseudo-counts under any label are removed from the vocab, so the model matches one retrained without the
+     * document. Removing a document which was never trained on leaves negative counts.
+     */
+    public void untrainOnInstance(int label, int[] features, double labelProbability, double weight){
+        untrainOnInstance(label, SparseFeatureVector.of(features), labelProbability, weight);
+    }
+
+    public void untrainOnInstance(int label, SparseFeatureVector features, double labelProbability, double weight){
+        if (features.isEmpty() || label < 0) return; // As trainOnInstance(), these were never trained on
+        trainOnInstance(label, features, labelProbability, -weight);
+        forgetUntrained(label, features);
+    }
+
+    /**
+     * Move the counts of an annotated document (label probability 1) from *oldLabel* to *newLabel*.
+     */
+    public void relabel(int oldLabel, int newLabel, int[] features, double weight){
+        relabel(oldLabel, newLabel, SparseFeatureVector.of(features), weight);
+    }
+
+    public void relabel(int oldLabel, int newLabel, SparseFeatureVector features, double weight){
+        if (oldLabel == newLabel) return;
+        untrainOnInstance(oldLabel, features, 1, weight);
+        trainOnInstance(newLabel, features, 1, weight);
+    }
+
+    /**
+     * Tidy up after the counts of *features* under *label* have been reduced by untraining: counts which are
+     * zero (up to rounding) are removed, and so are features which no longer have any counts or pseudo-counts.
+     */
+    protected void forgetUntrained(int label, SparseFeatureVector features){
+        removeIfZero(docCounts, label);
+        removeIfZero(labelCounts, label);
+        Int2DoubleOpenHashMap counts = jointCounts.get(label);
+        FeatureTotals totals = featureTotals;
+        for (int i = 0; i < features.size(); i++) {
+            int feature = features.feature(i);
+            if (counts != null) removeIfZero(counts, feature);
+            boolean seen = false;
+            for (int l : labels) {
+                Int2DoubleOpenHashMap alphas = labelFeatureAlphas.get(l);
+                if (jointCount(feature, l) != 0) seen = true;
+                if (alphas != null && alphas.containsKey(feature)) seen = true;
+            }
+            if (!seen) {
+                vocab.remove(feature);
+                if (totals != null) totals.real.remove(feature);
+            }
+        }
+        invalidateScoringCache();
+    }
+
+    /**
+     * Remove the count of *key*, if untraining has brought it back to zero (allowing for rounding error).
+     */
+    protected static void removeIfZero(Int2DoubleOpenHashMap counts, int key){
+        if (Math.abs(counts.get(key)) < 1E-9) counts.remove(key);
     }
 
     public static void main(String[] args){
@@ -298,8 +519,23 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
      * @return P(feature|label)
      */
     public double likelihood(int feature, int label){
-        return (featureDirichletPrior(feature, label) + getFromMap(label, jointCounts).get(feature)) /
-               (featureAlphaTotals.get(label) + featureSmoothing*vocab.size() + labelCounts.get(label));
+        return likelihoodNumerator(feature, label) / likelihoodDenominator(label);
+    }
+
+    /**
+     * @return P(feature|label) of each of *features*, as likelihood(), but looking up the label's counts
+     *         and computing its denominator only once.
+     */
+    public double[] likelihoods(int label, int[] features){
+        Int2DoubleOpenHashMap counts = jointCounts.get(label);
+        Int2DoubleOpenHashMap alphas = labelFeatureAlphas.get(label);
+        double denominator = likelihoodDenominator(label);
+        double[] likelihoods = new double[features.length];
+        for (int i = 0; i < features.length; i++) {
+            double numerator = featureSmoothing + (alphas == null ? 0 : alphas.get(features[i])) + (counts == null ? 0 : counts.get(features[i]));
+            likelihoods[i] = numerator / denominator;
+        }
+        return likelihoods;
     }
 
     /**
@@ -313,9 +549,7 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         Int2DoubleMap priors = new Int2DoubleOpenHashMap();
         double sum = 0;
         for (int label : labels) {
-            double labelMultiplier = labelMultipliers.containsKey(label)? labelMultipliers.get(label) : 1;
-            double empiricalCount = empiricalLabelPriors ? docCounts.get(label) : 1;
-            priors.put(label, labelMultiplier * (labelDirichletPrior(label) + empiricalCount));
+            priors.put(label, unnormalisedLabelPrior(label));
             sum += priors.get(label);
         }
         for (Int2DoubleMap.Entry entry : priors.int2DoubleEntrySet()){
@@ -324,30 +558,303 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         return priors;
     }
 
+    /**
+     * Clear *scores*, then fill it with: label ==> log(P(label))
+     * The same priors as labelPriors(), without allocating a map.
+     */
+    protected void labelLogPriors(LabelScores scores){
+        labelLogPriors(scores, getScoringCache());
+    }
+
+    /**
+     * As labelLogPriors(), also returning the cached log of the likelihood denominator of each label,
+     * in the order of the labels in *scores*. Do not modify.
+     */
+    protected double[] labelLogPriorsAndDenominators(LabelScores scores){
+        ScoringCache cache = getScoringCache();
+        labelLogPriors(scores, cache);
+        return cache.logDenominators;
+    }
+
+    private void labelLogPriors(LabelScores scores, ScoringCache cache){
+        scores.reset(cache.labelOrder);
+        System.arraycopy(cache.logPriors, 0, scores.scores(), 0, cache.labelOrder.length);
+    }
+
+    /**
+     * Since every feature's likelihood under a label shares the same denominator, the log
+     * of the denominator is subtracted once for each feature in the vocabulary.
+     */
     @Override
-    public Int2DoubleOpenHashMap logpriorPlusLoglikelihood(int[] features){
-        Int2DoubleOpenHashMap labelScores = new Int2DoubleOpenHashMap();
-        Int2DoubleMap labelPriors = labelPriors();
-        for (int label : labels) {
-            double loglikelihood = 0.0;
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores){
+        ScoringCache cache = getScoringCache();
+        labelLogPriors(scores, cache);
+        for (int i = 0; i < scores.size(); i++) {
+            int label = scores.label(i);
+            double logNumerators = 0.0;
+            int vocabFeatures = 0;
             for (int feature : features) {
                 if (vocab.contains(feature)){
-                    loglikelihood += Math.log(likelihood(feature, label));
+                    logNumerators += Math.log(likelihoodNumerator(feature, label));
+                    vocabFeatures++;
+                }
+            }
+            scores.addTo(i, logNumerators - vocabFeatures * cache.logDenominators[i]);
+        }
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores){
+        ScoringCache cache = getScoringCache();
+        labelLogPriors(scores, cache);
+        for (int i = 0; i < scores.size(); i++) {
+            int label = scores.label(i);
+            double logNumerators = 0.0;
+            int vocabFeatures = 0;
+            for (int j = 0; j < features.size(); j++) {
+                int feature = features.feature(j);
+                if (vocab.contains(feature)){
+                    logNumerators += features.count(j) * Math.log(likelihoodNumerator(feature, label));
+                    vocabFeatures += features.count(j);
                 }
             }
-            labelScores.put(label, Math.log(labelPriors.get(label)) + loglikelihood);
+            scores.addTo(i, logNumerators - vocabFeatures * cache.logDenominators[i]);
+        }
+    }
+
+    /**
+     * Discard the cached log priors and log likelihood denominators used for scoring, so that they
+     * are recalculated from the counts on the next prediction. All methods which change the counts
+     * call this. It only needs to be called if the counts are changed directly.
+     */
+    public void invalidateScoringCache(){
+        scoringCache = null;
+    }
+
+    @Override
+    public void empiricalLabelPriors(boolean empiricalLabelPriors) {
+        super.empiricalLabelPriors(empiricalLabelPriors);
+        invalidateScoringCache();
+    }
+
+    /**
+     * @return the cached log priors and log likelihood denominators, recalculating them if they are out of date.
+     */
+    private ScoringCache getScoringCache(){
+        ScoringCache cache = scoringCache;
+        if (cache == null || !cache.isValidFor(labels, vocab)) {
+            cache = new ScoringCache(this);
+            scoringCache = cache;
+        }
+        return cache;
+    }
+
+    /**
+     * Log priors and log likelihood denominators of each label, in the order of labelOrder.
+     * Never modified once built, so it can be shared by threads which are classifying at once.
+     */
+    private static class ScoringCache {
+
+        private final IntSet labels;    // The label set and vocab which the cache was built from, and their sizes.
+        private final IntSet vocab;     // These catch the sets being replaced or added to without invalidation,
+        private final int vocabSize;    // since the denominators depend on the vocab size.
+
+        private final int[] labelOrder;
+        private final double[] logPriors;
+        private final double[] logDenominators;
+
+        ScoringCache(NaiveBayesClassifier nb){
+            labels = nb.labels;
+            vocab = nb.vocab;
+            vocabSize = nb.vocab.size();
+            labelOrder = nb.labels.toIntArray();
+            logPriors = new double[labelOrder.length];
+            logDenominators = new double[labelOrder.length];
+
+            double sum = 0;
+            for (int i = 0; i < labelOrder.length; i++) {
+                logPriors[i] = nb.unnormalisedLabelPrior(labelOrder[i]);
+                sum += logPriors[i];
+            }
+            for (int i = 0; i < labelOrder.length; i++) {
+                logPriors[i] = Math.log(logPriors[i]/sum);
+                logDenominators[i] = Math.log(nb.likelihoodDenominator(labelOrder[i]));
+            }
+        }
+
+        boolean isValidFor(IntSet labels, IntSet vocab){
+            return this.labels == labels && this.labels.size() == labelOrder.length
+                && this.vocab == vocab && this.vocab.size() == vocabSize;
         }
-        return labelScores;
     }
 
     /**
      * Get the count of a feature across all labels (including pseudocounts).
      */
     public double featureCount(int feature){
-        double sum = 0;
-        for (int label : labels)
-            sum += getFromMap(label, labelFeatureAlphas).get(feature) + getFromMap(label, jointCounts).get(feature);
-        return sum;
+        return getFeatureTotals().count(feature);
+    }
+
+    /**
+     * Get the real count of a feature across all labels.
+     */
+    public double realFeatureCount(int feature){
+        return getFeatureTotals().real.get(feature);
+    }
+
+    /**
+     * Get the pseudo-count of a feature across all labels.
+     */
+    public double pseudoFeatureCount(int feature){
+        return getFeatureTotals().pseudo.get(feature);
+    }
+
+    /**
+     * Discard the running totals of each feature, so that they are recounted from the joint counts
+     * and pseudo-counts on next use. Only needs to be called if the counts are changed directly.
+     */
+    public void invalidateFeatureTotals(){
+        featureTotals = null;
+    }
+
+    /**
+     * @return the running totals of each feature, counting them if they are out of date.
+     */
+    private FeatureTotals getFeatureTotals(){
+        FeatureTotals totals = featureTotals;
+        if (totals == null || !totals.isValidFor(jointCounts, labelFeatureAlphas)) {
+            totals = new FeatureTotals(this);
+            featureTotals = totals;
+        }
+        return totals;
+    }
+
+    /**
+     * Total real count and pseudo-count of each feature across labels. Unlike the ScoringCache, these
+     * are updated in place by the methods which change the counts, rather than rebuilt.
+     */
+    private static class FeatureTotals {
+
+        private final Int2ObjectMap<Int2DoubleOpenHashMap> jointCounts;        // The maps which the totals were counted from.
+        private final Int2ObjectMap<Int2DoubleOpenHashMap> labelFeatureAlphas; // These catch the maps being replaced.
+
+        final Int2DoubleOpenHashMap real = new Int2DoubleOpenHashMap();
+        final Int2DoubleOpenHashMap pseudo = new Int2DoubleOpenHashMap();
+
+        FeatureTotals(NaiveBayesClassifier nb){
+            jointCounts = nb.jointCounts;
+            labelFeatureAlphas = nb.labelFeatureAlphas;
+            for (Int2DoubleOpenHashMap counts : jointCounts.values()) nb.addTo(real, counts);
+            for (Int2DoubleOpenHashMap alphas : labelFeatureAlphas.values()) nb.addTo(pseudo, alphas);
+        }
+
+        double count(int feature){
+            return real.get(feature) + pseudo.get(feature);
+        }
+
+        boolean isValidFor(Int2ObjectMap<Int2DoubleOpenHashMap> jointCounts, Int2ObjectMap<Int2DoubleOpenHashMap> labelFeatureAlphas){
+            return this.jointCounts == jointCounts && this.labelFeatureAlphas == labelFeatureAlphas;
+        }
+    }
+
+    /**
+     * @return A snapshot of this classifier for serving, which can be cheaply brought up to date with it.
+     *         See NaiveBayesClassifierSegmented.
+     */
+    public NaiveBayesClassifierSegmented getSegmentedClassifier(){
+        return new NaiveBayesClassifierSegmented(this);
+    }
+
+    /**
+     * The log priors and log likelihood denominators of each label, and the log likelihood numerators of
+     * every feature in the vocab. From then on, record which features change, for segmentChanges().
+     */
+    NaiveBayesClassifierSegmented.Snapshot segmentAll(){
+        trackingChanges = true;
+        return segment(vocab);
+    }
+
+    /**
+     * As segmentAll(), but with the log likelihood numerators of only the features which have changed since
+     * the segment numbered *since* was taken. Features which have left the vocab map to NaiveBayesClassifierSegmented.DELETED.
+     * Each consumer passes the sequence number of the last segment that it took, so any number of them can
+     * follow the changes of one classifier without missing any.
+     * @return null if every feature's numerator has changed since then, or no such segment was taken from this classifier.
+     */
+    NaiveBayesClassifierSegmented.Snapshot segmentChanges(long since){
+        if (!trackingChanges || since < 1 || since >= version || allFeaturesChangedAt > since) return null;
+        IntSet features = new IntOpenHashSet();
+        for (int i = firstChangeAfter(since); i < changedFeatures.size(); i++)
+            features.add(changedFeatures.getInt(i));
+        return segment(features);
+    }
+
+    /**
+     * @return The position of the first entry of the change log stamped later than *since*.
+     */
+    private int firstChangeAfter(long since){
+        int low = 0, high = changeVersions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (changeVersions.getLong(mid) > since) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+
+    /**
+     * Record that the likelihood numerators of *feature* may have changed, if recording.
+     * A feature is logged once per version that it changes in.
+     */
+    protected void featureChanged(int feature){
+        if (!trackingChanges) return;
+        int position = lastChange.get(feature);
+        if (lastChange.containsKey(feature) && changeVersions.getLong(position) == version) return;
+        lastChange.put(feature, changedFeatures.size());
+        changedFeatures.add(feature);
+        changeVersions.add(version);
+        if (changedFeatures.size() > 2 * lastChange.size() + 1024) compactChanges();
+    }
+
+    /**
+     * Drop the entries of the change log which are superseded by a later entry of the same feature,
+     * so that the log grows with the number of features changed, rather than with the number of changes.
+     */
+    private void compactChanges(){
+        IntArrayList features = new IntArrayList(lastChange.size());
+        LongArrayList versions = new LongArrayList(lastChange.size());
+        for (int i = 0; i < changedFeatures.size(); i++) {
+            int feature = changedFeatures.getInt(i);
+            if (lastChange.get(feature) != i) continue;
+            lastChange.put(feature, features.size());
+            features.add(feature);
+            versions.add(changeVersions.getLong(i));
+        }
+        changedFeatures = features;
+        changeVersions = versions;
+    }
+
+    private NaiveBayesClassifierSegmented.Snapshot segment(IntSet features){
+        LabelScores logPriors = new LabelScores(labels.size());
+        double[] logDenominators = labelLogPriorsAndDenominators(logPriors);
+        int[] labelOrder = new int[logPriors.size()];
+        for (int i = 0; i < labelOrder.length; i++)
+            labelOrder[i] = logPriors.label(i);
+
+        Int2ObjectOpenHashMap<double[]> logNumerators = new Int2ObjectOpenHashMap<>(features.size());
+        for (IntIterator i = features.iterator(); i.hasNext();) {
+            int feature = i.nextInt();
+            if (!vocab.contains(feature)) {
+                logNumerators.put(feature, NaiveBayesClassifierSegmented.DELETED);
+                continue;
+            }
+            double[] row = new double[labelOrder.length];
+            for (int l = 0; l < labelOrder.length; l++)
+                row[l] = Math.log(likelihoodNumerator(feature, labelOrder[l]));
+            logNumerators.put(feature, row);
+        }
+        return new NaiveBayesClassifierSegmented.Snapshot(version++, labelOrder, Arrays.copyOf(logPriors.scores(), labelOrder.length),
+                                                          logDenominators.clone(), logNumerators);
     }
 
     /**
@@ -357,10 +864,12 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
      */
     private NaiveBayesClassifier eStep(Iterable<ProcessedInstance> documents, double weight, Classifier classifier){
         NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        LabelScores posteriors = new LabelScores();
         for (ProcessedInstance document : documents){
-            Int2DoubleMap posteriors = classifier.predict(document.features);
-            for (Int2DoubleMap.Entry entry : posteriors.int2DoubleEntrySet()){
-                nb.trainOnInstance(entry.getIntKey(), document.features, entry.getDoubleValue(), weight);
+            SparseFeatureVector features = document.getSparseFeatures();
+            classifier.predict(features, posteriors);
+            for (int i = 0; i < posteriors.size(); i++){
+                nb.trainOnInstance(posteriors.label(i), features, posteriors.score(i), weight);
             }
         }
         return nb;
@@ -371,15 +880,20 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
      * Add to this NaiveBayesClassifier the counts of another
      * (usually acquired during the Expectation step of EM).
      */
-    private void mStep(NaiveBayesClassifier nb) {
+    protected void mStep(NaiveBayesClassifier nb) {
         labels.addAll(nb.labels);
         vocab.addAll(nb.vocab);
         // Update real counts
         addTo(docCounts, nb.docCounts);
         addTo(labelCounts, nb.labelCounts);
+        FeatureTotals totals = featureTotals;
         for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : nb.jointCounts.int2ObjectEntrySet()){
             addTo(getFromMap(entry.getIntKey(), jointCounts), entry.getValue());
+            if (totals != null) addTo(totals.real, entry.getValue());
         }
+        for (IntIterator i = nb.vocab.iterator(); i.hasNext();)
+            featureChanged(i.nextInt());
+        invalidateScoringCache();
     }
 
     /**
@@ -387,7 +901,42 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
      * pseudo-counts associated with said feature and label.
      */
     private double featureDirichletPrior(int feature, int label){
-        return featureSmoothing + getFromMap(label, labelFeatureAlphas).get(feature);
+        return featureSmoothing + getFromMap(label, feature, labelFeatureAlphas);
+    }
+
+    /**
+     * Dirichlet prior + Count of *feature* occurring in documents labelled with *label*. See likelihood().
+     */
+    protected double likelihoodNumerator(int feature, int label){
+        return featureDirichletPrior(feature, label) + jointCount(feature, label);
+    }
+
+    /**
+     * Count of *feature* occurring in documents labelled with *label* (not including pseudo-counts).
+     */
+    protected double jointCount(int feature, int label){
+        return getFromMap(label, feature, jointCounts);
+    }
+
+    /**
+     * Total pseudocounts added under *label* + total smoothing assigned to features + total features with *label*. See likelihood().
+     */
+    protected double likelihoodDenominator(int label){
+        return featureAlphaTotals.get(label) + featureSmoothing*vocab.size() + labelCount(label);
+    }
+
+    /**
+     * Count of documents labelled with *label* (not including pseudo-counts).
+     */
+    protected double docCount(int label){
+        return docCounts.get(label);
+    }
+
+    /**
+     * Count of feature occurrences in documents labelled with *label* (not including pseudo-counts).
+     */
+    protected double labelCount(int label){
+        return labelCounts.get(label);
     }
 
     /**
@@ -398,6 +947,15 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         return labelSmoothing + labelAlphas.get(label);
     }
 
+    /**
+     * Label multiplier * (Dirichlet prior + count of documents labelled as *label*). See labelPriors().
+     */
+    private double unnormalisedLabelPrior(int label){
+        double labelMultiplier = labelMultipliers.containsKey(label)? labelMultipliers.get(label) : 1;
+        double empiricalCount = empiricalLabelPriors ? docCount(label) : 1;
+        return labelMultiplier * (labelDirichletPrior(label) + empiricalCount);
+    }
+
     /**
      * Get the Int2DoubleOpenHashMap of the corresponding corresponding int key from a Int2ObjectMap.
      * If the int is not present in the map, then put a new Int2DoubleOpenHashMap in the map, and return it.
@@ -409,6 +967,16 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         return map.get(label);
     }
 
+    /**
+     * Get the value of *feature* in the Int2DoubleOpenHashMap of the corresponding int key from a Int2ObjectMap,
+     * or 0 if the key is not present. Unlike the above, the map is never modified, so it is safe to use from
+     * several threads which are classifying at once.
+     */
+    protected double getFromMap(int label, int feature, Int2ObjectMap<Int2DoubleOpenHashMap> map){
+        Int2DoubleOpenHashMap featureMap = map.get(label);
+        return featureMap == null ? 0 : featureMap.get(feature);
+    }
+
     /**
      * Add the entries of *toBeAdded* to *map*. If any keys are already present in *map*, then the new value
      * will be the sum of the original value in *map* and the value in *toBeAdded*.
@@ -440,7 +1008,7 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
 		writer.name("vocab");  writeJsonIntSet(writer, pipeline, vocab, true);
 		writer.name("docCounts");   writeJsonInt2DoubleMap(writer, pipeline, docCounts, false);
 		writer.name("labelCounts"); writeJsonInt2DoubleMap(writer, pipeline, labelCounts, false);
-		writer.name("jointCounts"); writeJsonInt2ObjectMap(writer, pipeline, jointCounts);
+		writer.name("jointCounts"); writeJsonInt2ObjectMap(writer, pipeline, getJointCounts());
 		writer.name("labelFeatureAlphas"); writeJsonInt2ObjectMap(writer, pipeline, labelFeatureAlphas);
 		writer.name("featureAlphaTotals"); writeJsonInt2DoubleMap(writer, pipeline, featureAlphaTotals, false);
 		writer.name("labelAlphas"); writeJsonInt2DoubleMap(writer, pipeline, labelAlphas, false);
@@ -472,6 +1040,23 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
         writer.endObject();
     }
 
+    /**
+     * Write classifier to file in a compact binary representation (see NaiveBayesBinaryFormat). As with
+     * the JSON representation, all features and labels are converted to their string representation,
+     * but each string is written only once. Only the counts of this class are written, so subclasses
+     * with state of their own should be written as JSON.
+     */
+    public void writeBinary(File out, FeatureExtractionPipeline pipeline) throws IOException {
+        NaiveBayesBinaryFormat.write(this, out, pipeline);
+    }
+
+    /**
+     * Read classifier from file in binary representation (see writeBinary()).
+     */
+    public static NaiveBayesClassifier readBinary(File in, FeatureExtractionPipeline pipeline) throws IOException {
+        return NaiveBayesBinaryFormat.read(in, pipeline);
+    }
+
     /**
      * Read classifier from file in JSON representation. Convert all features and labels from their string representation.
      */
@@ -540,7 +1125,8 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
     /**
      * calculates the pair wise Kullback-Leibler divergence of the language models pf each label
      *
-     * doesn't account for pseudo-counts / dirichlet priors
+     * The result is indexed by label, so the labels must be 0 to n-1. See ModelAnalysis for
+     * divergences (and Jensen-Shannon divergences) between any labels, computed in parallel.
      *
      * ref: http://mathworld.wolfram.com/RelativeEntropy.html
      *
@@ -548,35 +1134,14 @@ public class NaiveBayesClassifier extends AbstractNaiveBayesClassifier implement
      * @return
      */
     public static double[][] pairWiseLabelKLD(NaiveBayesClassifier classifier) {
+        ModelAnalysis analysis = new ModelAnalysis(classifier);
+        ModelAnalysis.LabelDivergences kld = analysis.klDivergences();
 
-        IntSet labels = classifier.getLabels();
-
-        int n = labels.size();
-
+        int n = classifier.getLabels().size();
         double[][] dpq = new double[n][n];
-        for (double[] row : dpq) {
-            Arrays.fill(row, 0.0);
-        }
-
-        for( int p : labels) {
-            for( int q : labels) {
-                if( p == q) {
-                    dpq[p][q] = 0;
-                    continue;
-                }
-                for(int k : classifier.vocab) {
-
-//                    double pk = classifier.jointCounts.get(p).get(k) / classifier.labelCounts.get(p);
-//                    double qk = classifier.jointCounts.get(q).get(k) / classifier.labelCounts.get(q);
-                    double pk = classifier.likelihood(k,p);
-                    double qk = classifier.likelihood(k,q);
-
-                    if(pk == 0 || qk == 0 || pk == qk)
-                        continue;
-
-
-                    dpq[p][q] += pk * MathUtils.log(2, pk/qk);
-                }
+        for (int p : kld.getLabelOrder()) {
+            for (int q : kld.getLabelOrder()) {
+                dpq[p][q] = kld.get(p, q);
             }
         }
         return dpq;
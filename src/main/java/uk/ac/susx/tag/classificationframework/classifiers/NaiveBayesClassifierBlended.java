@@ -0,0 +1,217 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import com.google.gson.stream.JsonWriter;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A NaiveBayesClassifier whose real counts are the fixed counts of a base classifier, plus counts of its own
+ * which can be decayed cheaply (see OnlineEMTrainer). The two are only combined when scoring:
+ *
+ *   count = base count + scale * own count
+ *
+ * Training adds to its own counts, and scaleCounts() only multiplies the scale, so decaying the model costs
+ * nothing however many features it has. The own counts are stored divided by the scale, and are multiplied
+ * out only if the scale becomes so small that they could overflow.
+ *
+ * The settings and pseudo-counts of the base are copied on construction, and the base must not be changed
+ * afterwards. getJointCounts() materialises the combined counts, and the JSON and binary formats write
+ * toNaiveBayesClassifier(), so a saved model reads back as a NaiveBayesClassifier. Features cannot be
+ * deleted, nor the model segmented; do so to toNaiveBayesClassifier() instead.
+ */
+public class NaiveBayesClassifierBlended extends NaiveBayesClassifier {
+
+    private static final double MIN_SCALE = 1E-100;  // Below this, the scale is multiplied into the own counts
+
+    private final NaiveBayesClassifier base;
+    private double scale = 1;
+
+    /**
+     * Blend counts with those of *base*, starting with none of its own.
+     */
+    public NaiveBayesClassifierBlended(NaiveBayesClassifier base) {
+        super(new IntOpenHashSet(base.getLabels()));
+        this.base = base;
+        vocab.addAll(base.getVocab());
+        setLabelSmoothing(base.getLabelSmoothing());
+        setFeatureSmoothing(base.getFeatureSmoothing());
+        empiricalLabelPriors = base.empiricalLabelPriors();
+        labelMultipliers.putAll(base.labelMultipliers);
+        labelAlphas.putAll(base.labelAlphas);
+        featureAlphaTotals.putAll(base.featureAlphaTotals);
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : base.labelFeatureAlphas.int2ObjectEntrySet())
+            labelFeatureAlphas.put(entry.getIntKey(), new Int2DoubleOpenHashMap(entry.getValue()));
+    }
+
+    /**
+     * @return The classifier whose counts are blended with these (do not modify).
+     */
+    public NaiveBayesClassifier getBase() { return base; }
+
+    /**
+     * @return The factor that the own counts are multiplied by when scoring.
+     */
+    public double getScale() { return scale; }
+
+    /**
+     * @return A NaiveBayesClassifier of the combined counts, and the settings and pseudo-counts of this classifier.
+     */
+    public NaiveBayesClassifier toNaiveBayesClassifier() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier(new IntOpenHashSet(labels));
+        nb.vocab.addAll(vocab);
+        nb.setLabelSmoothing(getLabelSmoothing());
+        nb.setFeatureSmoothing(getFeatureSmoothing());
+        nb.empiricalLabelPriors(empiricalLabelPriors);
+        nb.labelMultipliers.putAll(labelMultipliers);
+        nb.labelAlphas.putAll(labelAlphas);
+        nb.featureAlphaTotals.putAll(featureAlphaTotals);
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : labelFeatureAlphas.int2ObjectEntrySet())
+            nb.labelFeatureAlphas.put(entry.getIntKey(), new Int2DoubleOpenHashMap(entry.getValue()));
+        for (int label : labels) {
+            if (docCount(label) != 0) nb.docCounts.put(label, docCount(label));
+            if (labelCount(label) != 0) nb.labelCounts.put(label, labelCount(label));
+        }
+        nb.jointCounts = getJointCounts();
+        return nb;
+    }
+
+    /**
+     * @return A copy of the combined real joint counts (modifying it does not affect the classifier).
+     */
+    @Override
+    public Int2ObjectMap<Int2DoubleOpenHashMap> getJointCounts() {
+        Int2ObjectMap<Int2DoubleOpenHashMap> combined = new Int2ObjectOpenHashMap<>();
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : base.getJointCounts().int2ObjectEntrySet())
+            combined.put(entry.getIntKey(), new Int2DoubleOpenHashMap(entry.getValue()));
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : jointCounts.int2ObjectEntrySet()) {
+            Int2DoubleOpenHashMap counts = getFromMap(entry.getIntKey(), combined);
+            for (Int2DoubleMap.Entry count : entry.getValue().int2DoubleEntrySet())
+                counts.addTo(count.getIntKey(), scale * count.getDoubleValue());
+        }
+        return combined;
+    }
+
+    /*
+     * Training: the own counts are stored divided by the scale.
+     */
+
+    @Override
+    public void trainOnInstance(int label, int[] features, double labelProbability, double weight) {
+        super.trainOnInstance(label, features, labelProbability, weight / scale);
+    }
+
+    @Override
+    public void trainOnInstance(int label, SparseFeatureVector features, double labelProbability, double weight) {
+        super.trainOnInstance(label, features, labelProbability, weight / scale);
+    }
+
+    /**
+     * Multiply the own counts (but not those of the base) by *factor*, lazily.
+     */
+    @Override
+    public void scaleCounts(double factor) {
+        scale *= factor;
+        if (scale < MIN_SCALE) applyScale();
+        invalidateScoringCache();
+    }
+
+    @Override
+    protected void mStep(NaiveBayesClassifier nb) {
+        applyScale(); // The counts of *nb* are added as they are
+        super.mStep(nb);
+    }
+
+    @Override
+    public void deleteFeatures(IntSet features) {
+        throw new UnsupportedOperationException("NaiveBayesClassifierBlended cannot delete features, use toNaiveBayesClassifier()");
+    }
+
+    /**
+     * Multiply the own counts out by the scale, and reset it to 1.
+     */
+    private void applyScale() {
+        if (scale == 1) return;
+        super.scaleCounts(scale);
+        scale = 1;
+    }
+
+    /*
+     * Counting: the base counts plus the scaled own counts.
+     */
+
+    @Override
+    protected double jointCount(int feature, int label) {
+        return base.jointCount(feature, label) + scale * super.jointCount(feature, label);
+    }
+
+    @Override
+    protected double docCount(int label) {
+        return base.docCount(label) + scale * super.docCount(label);
+    }
+
+    @Override
+    protected double labelCount(int label) {
+        return base.labelCount(label) + scale * super.labelCount(label);
+    }
+
+    @Override
+    public double featureCount(int feature) {
+        return realFeatureCount(feature) + pseudoFeatureCount(feature);
+    }
+
+    @Override
+    public double realFeatureCount(int feature) {
+        return base.realFeatureCount(feature) + scale * super.realFeatureCount(feature);
+    }
+
+    @Override
+    public IntSet getInfrequentFeatures(double frequencyCutoff) {
+        IntSet infrequent = new IntOpenHashSet();
+        for (IntIterator i = vocab.iterator(); i.hasNext();) {
+            int feature = i.nextInt();
+            if (featureCount(feature) < frequencyCutoff) infrequent.add(feature);
+        }
+        return infrequent;
+    }
+
+    @Override
+    public double[] likelihoods(int label, int[] features) {
+        double denominator = likelihoodDenominator(label);
+        double[] likelihoods = new double[features.length];
+        for (int i = 0; i < features.length; i++)
+            likelihoods[i] = likelihoodNumerator(features[i], label) / denominator;
+        return likelihoods;
+    }
+
+    /*
+     * Saving, serving
+     */
+
+    @Override
+    protected void writeJson(JsonWriter writer, File out, FeatureExtractionPipeline pipeline) throws IOException {
+        toNaiveBayesClassifier().writeJson(writer, out, pipeline);
+    }
+
+    @Override
+    public void writeBinary(File out, FeatureExtractionPipeline pipeline) throws IOException {
+        toNaiveBayesClassifier().writeBinary(out, pipeline);
+    }
+
+    /**
+     * Scaling the own counts changes the likelihood of every feature without recording it, so the model cannot be segmented.
+     */
+    @Override
+    NaiveBayesClassifierSegmented.Snapshot segmentAll() {
+        throw new UnsupportedOperationException("NaiveBayesClassifierBlended cannot be segmented, use toNaiveBayesClassifier()");
+    }
+}
@@ -0,0 +1,289 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Naive bayes which stores its pre-computed log probabilities feature-major.
+ *
+ * Every feature in the vocabulary is assigned a row of a single flat table. A row holds the
+ * log likelihood of that feature under every label, in the order given by getLabelOrder().
+ * Scoring a document therefore costs one hash lookup per feature followed by a tight loop
+ * over the labels, instead of the lookup per feature per label done by
+ * NaiveBayesClassifierPreComputed.
+ *
+ * Like NaiveBayesClassifierPreComputed, it cannot be further trained. Obtain one from any
+ * trained classifier with:
+ *
+ *   compiledNB = nb.getPrecomputedClassifier(true)
+ *
+ * Or from an existing pre-computed classifier with:
+ *
+ *   compiledNB = precomputedNB.compile()
+ *
+ * When only the best label (or the best few) are needed, bestLabel() and topLabels() score the labels one at a
+ * time, in descending order of prior, and drop a label part-way through the document once its score plus the
+ * greatest log likelihood of each remaining feature (under any label) cannot reach the K-th best score so far.
+ * So with hundreds of labels, most labels are dropped after a few features. The results are exactly those of
+ * scoring every label.
+ */
+public class NaiveBayesClassifierCompiled extends AbstractNaiveBayesClassifier {
+
+    // Working arrays of topLabels(), kept in the caller's LabelScores
+    private static final int ROWS = 0, COUNTS = 1, BEST_POSITIONS = 2;  // int buffers
+    private static final int REMAINING = 0, BEST_SCORES = 1;            // double buffers
+
+    private int[] labelOrder;                // Label found at each dense label position
+    private double[] logPriors;              // Log prior of the label at each dense label position
+    private Int2IntOpenHashMap featureRows;  // Feature --> row in logLikelihoods (-1 if feature not in vocab)
+    private double[] logLikelihoods;         // Row r holds the log likelihoods of a feature in [r*numLabels, (r+1)*numLabels)
+    private double[] rowMaxima;              // Greatest log likelihood in each row
+    private int[] positionsByPrior;          // Dense label positions, in descending order of log prior
+
+    /**
+     * Compile a pre-computed classifier into its feature-major form.
+     */
+    public NaiveBayesClassifierCompiled(NaiveBayesClassifierPreComputed nb){
+        this(sameSourceForAllLabels(nb), nb.getVocab(), nb.empiricalLabelPriors());
+    }
+
+    /**
+     * Compile from a mapping of each label to the pre-computed classifier which holds that label's
+     * priors and likelihoods. A classifier only contributes likelihoods for features in its own vocab.
+     * This is how the one-vs-rest classifiers are compiled, where each label comes from its own learner.
+     */
+    NaiveBayesClassifierCompiled(Int2ObjectMap<NaiveBayesClassifierPreComputed> sourcePerLabel, IntSet vocab, boolean empiricalLabelPriors){
+        super();
+        this.empiricalLabelPriors = empiricalLabelPriors;
+        this.labels = new IntOpenHashSet(sourcePerLabel.keySet());
+        this.vocab = new IntOpenHashSet(vocab);
+
+        int numLabels = labels.size();
+        if ((long)this.vocab.size() * numLabels > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Vocabulary of " + this.vocab.size() + " features with " + numLabels + " labels is too large to compile.");
+
+        labelOrder = labels.toIntArray();
+        logPriors = new double[numLabels];
+        for (int i = 0; i < numLabels; i++) {
+            NaiveBayesClassifierPreComputed source = sourcePerLabel.get(labelOrder[i]);
+            // A source which ignores its priors when this classifier would not, contributes a prior of zero
+            logPriors[i] = source.empiricalLabelPriors() || !empiricalLabelPriors ? source.getLabelPriors().get(labelOrder[i]) : 0;
+        }
+
+        featureRows = new Int2IntOpenHashMap(this.vocab.size());
+        featureRows.defaultReturnValue(-1);
+        logLikelihoods = new double[this.vocab.size() * numLabels];
+
+        int row = 0;
+        for (int feature : this.vocab) {
+            featureRows.put(feature, row);
+            int offset = row * numLabels;
+            for (int i = 0; i < numLabels; i++) {
+                NaiveBayesClassifierPreComputed source = sourcePerLabel.get(labelOrder[i]);
+                if (source.getVocab().contains(feature)) {
+                    Int2DoubleMap likelihoods = source.getFeatureLikelihoods().get(labelOrder[i]);
+                    logLikelihoods[offset + i] = likelihoods == null ? 0 : likelihoods.get(feature);
+                }
+            }
+            row++;
+        }
+        computeBounds();
+    }
+
+    /**
+     * The greatest log likelihood of each feature, and the order in which topLabels() scores the labels.
+     */
+    private void computeBounds(){
+        int numLabels = labelOrder.length;
+        rowMaxima = new double[numLabels == 0 ? 0 : logLikelihoods.length / numLabels];
+        for (int row = 0; row < rowMaxima.length; row++) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = row * numLabels; i < (row + 1) * numLabels; i++)
+                max = Math.max(max, logLikelihoods[i]);
+            rowMaxima[row] = max;
+        }
+        Integer[] positions = new Integer[numLabels];
+        for (int i = 0; i < numLabels; i++) positions[i] = i;
+        Arrays.sort(positions, (a, b) -> Double.compare(logPriors[b], logPriors[a]));
+        positionsByPrior = new int[numLabels];
+        for (int i = 0; i < numLabels; i++) positionsByPrior[i] = positions[i];
+    }
+
+    /**
+     * @return The labels in the order of their dense label positions.
+     */
+    public int[] getLabelOrder() { return labelOrder; }
+
+    /**
+     * @return The log prior of each label, in the order of getLabelOrder().
+     */
+    public double[] getLogPriors() { return logPriors; }
+
+    /**
+     * @return The row of *feature* in the likelihood table, or -1 if the feature is not in the vocabulary.
+     */
+    public int featureRow(int feature) { return featureRows.get(feature); }
+
+    /**
+     * @return The feature-major table of log likelihoods. See featureRow().
+     */
+    public double[] getLogLikelihoods() { return logLikelihoods; }
+
+    /**
+     * @return a copy of this classifier with its log likelihoods stored at reduced precision, see NaiveBayesClassifierQuantized.
+     */
+    public NaiveBayesClassifierQuantized quantize(NaiveBayesClassifierQuantized.Precision precision) {
+        return new NaiveBayesClassifierQuantized(this, precision);
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores){
+        scores.reset(labelOrder);
+        logpriorPlusLoglikelihood(features, scores.scores());
+    }
+
+    /**
+     * Write log(P(label)) + log(P(features|label)) into *scores*, one entry per label in the order of getLabelOrder().
+     */
+    public void logpriorPlusLoglikelihood(int[] features, double[] scores){
+        int numLabels = labelOrder.length;
+        if (empiricalLabelPriors) System.arraycopy(logPriors, 0, scores, 0, numLabels);
+        else Arrays.fill(scores, 0, numLabels, 0);
+
+        for (int feature : features) {
+            int row = featureRows.get(feature);
+            if (row < 0) continue;
+            int offset = row * numLabels;
+            for (int i = 0; i < numLabels; i++)
+                scores[i] += logLikelihoods[offset + i];
+        }
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores){
+        int numLabels = labelOrder.length;
+        scores.reset(labelOrder);
+        double[] logScores = scores.scores();
+        if (empiricalLabelPriors) System.arraycopy(logPriors, 0, logScores, 0, numLabels);
+
+        for (int j = 0; j < features.size(); j++) {
+            int row = featureRows.get(features.feature(j));
+            if (row < 0) continue;
+            int offset = row * numLabels;
+            int count = features.count(j);
+            for (int i = 0; i < numLabels; i++)
+                logScores[i] += count * logLikelihoods[offset + i];
+        }
+    }
+
+    /**
+     * @return the label which argMax() of the full scores would give, pruning labels which cannot reach it.
+     */
+    @Override
+    public int bestLabel(int[] features, LabelScores scratch){
+        topLabels(features, 1, scratch);
+        return scratch.label(0);
+    }
+
+    @Override
+    public int bestLabel(SparseFeatureVector features, LabelScores scratch){
+        topLabels(features, 1, scratch);
+        return scratch.label(0);
+    }
+
+    /**
+     * Clear *top*, then fill it with the *k* labels of greatest log(P(label)) + log(P(features|label)), best first
+     * (or every label, if there are no more than *k*). Labels which cannot reach the k-th best score are not scored in full.
+     * The scores are not normalised, since that would need the scores of every label.
+     * Its working arrays are kept in *top*, so reusing *top* avoids allocating per document.
+     */
+    public void topLabels(int[] features, int k, LabelScores top){
+        int[] rows = top.intBuffer(ROWS, features.length);
+        int n = 0;
+        for (int feature : features) {
+            int row = featureRows.get(feature);
+            if (row >= 0) rows[n++] = row;
+        }
+        topLabels(rows, null, n, k, top);
+    }
+
+    public void topLabels(SparseFeatureVector features, int k, LabelScores top){
+        int[] rows = top.intBuffer(ROWS, features.size());
+        int[] counts = top.intBuffer(COUNTS, features.size());
+        int n = 0;
+        for (int j = 0; j < features.size(); j++) {
+            int row = featureRows.get(features.feature(j));
+            if (row < 0) continue;
+            rows[n] = row;
+            counts[n++] = features.count(j);
+        }
+        topLabels(rows, counts, n, k, top);
+    }
+
+    /**
+     * Score each label over the first *n* of *rows* (each occurring counts[j] times, or once if *counts* is null),
+     * dropping it as soon as its score plus the bound on the remaining rows falls below the k-th best score.
+     * Features are added in document order, so the scores are identical to those of logpriorPlusLoglikelihood().
+     */
+    private void topLabels(int[] rows, int[] counts, int n, int k, LabelScores top){
+        int numLabels = labelOrder.length;
+        if (numLabels == 0) throw new NoSuchElementException("Empty collection");
+        if (k < 1) throw new IllegalArgumentException("k must be at least 1");
+        k = Math.min(k, numLabels);
+
+        double[] remaining = top.doubleBuffer(REMAINING, n + 1); // remaining[j] = bound on the log likelihood of rows j onwards
+        remaining[n] = 0;
+        for (int j = n - 1; j >= 0; j--)
+            remaining[j] = remaining[j + 1] + (counts == null ? 1 : counts[j]) * rowMaxima[rows[j]];
+
+        double[] bestScores = top.doubleBuffer(BEST_SCORES, k);  // The best scores so far, in descending order (ties by label position)
+        int[] bestPositions = top.intBuffer(BEST_POSITIONS, k);
+        int found = 0;
+        for (int position : positionsByPrior) {
+            double score = empiricalLabelPriors ? logPriors[position] : 0;
+            // Allow for rounding, so that a label is only dropped when it is certainly worse than the k-th best
+            double threshold = found < k ? Double.NEGATIVE_INFINITY : bestScores[k - 1] - 1E-9 * (1 + Math.abs(bestScores[k - 1]));
+            boolean dropped = false;
+            for (int j = 0; j < n; j++) {
+                double logLikelihood = logLikelihoods[rows[j] * numLabels + position];
+                score += counts == null ? logLikelihood : counts[j] * logLikelihood;
+                if (score + remaining[j + 1] < threshold) {
+                    dropped = true;
+                    break;
+                }
+            }
+            if (dropped) continue;
+
+            // Insert into the best so far, if it beats the k-th best
+            int insert = found;
+            while (insert > 0 && (score > bestScores[insert - 1] || (score == bestScores[insert - 1] && position < bestPositions[insert - 1])))
+                insert--;
+            if (insert >= k) continue;
+            int shift = Math.min(found, k - 1) - insert;
+            System.arraycopy(bestScores, insert, bestScores, insert + 1, shift);
+            System.arraycopy(bestPositions, insert, bestPositions, insert + 1, shift);
+            bestScores[insert] = score;
+            bestPositions[insert] = position;
+            if (found < k) found++;
+        }
+
+        top.clear();
+        for (int i = 0; i < found; i++)
+            top.add(labelOrder[bestPositions[i]], bestScores[i]);
+    }
+
+    private static Int2ObjectMap<NaiveBayesClassifierPreComputed> sameSourceForAllLabels(NaiveBayesClassifierPreComputed nb){
+        Int2ObjectMap<NaiveBayesClassifierPreComputed> sourcePerLabel = new Int2ObjectOpenHashMap<>();
+        for (int label : nb.getLabels())
+            sourcePerLabel.put(label, nb);
+        return sourcePerLabel;
+    }
+}
@@ -0,0 +1,308 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+
+/**
+ * A NaiveBayesClassifier whose real joint counts are stored feature-major, in a FeatureLabelCountTable,
+ * rather than in one map of features per label. Training a feature occurrence is then a single probe of
+ * the table, and scoring a feature looks up its counts under every label at once. This pays off most for models with many labels.
+ *
+ * Pseudo-counts, priors and smoothing are as in NaiveBayesClassifier, and so are the models it produces:
+ * getJointCounts() materialises a label-major copy of the counts, which is what the JSON and binary formats
+ * write. So a saved model reads back as a NaiveBayesClassifier, which can be converted with:
+ *
+ *   featureMajorNB = new NaiveBayesClassifierFeatureMajor(NaiveBayesClassifier.readJson(file, pipeline))
+ */
+public class NaiveBayesClassifierFeatureMajor extends NaiveBayesClassifier {
+
+    private final FeatureLabelCountTable table;
+
+    private volatile ScoringColumns scoringColumns = null; // Built lazily on scoring, discarded with the scoring cache
+
+    public NaiveBayesClassifierFeatureMajor() {
+        super();
+        table = new FeatureLabelCountTable();
+    }
+
+    public NaiveBayesClassifierFeatureMajor(IntSet labels) {
+        super(labels);
+        table = new FeatureLabelCountTable(16, labels.size());
+    }
+
+    /**
+     * Copy the counts, pseudo-counts and settings of *nb* into a feature-major classifier.
+     */
+    public NaiveBayesClassifierFeatureMajor(NaiveBayesClassifier nb) {
+        super(new IntOpenHashSet(nb.getLabels()));
+        table = new FeatureLabelCountTable(nb.getVocab().size(), nb.getLabels().size());
+        vocab.addAll(nb.getVocab());
+        setLabelSmoothing(nb.getLabelSmoothing());
+        setFeatureSmoothing(nb.getFeatureSmoothing());
+        empiricalLabelPriors = nb.empiricalLabelPriors();
+        labelMultipliers.putAll(nb.labelMultipliers);
+        docCounts.putAll(nb.docCounts);
+        labelCounts.putAll(nb.labelCounts);
+        labelAlphas.putAll(nb.labelAlphas);
+        featureAlphaTotals.putAll(nb.featureAlphaTotals);
+        for (Int2ObjectMap.Entry<Int2DoubleOpenHashMap> entry : nb.labelFeatureAlphas.int2ObjectEntrySet())
+            labelFeatureAlphas.put(entry.getIntKey(), new Int2DoubleOpenHashMap(entry.getValue()));
+        table.addAll(nb.getJointCounts());
+    }
+
+    /**
+     * @return The table of real joint counts. If you modify it directly, call invalidateScoringCache().
+     */
+    public FeatureLabelCountTable getCountTable() { return table; }
+
+    /**
+     * @return A label-major copy of the real joint counts (modifying it does not affect the classifier).
+     */
+    @Override
+    public Int2ObjectMap<Int2DoubleOpenHashMap> getJointCounts() {
+        return table.toLabelMajor();
+    }
+
+    /*
+     * Training
+     */
+
+    @Override
+    public void trainOnInstance(int label, int[] features, double labelProbability, double weight) {
+        if (features.length == 0) return; // Skip documents with no features
+        if (label < 0) return; // Skip documents which bear no label
+        labels.add(label);
+        double increment = labelProbability * weight;
+        docCounts.addTo(label, increment);
+        labelCounts.addTo(label, features.length * increment);
+        int column = table.addColumn(label);
+        for (int feature : features) {
+            table.addToColumn(feature, column, increment);
+            vocab.add(feature);
+            featureChanged(feature);
+        }
+        invalidateScoringCache();
+    }
+
+    @Override
+    public void trainOnInstance(int label, SparseFeatureVector features, double labelProbability, double weight) {
+        if (features.isEmpty()) return; // Skip documents with no features
+        if (label < 0) return; // Skip documents which bear no label
+        labels.add(label);
+        double increment = labelProbability * weight;
+        docCounts.addTo(label, increment);
+        labelCounts.addTo(label, features.totalCount() * increment);
+        int column = table.addColumn(label);
+        for (int i = 0; i < features.size(); i++) {
+            table.addToColumn(features.feature(i), column, features.count(i) * increment);
+            vocab.add(features.feature(i));
+            featureChanged(features.feature(i));
+        }
+        invalidateScoringCache();
+    }
+
+    /**
+     * As NaiveBayesClassifier, and the rows of features which drop out of the vocab are removed from the table.
+     */
+    @Override
+    protected void forgetUntrained(int label, SparseFeatureVector features) {
+        int column = table.column(label);
+        for (int i = 0; i < features.size(); i++) {
+            int row = table.row(features.feature(i));
+            if (row < 0 || column < 0) continue;
+            double count = table.count(row, column);
+            if (count != 0 && Math.abs(count) < 1E-9) table.addToColumn(features.feature(i), column, -count); // Rounding error
+        }
+        super.forgetUntrained(label, features);
+        for (int i = 0; i < features.size(); i++)
+            if (!vocab.contains(features.feature(i))) table.remove(features.feature(i));
+    }
+
+    /**
+     * As NaiveBayesClassifier, and if the feature drops out of the vocab, its row (which holds no real counts)
+     * is removed from the table.
+     */
+    @Override
+    public void unlabelFeature(int feature, int label) {
+        super.unlabelFeature(feature, label);
+        if (!vocab.contains(feature)) table.remove(feature);
+    }
+
+    @Override
+    public void scaleCounts(double factor) {
+        table.scale(factor);
+        super.scaleCounts(factor); // Document and label counts
+    }
+
+    @Override
+    protected void mStep(NaiveBayesClassifier nb) {
+        labels.addAll(nb.labels);
+        vocab.addAll(nb.vocab);
+        addTo(docCounts, nb.docCounts);
+        addTo(labelCounts, nb.labelCounts);
+        if (nb instanceof NaiveBayesClassifierFeatureMajor)
+            table.addAll(((NaiveBayesClassifierFeatureMajor) nb).table);
+        else table.addAll(nb.jointCounts);
+        for (IntIterator i = nb.vocab.iterator(); i.hasNext();)
+            featureChanged(i.nextInt());
+        invalidateScoringCache();
+    }
+
+    @Override
+    public void deleteFeatures(IntSet features) {
+        if (features.isEmpty()) return;
+        double[] removed = table.removeAll(features);
+        for (int column = 0; column < removed.length; column++)
+            labelCounts.addTo(table.label(column), -removed[column]);
+        super.deleteFeatures(features); // Pseudo-counts and vocab
+    }
+
+    /*
+     * Counting
+     */
+
+    @Override
+    protected double jointCount(int feature, int label) {
+        return table.get(feature, label);
+    }
+
+    @Override
+    public double featureCount(int feature) {
+        return table.total(feature) + pseudoFeatureCount(feature);
+    }
+
+    @Override
+    public double realFeatureCount(int feature) {
+        return table.total(feature);
+    }
+
+    @Override
+    public IntSet getInfrequentFeatures(double frequencyCutoff) {
+        IntSet infrequent = new IntOpenHashSet();
+        for (IntIterator i = vocab.iterator(); i.hasNext();) {
+            int feature = i.nextInt();
+            if (featureCount(feature) < frequencyCutoff) infrequent.add(feature);
+        }
+        return infrequent;
+    }
+
+    @Override
+    public double[] likelihoods(int label, int[] features) {
+        int column = table.column(label);
+        Int2DoubleOpenHashMap alphas = labelFeatureAlphas.get(label);
+        double featureSmoothing = getFeatureSmoothing();
+        double denominator = likelihoodDenominator(label);
+        double[] likelihoods = new double[features.length];
+        for (int i = 0; i < features.length; i++) {
+            double numerator = featureSmoothing + (alphas == null ? 0 : alphas.get(features[i]));
+            int row = column < 0 ? -1 : table.row(features[i]);
+            if (row >= 0) numerator += table.count(row, column);
+            likelihoods[i] = numerator / denominator;
+        }
+        return likelihoods;
+    }
+
+    /*
+     * Scoring: one probe of the table per feature, for all labels.
+     */
+
+    @Override
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores) {
+        double[] logDenominators = labelLogPriorsAndDenominators(scores);
+        ScoringColumns columns = getScoringColumns(scores);
+        double[] logScores = scores.scores();
+        int vocabFeatures = 0;
+        for (int feature : features) {
+            if (!vocab.contains(feature)) continue;
+            columns.addLogNumerators(feature, 1, logScores);
+            vocabFeatures++;
+        }
+        for (int i = 0; i < scores.size(); i++)
+            logScores[i] -= vocabFeatures * logDenominators[i];
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores) {
+        double[] logDenominators = labelLogPriorsAndDenominators(scores);
+        ScoringColumns columns = getScoringColumns(scores);
+        double[] logScores = scores.scores();
+        int vocabFeatures = 0;
+        for (int j = 0; j < features.size(); j++) {
+            int feature = features.feature(j);
+            if (!vocab.contains(feature)) continue;
+            columns.addLogNumerators(feature, features.count(j), logScores);
+            vocabFeatures += features.count(j);
+        }
+        for (int i = 0; i < scores.size(); i++)
+            logScores[i] -= vocabFeatures * logDenominators[i];
+    }
+
+    @Override
+    public void invalidateScoringCache() {
+        super.invalidateScoringCache();
+        scoringColumns = null;
+    }
+
+    /**
+     * @return the table column and pseudo-counts of each label in *scores*, rebuilding them if they are out of date.
+     */
+    private ScoringColumns getScoringColumns(LabelScores scores) {
+        ScoringColumns columns = scoringColumns;
+        if (columns == null || !columns.isValidFor(scores)) {
+            columns = new ScoringColumns(this, scores);
+            scoringColumns = columns;
+        }
+        return columns;
+    }
+
+    /**
+     * The table column and pseudo-counts of each label, in the order of the labels being scored.
+     * Never modified once built, so it can be shared by threads which are classifying at once.
+     */
+    private static class ScoringColumns {
+
+        private final FeatureLabelCountTable table;
+        private final double featureSmoothing;
+        private final int[] labelOrder;
+        private final int[] columns;                    // Column of each label (-1 if it has no real counts)
+        private final Int2DoubleOpenHashMap[] alphas;   // Pseudo-counts of each label (null if it has none)
+
+        ScoringColumns(NaiveBayesClassifierFeatureMajor nb, LabelScores scores) {
+            table = nb.table;
+            featureSmoothing = nb.getFeatureSmoothing();
+            labelOrder = new int[scores.size()];
+            columns = new int[scores.size()];
+            alphas = new Int2DoubleOpenHashMap[scores.size()];
+            for (int i = 0; i < labelOrder.length; i++) {
+                labelOrder[i] = scores.label(i);
+                columns[i] = table.column(labelOrder[i]);
+                Int2DoubleOpenHashMap labelAlphas = nb.labelFeatureAlphas.get(labelOrder[i]);
+                alphas[i] = labelAlphas == null || labelAlphas.isEmpty() ? null : labelAlphas;
+            }
+        }
+
+        boolean isValidFor(LabelScores scores) {
+            if (scores.size() != labelOrder.length) return false;
+            for (int i = 0; i < labelOrder.length; i++)
+                if (scores.label(i) != labelOrder[i]) return false;
+            return true;
+        }
+
+        /**
+         * Add *count* * log(numerator of the likelihood of *feature*) under each label to *logScores*.
+         */
+        void addLogNumerators(int feature, int count, double[] logScores) {
+            int row = table.row(feature);
+            for (int i = 0; i < labelOrder.length; i++) {
+                double numerator = featureSmoothing;
+                if (alphas[i] != null) numerator += alphas[i].get(feature);
+                if (row >= 0 && columns[i] >= 0) numerator += table.count(row, columns[i]);
+                logScores[i] += count * Math.log(numerator);
+            }
+        }
+    }
+}
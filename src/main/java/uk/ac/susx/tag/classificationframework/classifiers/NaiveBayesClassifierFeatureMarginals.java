@@ -10,13 +10,13 @@ import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
-import org.apache.commons.math3.analysis.differentiation.UnivariateDifferentiableFunction;
 import org.apache.commons.math3.analysis.solvers.NewtonRaphsonSolver;
 import org.apache.commons.math3.exception.TooManyEvaluationsException;
 import uk.ac.susx.tag.classificationframework.Util;
 import uk.ac.susx.tag.classificationframework.datastructures.FeatureMarginalsConstraint;
 import uk.ac.susx.tag.classificationframework.datastructures.ModelState.ClassifierName;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
 
 import java.io.File;
@@ -25,6 +25,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -42,6 +43,7 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
 	public static final ClassifierName CLASSIFIER_NAME = ClassifierName.NB_FM;
 	private static final int OTHER_LABEL = Integer.MAX_VALUE;
 	private static final String OTHER_LABEL_NAME = "__OVR_OTHER_LABEL__";
+	private static final int MIN_WORDS_PER_SHARD = 1024; // Fewer words are not worth handing to another thread
 
 	private int posLabel;
 	private int otherLabel;
@@ -52,6 +54,14 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
 	// Map for optimal class-conditional probabilities per label
 	private Int2ObjectMap<Int2DoubleOpenHashMap> optClassCondFMProbs = new Int2ObjectOpenHashMap<>();
 
+	// Number of threads which solve the feature marginal constraints
+	private int solverParallelism = 1;
+
+	// Un-normalised P(w|+) of each word, found by the last call to calculateFeatureMarginals(), to start the next one from
+	private Int2DoubleOpenHashMap featureMarginalRoots = emptyRoots();
+
+	private SolveStatistics lastSolveStatistics = null;
+
 	private Map<String, Object> metadata = new HashMap<>();
 
 	// TODO: Might it be a good idea to have NaiveBayesFMPreComputed?
@@ -110,10 +120,46 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
 		return this.optClassCondFMProbs;
 	}
 
+	public int getSolverParallelism() {
+		return this.solverParallelism;
+	}
+
+	/**
+	 * Solve the feature marginal constraints of the vocabulary on *solverParallelism* threads (1 by default).
+	 */
+	public void setSolverParallelism(int solverParallelism) {
+		this.solverParallelism = solverParallelism;
+	}
+
+	/**
+	 * @return statistics of the solves of the last call to calculateFeatureMarginals(), or null if it has not been called.
+	 */
+	public SolveStatistics getLastSolveStatistics() {
+		return this.lastSolveStatistics;
+	}
+
+	/**
+	 * Forget the roots of the last call to calculateFeatureMarginals(), so that the next call solves from scratch.
+	 */
+	public void clearWarmStart() {
+		this.featureMarginalRoots = emptyRoots();
+	}
+
+	private static Int2DoubleOpenHashMap emptyRoots() {
+		Int2DoubleOpenHashMap roots = new Int2DoubleOpenHashMap();
+		roots.defaultReturnValue(Double.NaN);
+		return roots;
+	}
+
     /**
      * For the final version override the train method, first create NB/NB EM model as usual,
      * then calculate the Feature Marginals
      *
+     * One root is solved for per word of the unlabelled data, split across *solverParallelism* threads
+     * (see setSolverParallelism()). Where a previous call found a root for a word, that root is the
+     * starting point of its solve, which usually converges in a few evaluations when retraining on
+     * slightly different data. Statistics of the solves are available from getLastSolveStatistics().
+     *
      * @param unlabelledData
      * @param labelledData
      */
@@ -121,19 +167,22 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
         // P(w) for all words
         Int2DoubleOpenHashMap wordProb = Util.calculateWordProbabilities(unlabelledData);
 
+        // Each word gets a position in the primitive arrays of the problem
+        MarginalsProblem problem = new MarginalsProblem(wordProb.size(), this.maxEvaluationsNewtonRaphson);
+        Int2IntOpenHashMap positions = new Int2IntOpenHashMap(wordProb.size());
+        positions.defaultReturnValue(-1);
+        ObjectIterator<Int2DoubleMap.Entry> entries = wordProb.int2DoubleEntrySet().fastIterator();
+        for (int position = 0; entries.hasNext(); position++) {
+            Int2DoubleMap.Entry entry = entries.next();
+            problem.words[position] = entry.getIntKey();
+            problem.pW[position] = entry.getDoubleValue();
+            positions.put(entry.getIntKey(), position);
+        }
+
         // Calculate P(t|+) & P(t|-); the probabilities of a randomly drawn token from the labelled set being positive (ie. from a positively labelled instance) or negative
         // Calculate N(+), N(w|+), N(!w|+), N(-), N(w|-), N(!w|-)
-        double posTokenProb = 0.;
-        double negTokenProb = 0.;
         int tokenCount = 0;
         int posTokenCount = 0;
-        int negTokenCount = 0;
-
-        Int2IntOpenHashMap posWordMap = new Int2IntOpenHashMap();
-        posWordMap.defaultReturnValue(0);
-
-        Int2IntOpenHashMap negWordMap = new Int2IntOpenHashMap();
-        negWordMap.defaultReturnValue(0);
 
         for (ProcessedInstance i : labelledData) {
             // collecting P(t|+), N(+)
@@ -141,47 +190,33 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
             tokenCount += i.features.length;
 
             // N(w|+), N(w|-)
-            if (i.getLabel() == this.posLabel) {
-                for (int featIdx : i.features) {
-                    posWordMap.addTo(featIdx, 1);
-                }
-            } else {
-                for (int featIdx : i.features) {
-                    negWordMap.addTo(featIdx, 1);
-                }
+            int[] wordCounts = (i.getLabel() == this.posLabel) ? problem.nWPos : problem.nWNeg;
+            for (int featIdx : i.features) {
+                int position = positions.get(featIdx);
+                if (position >= 0) wordCounts[position]++;
             }
         }
 
-        // N(-)
-        negTokenCount = tokenCount - posTokenCount;
+        // N(+), N(-)
+        problem.posTokenCount = posTokenCount;
+        problem.negTokenCount = tokenCount - posTokenCount;
 
         // P(t|+), P(t|-)
-        posTokenProb = ((double) posTokenCount) / tokenCount;
-        negTokenProb = 1. - posTokenProb;
-
-        //-- Shorthands K, l --//
+        problem.posTokenProb = ((double) posTokenCount) / tokenCount;
+        problem.negTokenProb = 1. - problem.posTokenProb;
 
-        // l
-        double l = posTokenProb / negTokenProb;
+        // Shorthand l
+        problem.l = problem.posTokenProb / problem.negTokenProb;
 
-        // K
-        Int2DoubleOpenHashMap kMap = new Int2DoubleOpenHashMap();
-        kMap.defaultReturnValue(0);
-
-        for (int key : wordProb.keySet()) {
-            kMap.put(key, (wordProb.get(key) / negTokenProb));
-        }
-
-        // Target Interval [0, P(w) / P(t|+)]
-        Int2DoubleOpenHashMap targetIntervalMax = new Int2DoubleOpenHashMap();
-        for (int k : wordProb.keySet()) {
-            targetIntervalMax.put(k, (wordProb.get(k) / posTokenProb));
+        // Start from the roots of the last call
+        for (int position = 0; position < problem.words.length; position++) {
+            problem.startValues[position] = this.featureMarginalRoots.get(problem.words[position]);
         }
 
         // go for the real shit
-        UnivariateDifferentiableFunction featureMarginals = null;
-        NewtonRaphsonSolver solver = new NewtonRaphsonSolver();
-        double result = -1.;
+        ParallelRange.reduce(problem.words.length, this.solverParallelism, MIN_WORDS_PER_SHARD,
+                (from, to) -> { problem.solve(from, to); return null; },
+                (first, second) -> null);
 
         Int2DoubleOpenHashMap pWPosFMOptimisedMap = new Int2DoubleOpenHashMap();
         pWPosFMOptimisedMap.defaultReturnValue(-1.);
@@ -189,36 +224,25 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
         Int2DoubleOpenHashMap pWNegFMOptimisedMap = new Int2DoubleOpenHashMap();
         pWNegFMOptimisedMap.defaultReturnValue(-1.);
 
-        for (int key : wordProb.keySet()) {
-            // N(w|+), N(!w|+), N(w|-), N(!w|-), k
-            int nWPos = posWordMap.get(key);
-            int nNotWPos = posTokenCount - nWPos;
-            int nWNeg = negWordMap.get(key);
-            double k = kMap.get(key);
-            int nNotWNeg = negTokenCount - nWNeg;
-
-            // Check for N(!w|+) > 0 and N(w|-) > 0
-            if (nNotWPos > 0 && nWNeg > 0) {
-
-                featureMarginals = new FeatureMarginalsConstraint(nWPos, nNotWPos, nWNeg, nNotWNeg, k, l);
+        Int2DoubleOpenHashMap roots = new Int2DoubleOpenHashMap();
+        roots.defaultReturnValue(Double.NaN);
 
-                try {
-                    result = solver.solve(this.maxEvaluationsNewtonRaphson, featureMarginals, 0, targetIntervalMax.get(key));
-                } catch (TooManyEvaluationsException ex) {
-                    ex.printStackTrace();
-                }
-            }
+        for (int position = 0; position < problem.words.length; position++) {
+            double result = problem.roots[position];
 
             // Check result in target interval [0 P(w) / P(t|+)]
-            if (result > 0. && result <= targetIntervalMax.get(key)) {
+            if (result > 0. && result <= problem.targetIntervalMax(position)) {
+                int key = problem.words[position];
                 pWPosFMOptimisedMap.put(key, result);
+                roots.put(key, result);
 
                 // Solve for P(w|-)
-                double pWNegOpt = (wordProb.get(key) - (result * posTokenProb)) / negTokenProb;
+                double pWNegOpt = (problem.pW[position] - (result * problem.posTokenProb)) / problem.negTokenProb;
                 pWNegFMOptimisedMap.put(key, pWNegOpt);
             }
-            result = -1.;
         }
+        this.featureMarginalRoots = roots;
+        this.lastSolveStatistics = problem.statistics();
 
         // Normalise Probabilities
         pWPosFMOptimisedMap = this.normaliseProbabilities(pWPosFMOptimisedMap);
@@ -228,6 +252,155 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
         this.optClassCondFMProbs.put(this.otherLabel, pWNegFMOptimisedMap);
     }
 
+    /**
+     * The feature marginal constraint of every word, in primitive arrays indexed by the position of the word.
+     */
+    private static class MarginalsProblem {
+
+        final int[] words;
+        final double[] pW;            // P(w)
+        final int[] nWPos;            // N(w|+)
+        final int[] nWNeg;            // N(w|-)
+        final double[] startValues;   // Root found for the word by the last solve, or NaN
+
+        final double[] roots;         // Root found for the word, or -1
+        final int[] evaluations;      // Evaluations used to solve for the word, or -1 if it was not solved for
+        final boolean[] warmStarted;
+        final boolean[] failed;       // Whether the solve ran out of evaluations
+
+        final int maxEvaluations;
+        int posTokenCount;
+        int negTokenCount;
+        double posTokenProb;
+        double negTokenProb;
+        double l;
+
+        MarginalsProblem(int numWords, int maxEvaluations) {
+            this.words = new int[numWords];
+            this.pW = new double[numWords];
+            this.nWPos = new int[numWords];
+            this.nWNeg = new int[numWords];
+            this.startValues = new double[numWords];
+            this.roots = new double[numWords];
+            this.evaluations = new int[numWords];
+            this.warmStarted = new boolean[numWords];
+            this.failed = new boolean[numWords];
+            this.maxEvaluations = maxEvaluations;
+        }
+
+        /**
+         * Target Interval [0, P(w) / P(t|+)]
+         */
+        double targetIntervalMax(int position) {
+            return pW[position] / posTokenProb;
+        }
+
+        /**
+         * Solve for the words at positions [from, to), with a solver and constraint of its own.
+         */
+        void solve(int from, int to) {
+            NewtonRaphsonSolver solver = new NewtonRaphsonSolver();
+            FeatureMarginalsConstraint featureMarginals = new FeatureMarginalsConstraint(0, 0, 0, 0, 0, l);
+
+            for (int position = from; position < to; position++) {
+                roots[position] = -1.;
+                evaluations[position] = -1;
+
+                // N(w|+), N(!w|+), N(w|-), N(!w|-), K
+                int nWPosCount = nWPos[position];
+                int nNotWPos = posTokenCount - nWPosCount;
+                int nWNegCount = nWNeg[position];
+                int nNotWNeg = negTokenCount - nWNegCount;
+                double k = pW[position] / negTokenProb;
+
+                // Check for N(!w|+) > 0 and N(w|-) > 0
+                if (nNotWPos > 0 && nWNegCount > 0) {
+                    featureMarginals.set(nWPosCount, nNotWPos, nWNegCount, nNotWNeg, k, l);
+
+                    // Start from the previous root where it lies within the target interval, otherwise from its midpoint
+                    double max = targetIntervalMax(position);
+                    double start = startValues[position];
+                    warmStarted[position] = start > 0. && start < max;
+                    if (!warmStarted[position]) start = 0.5 * max;
+
+                    try {
+                        roots[position] = solver.solve(maxEvaluations, featureMarginals, 0, max, start);
+                        evaluations[position] = solver.getEvaluations();
+                    } catch (TooManyEvaluationsException ex) {
+                        failed[position] = true;
+                        evaluations[position] = maxEvaluations;
+                    }
+                }
+            }
+        }
+
+        SolveStatistics statistics() {
+            int solves = 0;
+            int roots = 0;
+            int warmStarts = 0;
+            int failures = 0;
+            long totalEvaluations = 0;
+            int[] solvedEvaluations = new int[words.length];
+            for (int position = 0; position < words.length; position++) {
+                if (evaluations[position] < 0) continue;
+                solvedEvaluations[solves++] = evaluations[position];
+                totalEvaluations += evaluations[position];
+                if (warmStarted[position]) warmStarts++;
+                if (failed[position]) failures++;
+                if (this.roots[position] > 0. && this.roots[position] <= targetIntervalMax(position)) roots++;
+            }
+            solvedEvaluations = Arrays.copyOf(solvedEvaluations, solves);
+            Arrays.sort(solvedEvaluations);
+            return new SolveStatistics(words.length, solves, roots, warmStarts, failures, totalEvaluations,
+                                       percentile(solvedEvaluations, 0.5), percentile(solvedEvaluations, 0.99),
+                                       solves == 0 ? 0 : solvedEvaluations[solves - 1]);
+        }
+
+        private static int percentile(int[] sorted, double fraction) {
+            return sorted.length == 0 ? 0 : sorted[(int) Math.ceil(fraction * sorted.length) - 1];
+        }
+    }
+
+    /**
+     * Iteration statistics of the solves of the last call to calculateFeatureMarginals(),
+     * e.g. for tuning the maximum number of evaluations (see setMaxEvaluationsNewtonRaphson()).
+     */
+    public static class SolveStatistics {
+
+        public final int words;                 // Words in the unlabelled data
+        public final int solves;                // Words which were solved for (the others have no labelled negative occurrence, or occur in every positive token)
+        public final int roots;                 // Solves which found a root in the target interval
+        public final int warmStarts;            // Solves which started from the root of the previous call
+        public final int failures;              // Solves which ran out of evaluations
+        public final long totalEvaluations;
+        public final int medianEvaluations;
+        public final int p99Evaluations;
+        public final int maxEvaluations;
+
+        public SolveStatistics(int words, int solves, int roots, int warmStarts, int failures, long totalEvaluations,
+                               int medianEvaluations, int p99Evaluations, int maxEvaluations) {
+            this.words = words;
+            this.solves = solves;
+            this.roots = roots;
+            this.warmStarts = warmStarts;
+            this.failures = failures;
+            this.totalEvaluations = totalEvaluations;
+            this.medianEvaluations = medianEvaluations;
+            this.p99Evaluations = p99Evaluations;
+            this.maxEvaluations = maxEvaluations;
+        }
+
+        public double meanEvaluations() {
+            return solves == 0 ? 0 : (double) totalEvaluations / solves;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d words, %d solves (%d warm started): %d roots, %d failures; evaluations mean %.1f, median %d, p99 %d, max %d",
+                    words, solves, warmStarts, roots, failures, meanEvaluations(), medianEvaluations, p99Evaluations, maxEvaluations);
+        }
+    }
+
     /**
      * Train on labelled documents.
      * See class documentation for training examples.
@@ -250,25 +423,46 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
     }
 
     @Override
-    public Int2DoubleOpenHashMap logpriorPlusLoglikelihood(int[] features)
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores)
     {
-        Int2DoubleOpenHashMap labelScores = new Int2DoubleOpenHashMap();
-        Int2DoubleMap labelPriors = labelPriors();
-        Int2DoubleOpenHashMap fmMap = null;
-        for (int label : this.labels) {
+        super.labelLogPriors(scores);
+        for (int i = 0; i < scores.size(); i++) {
+            int label = scores.label(i);
+            Int2DoubleOpenHashMap fmProbs = this.optClassCondFMProbs.get(label);
             double loglikelihood = 0.0;
             for (int feature : features) {
                 if (this.vocab.contains(feature)){
-                    if (super.getFromMap(label, this.optClassCondFMProbs).containsKey(feature)) {
-                        loglikelihood += Math.log(super.getFromMap(label, this.optClassCondFMProbs).get(feature));
+                    if (fmProbs != null && fmProbs.containsKey(feature)) {
+                        loglikelihood += Math.log(fmProbs.get(feature));
                     } else {
                         loglikelihood += Math.log(super.likelihood(feature, label));
                     }
                 }
             }
-            labelScores.put(label, Math.log(labelPriors.get(label)) + loglikelihood);
+            scores.addTo(i, loglikelihood);
+        }
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores)
+    {
+        super.labelLogPriors(scores);
+        for (int i = 0; i < scores.size(); i++) {
+            int label = scores.label(i);
+            Int2DoubleOpenHashMap fmProbs = this.optClassCondFMProbs.get(label);
+            double loglikelihood = 0.0;
+            for (int j = 0; j < features.size(); j++) {
+                int feature = features.feature(j);
+                if (this.vocab.contains(feature)){
+                    if (fmProbs != null && fmProbs.containsKey(feature)) {
+                        loglikelihood += features.count(j) * Math.log(fmProbs.get(feature));
+                    } else {
+                        loglikelihood += features.count(j) * Math.log(super.likelihood(feature, label));
+                    }
+                }
+            }
+            scores.addTo(i, loglikelihood);
         }
-        return labelScores;
     }
 
 	/**
@@ -428,4 +622,12 @@ public class NaiveBayesClassifierFeatureMarginals extends NaiveBayesClassifier i
 	public AbstractNaiveBayesClassifier getPrecomputedClassifier() {
 		return new NaiveBayesClassifierFMPreComputed(this);
 	}
+
+	/**
+	 * Feature marginal likelihoods are not a numerator over a per-label denominator, so they cannot be segmented.
+	 */
+	@Override
+	NaiveBayesClassifierSegmented.Snapshot segmentAll() {
+		throw new UnsupportedOperationException("NaiveBayesClassifierFeatureMarginals cannot be segmented, use getPrecomputedClassifier()");
+	}
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only naive bayes whose pre-computed log probabilities live in a memory-mapped file, rather
+ * than on the heap. Processes which map the same file share a single copy in the page cache, and
+ * opening a model costs almost nothing, since pages are only read as they are scored with.
+ *
+ * The file holds the same feature-major table as NaiveBayesClassifierCompiled, plus an
+ * open-addressing hash table from each feature to its row. Write one from a trained classifier with:
+ *
+ *   NaiveBayesClassifierMapped.write((NaiveBayesClassifierCompiled) nb.getPrecomputedClassifier(true), file)
+ *
+ * Then in each process which serves it:
+ *
+ *   mappedNB = new NaiveBayesClassifierMapped(file)
+ *
+ * Features and labels are stored by index, so the model must be used with the same pipeline
+ * (or at least the same indexers) that the original classifier was trained with.
+ *
+ * Layout (little-endian):
+ *
+ *   Header:   int MAGIC, int FORMAT_VERSION, int label count L, int feature count F, int table capacity C,
+ *             int empiricalLabelPriors (0 or 1), 8 bytes padding
+ *   Labels:   int[L] labels, padded to 8 bytes, then double[L] log priors
+ *   Table:    C slots of (int feature, int row), where a row of -1 marks an empty slot
+ *   Matrix:   double[F * L], where row r holds the log likelihoods of a feature under each label
+ */
+public class NaiveBayesClassifierMapped extends AbstractNaiveBayesClassifier {
+
+    static final int MAGIC = 0x504D424E;   // "NBMP" when read little-endian
+    static final int FORMAT_VERSION = 1;
+
+    private static final int HEADER_BYTES = 32;
+    private static final int MAX_CHUNK_BYTES = Integer.MAX_VALUE - 7; // A single mapping is limited to 2GB
+
+    private final int[] labelOrder;
+    private final double[] logPriors;
+    private final int numFeatures;
+    private final int tableMask;              // Table capacity - 1 (the capacity is a power of 2)
+    private final IntBuffer table;            // Off-heap slots of (feature, row)
+    private final DoubleBuffer[] matrix;      // Off-heap rows of log likelihoods, split into chunks of rowsPerChunk rows
+    private final int rowsPerChunk;
+
+    /**
+     * Map a model written by write().
+     */
+    public NaiveBayesClassifierMapped(File in) throws IOException {
+        super();
+        try (RandomAccessFile file = new RandomAccessFile(in, "r"); FileChannel channel = file.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC) throw new IOException("Not a mapped naive bayes model: " + in);
+            int version = header.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported mapped model version " + version + " (expected " + FORMAT_VERSION + "): " + in);
+            int numLabels = header.getInt();
+            numFeatures = header.getInt();
+            int capacity = header.getInt();
+            empiricalLabelPriors = header.getInt() != 0;
+
+            long position = HEADER_BYTES;
+            ByteBuffer labelBytes = channel.map(FileChannel.MapMode.READ_ONLY, position, labelSectionBytes(numLabels)).order(ByteOrder.LITTLE_ENDIAN);
+            labelOrder = new int[numLabels];
+            labelBytes.asIntBuffer().get(labelOrder);
+            labelBytes.position(pad8(numLabels * Integer.BYTES));
+            logPriors = new double[numLabels];
+            labelBytes.asDoubleBuffer().get(logPriors);
+            position += labelSectionBytes(numLabels);
+
+            tableMask = capacity - 1;
+            table = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) capacity * 2 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            position += (long) capacity * 2 * Integer.BYTES;
+
+            rowsPerChunk = rowsPerChunk(numLabels);
+            matrix = new DoubleBuffer[numChunks(numFeatures, rowsPerChunk)];
+            for (int chunk = 0; chunk < matrix.length; chunk++) {
+                int rows = Math.min(rowsPerChunk, numFeatures - chunk * rowsPerChunk);
+                long bytes = (long) rows * numLabels * Double.BYTES;
+                matrix[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                position += bytes;
+            }
+            if (position > channel.size()) throw new IOException("Truncated mapped model: " + in);
+        }
+        labels = new IntOpenHashSet(labelOrder);
+        vocab = null; // Materialised on demand, see getVocab()
+    }
+
+    /**
+     * @return The labels in the order of their dense label positions.
+     */
+    public int[] getLabelOrder() { return labelOrder; }
+
+    /**
+     * @return The row of *feature* in the likelihood table, or -1 if the feature is not in the vocabulary.
+     */
+    public int featureRow(int feature) {
+        int slot = mix(feature) & tableMask;
+        while (true) {
+            int row = table.get(2 * slot + 1);
+            if (row < 0) return -1;
+            if (table.get(2 * slot) == feature) return row;
+            slot = (slot + 1) & tableMask;
+        }
+    }
+
+    public int getNumFeatures() { return numFeatures; }
+
+    /**
+     * Builds an on-heap set of every feature in the table on first call, so avoid it where the vocabulary is large.
+     */
+    @Override
+    public synchronized IntSet getVocab() {
+        if (vocab == null) {
+            IntSet features = new IntOpenHashSet(numFeatures);
+            for (int slot = 0; slot <= tableMask; slot++)
+                if (table.get(2 * slot + 1) >= 0) features.add(table.get(2 * slot));
+            vocab = features;
+        }
+        return vocab;
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores) {
+        int numLabels = labelOrder.length;
+        scores.reset(labelOrder);
+        double[] logScores = scores.scores();
+        if (empiricalLabelPriors) System.arraycopy(logPriors, 0, logScores, 0, numLabels);
+
+        for (int feature : features) {
+            int row = featureRow(feature);
+            if (row < 0) continue;
+            DoubleBuffer chunk = matrix[row / rowsPerChunk];
+            int offset = (row % rowsPerChunk) * numLabels;
+            for (int i = 0; i < numLabels; i++)
+                logScores[i] += chunk.get(offset + i); // Absolute gets, so that threads can score at once
+        }
+    }
+
+    /**
+     * Write *compiled* to *out* in the layout that NaiveBayesClassifierMapped maps.
+     */
+    public static void write(NaiveBayesClassifierCompiled compiled, File out) throws IOException {
+        int[] labelOrder = compiled.getLabelOrder();
+        int numLabels = labelOrder.length;
+        IntSet vocab = compiled.getVocab();
+        int numFeatures = vocab.size();
+        int capacity = tableCapacity(numFeatures);
+
+        // Open-addressing table, with linear probing
+        int[] slots = new int[capacity * 2];
+        for (int slot = 0; slot < capacity; slot++) slots[2 * slot + 1] = -1;
+        for (int feature : vocab) {
+            int slot = mix(feature) & (capacity - 1);
+            while (slots[2 * slot + 1] >= 0) slot = (slot + 1) & (capacity - 1);
+            slots[2 * slot] = feature;
+            slots[2 * slot + 1] = compiled.featureRow(feature);
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(out, "rw"); FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(numLabels).putInt(numFeatures).putInt(capacity)
+                  .putInt(compiled.empiricalLabelPriors() ? 1 : 0);
+            writeFully(channel, header, HEADER_BYTES);
+
+            ByteBuffer labelBytes = ByteBuffer.allocate((int) labelSectionBytes(numLabels)).order(ByteOrder.LITTLE_ENDIAN);
+            labelBytes.asIntBuffer().put(labelOrder);
+            labelBytes.position(pad8(numLabels * Integer.BYTES));
+            labelBytes.asDoubleBuffer().put(compiled.getLogPriors());
+            writeFully(channel, labelBytes, labelBytes.capacity());
+
+            writeInts(channel, slots);
+            writeDoubles(channel, compiled.getLogLikelihoods(), numFeatures * numLabels);
+        }
+    }
+
+    private static void writeInts(FileChannel channel, int[] ints) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        int perBuffer = buffer.capacity() / Integer.BYTES;
+        for (int from = 0; from < ints.length; from += perBuffer) {
+            int length = Math.min(perBuffer, ints.length - from);
+            buffer.clear();
+            buffer.asIntBuffer().put(ints, from, length);
+            writeFully(channel, buffer, length * Integer.BYTES);
+        }
+    }
+
+    private static void writeDoubles(FileChannel channel, double[] doubles, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        int perBuffer = buffer.capacity() / Double.BYTES;
+        for (int from = 0; from < count; from += perBuffer) {
+            int length = Math.min(perBuffer, count - from);
+            buffer.clear();
+            buffer.asDoubleBuffer().put(doubles, from, length);
+            writeFully(channel, buffer, length * Double.BYTES);
+        }
+    }
+
+    /**
+     * Write the first *bytes* bytes of *buffer*, whatever its position.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        buffer.position(0);
+        buffer.limit(bytes);
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static long labelSectionBytes(int numLabels) {
+        return pad8(numLabels * Integer.BYTES) + (long) numLabels * Double.BYTES;
+    }
+
+    private static int pad8(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    private static int tableCapacity(int numFeatures) {
+        int capacity = 2;
+        while (capacity < numFeatures * 2L) capacity <<= 1; // Load factor of at most 0.5
+        if ((long) capacity * 2 * Integer.BYTES > MAX_CHUNK_BYTES)
+            throw new IllegalArgumentException("Vocabulary of " + numFeatures + " features is too large to map.");
+        return capacity;
+    }
+
+    private static int rowsPerChunk(int numLabels) {
+        return Math.max(1, MAX_CHUNK_BYTES / (Math.max(1, numLabels) * Double.BYTES));
+    }
+
+    private static int numChunks(int numFeatures, int rowsPerChunk) {
+        return (numFeatures + rowsPerChunk - 1) / rowsPerChunk;
+    }
+
+    /**
+     * Spread the bits of a feature index, so that runs of consecutive indices don't cluster in the table.
+     * Also used by FeatureLabelCountTable.
+     */
+    static int mix(int feature) {
+        int h = feature * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -5,6 +5,7 @@ import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 
 /**
  * Created by thk22 on 02/02/2015.
@@ -12,6 +13,7 @@ import it.unimi.dsi.fastutil.ints.IntSet;
 public class NaiveBayesClassifierOVRPreComputed extends NaiveBayesClassifierPreComputed {
 	private Int2ObjectMap<Int2DoubleOpenHashMap> optClassCondFMProbs = new Int2ObjectOpenHashMap<>();
 	private Int2ObjectMap<AbstractNaiveBayesClassifier> ovrLearners = new Int2ObjectOpenHashMap<>();
+	private volatile OVRScoringTable fusedScoring = null; // Built on first use, when there is more than one learner
 
 	public NaiveBayesClassifierOVRPreComputed(Int2DoubleMap labelPriors,
 											 Int2ObjectMap<Int2DoubleMap> featureLikelihoods,
@@ -38,18 +40,55 @@ public class NaiveBayesClassifierOVRPreComputed extends NaiveBayesClassifierPreC
 		labels.addAll(nbOVR.getLabels());
 	}
 
+	/**
+	 * With more than one learner, all learners are scored in a single pass over the features (see OVRScoringTable).
+	 */
 	@Override
-	public Int2DoubleOpenHashMap logpriorPlusLoglikelihood(int[] features)
+	public void logpriorPlusLoglikelihood(int[] features, LabelScores scores)
 	{
-		Int2DoubleOpenHashMap jll = new Int2DoubleOpenHashMap();
+		if (this.ovrLearners.size() > 1) {
+			OVRScoringTable table = fusedScoring;
+			if (table == null) {
+				table = new OVRScoringTable(this.ovrLearners, vocab);
+				fusedScoring = table;
+			}
+			table.logpriorPlusLoglikelihood(features, scores);
+			return;
+		}
+		scores.clear();
+		LabelScores learnerScores = scores.scratch();
 		for (AbstractNaiveBayesClassifier learner : this.ovrLearners.values()) {
-			jll.putAll(learner.logpriorPlusLoglikelihood(features));
+			learner.logpriorPlusLoglikelihood(features, learnerScores);
+			NaiveBayesOVRClassifier.addAllButOtherLabel(learnerScores, scores);
 		}
+	}
+
+	@Override
+	public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores)
+	{
+		this.logpriorPlusLoglikelihood(features.toDense(), scores);
+	}
 
-		// Remove other label again
-		jll.remove(NaiveBayesOVRClassifier.OTHER_LABEL);
+	/**
+	 * Each label is compiled from the learner responsible for it. In the binary case there is
+	 * a single learner (keyed by OTHER_LABEL) responsible for both labels.
+	 */
+	@Override
+	public NaiveBayesClassifierCompiled compile() {
+		if (this.ovrLearners.isEmpty()) return super.compile(); // Constructed directly from priors and likelihoods
 
-		return jll;
+		Int2ObjectMap<NaiveBayesClassifierPreComputed> sourcePerLabel = new Int2ObjectOpenHashMap<>();
+		for (Int2ObjectMap.Entry<AbstractNaiveBayesClassifier> entry : this.ovrLearners.int2ObjectEntrySet()) {
+			NaiveBayesClassifierPreComputed learner = (NaiveBayesClassifierPreComputed) entry.getValue();
+			if (entry.getIntKey() == NaiveBayesOVRClassifier.OTHER_LABEL) {
+				for (int label : learner.getLabels()) {
+					if (label != NaiveBayesOVRClassifier.OTHER_LABEL) sourcePerLabel.put(label, learner);
+				}
+			} else {
+				sourcePerLabel.put(entry.getIntKey(), learner);
+			}
+		}
+		return new NaiveBayesClassifierCompiled(sourcePerLabel, vocab, true);
 	}
 
 }
@@ -26,6 +26,7 @@ import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
 
 import java.io.File;
@@ -85,17 +86,39 @@ public class NaiveBayesClassifierPreComputed extends AbstractNaiveBayesClassifie
 	protected NaiveBayesClassifierPreComputed() {}
 
     @Override
-    public Int2DoubleOpenHashMap logpriorPlusLoglikelihood(int[] features){
-        Int2DoubleOpenHashMap labelScores = new Int2DoubleOpenHashMap();
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores){
+        scores.clear();
         for (int label : labels){
+            Int2DoubleMap likelihoods = featureLikelihoods.get(label);
             double loglikelihood = 0;
             for (int feature : features) {
-                if (vocab.contains(feature)) loglikelihood += featureLikelihoods.get(label).get(feature);
+                if (vocab.contains(feature)) loglikelihood += likelihoods.get(feature);
             }
             double labelPrior = empiricalLabelPriors ? labelPriors.get(label) : 0;
-            labelScores.put(label, labelPrior + loglikelihood);
+            scores.add(label, labelPrior + loglikelihood);
         }
-        return labelScores;
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores){
+        scores.clear();
+        for (int label : labels){
+            Int2DoubleMap likelihoods = featureLikelihoods.get(label);
+            double loglikelihood = 0;
+            for (int i = 0; i < features.size(); i++) {
+                int feature = features.feature(i);
+                if (vocab.contains(feature)) loglikelihood += features.count(i) * likelihoods.get(feature);
+            }
+            double labelPrior = empiricalLabelPriors ? labelPriors.get(label) : 0;
+            scores.add(label, labelPrior + loglikelihood);
+        }
+    }
+
+    /**
+     * @return the feature-major form of this classifier, see NaiveBayesClassifierCompiled.
+     */
+    public NaiveBayesClassifierCompiled compile() {
+        return new NaiveBayesClassifierCompiled(this);
     }
 
     /**
@@ -0,0 +1,214 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+
+import java.util.Arrays;
+
+/**
+ * A copy of a NaiveBayesClassifierCompiled, with its table of log likelihoods stored at reduced precision,
+ * to shrink the memory footprint of a model (and so fit more of its table in cache while scoring).
+ *
+ * Precisions:
+ *
+ *   FLOAT: each log likelihood is a float (2x smaller than the compiled form).
+ *   SHORT: each log likelihood is a 16 bit code (4x smaller).
+ *   BYTE:  each log likelihood is an 8 bit code (8x smaller).
+ *
+ * Codes are linear over the range of log likelihoods of each label: the log likelihood of a feature
+ * under label i is approximately offset[i] + scale[i] * code. So scoring sums the codes of a
+ * document's features per label, and converts the sum to a log likelihood once at the end.
+ *
+ * Obtain one with:
+ *
+ *   quantizedNB = compiledNB.quantize(Precision.SHORT)
+ *
+ * Use validate() to measure how far its predictions move from the full precision classifier on
+ * some representative documents, before deciding on a precision.
+ */
+public class NaiveBayesClassifierQuantized extends AbstractNaiveBayesClassifier {
+
+    public enum Precision {
+        FLOAT(Float.BYTES, 0),
+        SHORT(Short.BYTES, 0xFFFF),
+        BYTE(Byte.BYTES, 0xFF);
+
+        private final int bytes;
+        private final int maxCode;   // Largest (unsigned) code, or 0 if values are not coded
+
+        Precision(int bytes, int maxCode) {
+            this.bytes = bytes;
+            this.maxCode = maxCode;
+        }
+
+        public int getBytes() { return bytes; }
+    }
+
+    private final Precision precision;
+    private final int[] labelOrder;
+    private final double[] logPriors;
+    private final Int2IntOpenHashMap featureRows;  // Feature --> row in the table (-1 if feature not in vocab)
+
+    // Exactly one of the following tables is used, according to the precision
+    private final float[] floatTable;
+    private final short[] shortTable;
+    private final byte[] byteTable;
+
+    private final double[] offsets;   // Per label, the log likelihood of code 0
+    private final double[] scales;    // Per label, the log likelihood step of each code
+
+    public NaiveBayesClassifierQuantized(NaiveBayesClassifierCompiled compiled, Precision precision) {
+        super();
+        this.precision = precision;
+        this.empiricalLabelPriors = compiled.empiricalLabelPriors();
+        this.labels = new IntOpenHashSet(compiled.getLabels());
+
+        labelOrder = compiled.getLabelOrder().clone();
+        logPriors = compiled.getLogPriors().clone();
+        int numLabels = labelOrder.length;
+
+        featureRows = new Int2IntOpenHashMap(compiled.getVocab().size());
+        featureRows.defaultReturnValue(-1);
+        for (int feature : compiled.getVocab())
+            featureRows.put(feature, compiled.featureRow(feature));
+        this.vocab = featureRows.keySet(); // No separate copy of the vocab
+
+        double[] logLikelihoods = compiled.getLogLikelihoods();
+        int size = vocab.size() * numLabels;
+        offsets = new double[numLabels];
+        scales = new double[numLabels];
+
+        if (precision == Precision.FLOAT) {
+            floatTable = new float[size];
+            for (int i = 0; i < size; i++)
+                floatTable[i] = (float) logLikelihoods[i];
+            shortTable = null;
+            byteTable = null;
+        } else {
+            // Find the range of log likelihoods under each label
+            double[] max = new double[numLabels];
+            Arrays.fill(offsets, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            for (int i = 0; i < size; i++) {
+                int label = i % numLabels;
+                offsets[label] = Math.min(offsets[label], logLikelihoods[i]);
+                max[label] = Math.max(max[label], logLikelihoods[i]);
+            }
+            for (int label = 0; label < numLabels; label++) {
+                if (size == 0) offsets[label] = 0;
+                scales[label] = max[label] > offsets[label] ? (max[label] - offsets[label]) / precision.maxCode : 0;
+            }
+
+            shortTable = precision == Precision.SHORT ? new short[size] : null;
+            byteTable = precision == Precision.BYTE ? new byte[size] : null;
+            for (int i = 0; i < size; i++) {
+                int label = i % numLabels;
+                int code = scales[label] == 0 ? 0 : (int) Math.round((logLikelihoods[i] - offsets[label]) / scales[label]);
+                if (shortTable != null) shortTable[i] = (short) code;
+                else byteTable[i] = (byte) code;
+            }
+            floatTable = null;
+        }
+    }
+
+    public Precision getPrecision() { return precision; }
+
+    /**
+     * @return The labels in the order of their dense label positions.
+     */
+    public int[] getLabelOrder() { return labelOrder; }
+
+    /**
+     * @return The approximate size in bytes of the model: the table of log likelihoods, the index from
+     *         feature to row, and the per label arrays.
+     */
+    public long footprintBytes() {
+        long table = (long) featureRows.size() * labelOrder.length * precision.bytes;
+        long index = (long) HashCommon.arraySize(featureRows.size(), Hash.DEFAULT_LOAD_FACTOR) * 2 * Integer.BYTES; // Keys and values
+        long perLabel = (long) labelOrder.length * (Integer.BYTES + 3 * Double.BYTES);  // Label order, priors, offsets and scales
+        return table + index + perLabel;
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores) {
+        int numLabels = labelOrder.length;
+        scores.reset(labelOrder);
+        double[] logScores = scores.scores();
+
+        int vocabFeatures = 0;
+        for (int feature : features) {
+            int row = featureRows.get(feature);
+            if (row < 0) continue;
+            int offset = row * numLabels;
+            switch (precision) {
+                case FLOAT:
+                    for (int i = 0; i < numLabels; i++) logScores[i] += floatTable[offset + i];
+                    break;
+                case SHORT:
+                    for (int i = 0; i < numLabels; i++) logScores[i] += shortTable[offset + i] & 0xFFFF;
+                    break;
+                case BYTE:
+                    for (int i = 0; i < numLabels; i++) logScores[i] += byteTable[offset + i] & 0xFF;
+                    break;
+            }
+            vocabFeatures++;
+        }
+
+        for (int i = 0; i < numLabels; i++) {
+            if (precision != Precision.FLOAT)  // Convert the sum of codes to a sum of log likelihoods
+                logScores[i] = vocabFeatures * offsets[i] + scales[i] * logScores[i];
+            if (empiricalLabelPriors)
+                logScores[i] += logPriors[i];
+        }
+    }
+
+    /**
+     * Compare the predictions of a reduced precision classifier with those of the full precision classifier
+     * on *documents*.
+     */
+    public static ValidationReport validate(AbstractNaiveBayesClassifier fullPrecision, AbstractNaiveBayesClassifier reduced, Iterable<ProcessedInstance> documents) {
+        LabelScores expected = new LabelScores();
+        LabelScores actual = new LabelScores();
+        int numDocuments = 0;
+        int labelFlips = 0;
+        double maxDeviation = 0;
+        double totalDeviation = 0;
+        for (ProcessedInstance document : documents) {
+            fullPrecision.predict(document.features, expected);
+            reduced.predict(document.features, actual);
+            double deviation = 0;
+            for (int i = 0; i < expected.size(); i++)
+                deviation = Math.max(deviation, Math.abs(expected.score(i) - actual.get(expected.label(i))));
+            maxDeviation = Math.max(maxDeviation, deviation);
+            totalDeviation += deviation;
+            if (expected.size() > 0 && expected.argMax() != actual.argMax()) labelFlips++;
+            numDocuments++;
+        }
+        return new ValidationReport(numDocuments, maxDeviation, numDocuments == 0 ? 0 : totalDeviation / numDocuments,
+                                    numDocuments == 0 ? 0 : (double) labelFlips / numDocuments);
+    }
+
+    public static class ValidationReport {
+
+        public final int documents;
+        public final double maxPosteriorDeviation;    // Largest absolute difference in P(label|document) over all labels and documents
+        public final double meanPosteriorDeviation;   // Mean over documents of the largest absolute difference in P(label|document)
+        public final double labelFlipRate;            // Fraction of documents whose most probable label differs
+
+        public ValidationReport(int documents, double maxPosteriorDeviation, double meanPosteriorDeviation, double labelFlipRate) {
+            this.documents = documents;
+            this.maxPosteriorDeviation = maxPosteriorDeviation;
+            this.meanPosteriorDeviation = meanPosteriorDeviation;
+            this.labelFlipRate = labelFlipRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d documents: max posterior deviation %.2e, mean %.2e, label flip rate %.4f",
+                    documents, maxPosteriorDeviation, meanPosteriorDeviation, labelFlipRate);
+        }
+    }
+}
@@ -1,16 +1,19 @@
 package uk.ac.susx.tag.classificationframework.classifiers;
 
 import com.google.gson.stream.JsonReader;
-import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import uk.ac.susx.tag.classificationframework.Util;
 import uk.ac.susx.tag.classificationframework.datastructures.ModelState.ClassifierName;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -23,6 +26,7 @@ public class NaiveBayesClassifierSFE extends NaiveBayesClassifier implements Nai
     private Int2DoubleOpenHashMap labelPriorTimesLikelihoodPerLabelSum;
     private Int2DoubleOpenHashMap unlabelledWordProbs;
 	private Map<String, Object> metadata = new HashMap<>();
+	private int trainingParallelism = 1;
 
     /**
      * See 1-parameter constructor for reasons why you might want to pre-specify your
@@ -52,6 +56,20 @@ public class NaiveBayesClassifierSFE extends NaiveBayesClassifier implements Nai
 		return this.metadata;
 	}
 
+	public int getTrainingParallelism() {
+		return trainingParallelism;
+	}
+
+	/**
+	 * Score the labelled documents on *trainingParallelism* threads when training (1 by default).
+	 */
+	public void setTrainingParallelism(int trainingParallelism) {
+		this.trainingParallelism = trainingParallelism;
+	}
+
+	/**
+	 * @return for each label c, log(sum over the labelled documents d of P(c) * P(d|c))
+	 */
 	public Int2DoubleOpenHashMap getLabelPriorTimesLikelihoodPerLabelSum() {
 		return labelPriorTimesLikelihoodPerLabelSum;
 	}
@@ -75,29 +93,92 @@ public class NaiveBayesClassifierSFE extends NaiveBayesClassifier implements Nai
         // Calculate P(w) over the unlabelled data -> (Formula 10, P(wi)u, enumerator)
         this.unlabelledWordProbs = Util.calculateWordProbabilities(unlabelledDocs);
 
-        // Get P(c) * P(w|c) (= log(P(c)) + log(P(w|c))) from labelled data
+        // Sum over all P(c) * P(w|c) of the labelled data (= likelihood * prior) -> (Formula 10, denominator)
         this.labelPriorTimesLikelihoodPerLabelSum.clear();
+        this.addLabelPriorTimesLikelihoods(labelledDocs);
+    }
 
-        // Sum over all P(c) * P(w|c) of the labelled data (= likelihood * prior) -> (Formula 10, denominator)
+    public void train(Iterable<ProcessedInstance> labelledDocs, Iterable<ProcessedInstance> unlabelledDocs)
+    {
+        this.train(labelledDocs, unlabelledDocs, 1);
+    }
+
+    /**
+     * Train on newly arrived labelled documents, without revisiting the documents already trained on.
+     *
+     * The counts are exactly as if all documents had been passed to train(), but the terms of the earlier
+     * documents in the denominator of Formula 10 keep the values they had under the model at the time.
+     * Call train() on all documents from time to time to recompute them under the current model.
+     * The P(w) of the unlabelled data is left as it is.
+     */
+    public void update(Iterable<ProcessedInstance> newLabelledDocs, double weight)
+    {
+        super.train(newLabelledDocs, weight);
+        if (this.unlabelledWordProbs == null) this.unlabelledWordProbs = new Int2DoubleOpenHashMap();
+        this.addLabelPriorTimesLikelihoods(newLabelledDocs);
+    }
+
+    public void update(Iterable<ProcessedInstance> newLabelledDocs)
+    {
+        this.update(newLabelledDocs, 1);
+    }
+
+    /**
+     * Add log(P(c)) + log(P(d|c)) of each labelled document d to the log of the sum for each label c,
+     * using log-sum-exp so that the likelihoods of long documents do not underflow. Documents are scored
+     * on *trainingParallelism* threads.
+     */
+    private void addLabelPriorTimesLikelihoods(Iterable<ProcessedInstance> labelledDocs)
+    {
+        int[] labelOrder = super.getLabels().toIntArray();
+        List<ProcessedInstance> documents = new ArrayList<>();
         for (ProcessedInstance labelledDoc : labelledDocs) {
-            Int2DoubleOpenHashMap labelScores = new Int2DoubleOpenHashMap();
-            Int2DoubleMap labelPriors = super.labelPriors();
-            for (int label : super.getLabels()) {
-                double likelihood = 1.;
-                for (int feature : labelledDoc.features) {
-                    if (vocab.contains(feature)) {
-                        likelihood *= super.likelihood(feature, label);
+            documents.add(labelledDoc);
+        }
+
+        double[] logSums = ParallelRange.reduce(documents.size(), this.trainingParallelism, 1,
+                (from, to) -> this.logSumLabelPriorTimesLikelihoods(documents, from, to, labelOrder),
+                (first, second) -> {
+                    for (int i = 0; i < first.length; i++) {
+                        first[i] = logAdd(first[i], second[i]);
                     }
-                }
-                this.labelPriorTimesLikelihoodPerLabelSum.addTo(label, (labelPriors.get(label) * likelihood));
-            }
+                    return first;
+                });
 
+        for (int i = 0; i < labelOrder.length; i++) {
+            if (logSums[i] == Double.NEGATIVE_INFINITY) continue; // No documents
+            double logSum = this.labelPriorTimesLikelihoodPerLabelSum.containsKey(labelOrder[i])
+                    ? logAdd(this.labelPriorTimesLikelihoodPerLabelSum.get(labelOrder[i]), logSums[i])
+                    : logSums[i];
+            this.labelPriorTimesLikelihoodPerLabelSum.put(labelOrder[i], logSum);
         }
     }
 
-    public void train(Iterable<ProcessedInstance> labelledDocs, Iterable<ProcessedInstance> unlabelledDocs)
+    /**
+     * @return for each label of *labelOrder*, the log of the sum of P(c) * P(d|c) over the documents in [from, to).
+     */
+    private double[] logSumLabelPriorTimesLikelihoods(List<ProcessedInstance> documents, int from, int to, int[] labelOrder)
     {
-        this.train(labelledDocs, unlabelledDocs, 1);
+        double[] logSums = new double[labelOrder.length];
+        Arrays.fill(logSums, Double.NEGATIVE_INFINITY);
+        LabelScores scores = new LabelScores(labelOrder.length);
+        for (int d = from; d < to; d++) {
+            super.logpriorPlusLoglikelihood(documents.get(d).features, scores); // Plain naive bayes log(P(c)) + log(P(d|c))
+            for (int i = 0; i < labelOrder.length; i++) {
+                logSums[i] = logAdd(logSums[i], scores.get(labelOrder[i]));
+            }
+        }
+        return logSums;
+    }
+
+    /**
+     * log(exp(a) + exp(b)), without underflow.
+     */
+    private static double logAdd(double a, double b)
+    {
+        double max = Math.max(a, b);
+        if (max == Double.NEGATIVE_INFINITY) return max;
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
     }
 
 	public static NaiveBayesClassifierSFE readJson(JsonReader reader, FeatureExtractionPipeline pipeline) throws IOException {
@@ -123,19 +204,34 @@ public class NaiveBayesClassifierSFE extends NaiveBayesClassifier implements Nai
 	}
 
     @Override
-    public Int2DoubleOpenHashMap logpriorPlusLoglikelihood(int[] features){
-        Int2DoubleOpenHashMap labelScores = new Int2DoubleOpenHashMap();
-        Int2DoubleMap labelPriors = labelPriors();
-        for (int label : labels) {
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores){
+        labelLogPriors(scores);
+        for (int i = 0; i < scores.size(); i++) {
+            int label = scores.label(i);
             double loglikelihood = 0.0;
             for (int feature : features) {
                 if (vocab.contains(feature)){
                     loglikelihood += this.sfeLogLikelihood(feature, label);
                 }
             }
-            labelScores.put(label, Math.log(labelPriors.get(label)) + loglikelihood);
+            scores.addTo(i, loglikelihood);
+        }
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores){
+        labelLogPriors(scores);
+        for (int i = 0; i < scores.size(); i++) {
+            int label = scores.label(i);
+            double loglikelihood = 0.0;
+            for (int j = 0; j < features.size(); j++) {
+                int feature = features.feature(j);
+                if (vocab.contains(feature)){
+                    loglikelihood += features.count(j) * this.sfeLogLikelihood(feature, label);
+                }
+            }
+            scores.addTo(i, loglikelihood);
         }
-        return labelScores;
     }
 
 	public AbstractNaiveBayesClassifier getPrecomputedClassifier()
@@ -143,6 +239,15 @@ public class NaiveBayesClassifierSFE extends NaiveBayesClassifier implements Nai
 		return new NaiveBayesClassifierSFEPrecomputed(this);
 	}
 
+	/**
+	 * SFE likelihoods are not a numerator over a per-label denominator, so they cannot be segmented.
+	 */
+	@Override
+	NaiveBayesClassifierSegmented.Snapshot segmentAll()
+	{
+		throw new UnsupportedOperationException("NaiveBayesClassifierSFE cannot be segmented, use getPrecomputedClassifier()");
+	}
+
     private double sfeLogLikelihood(int feature, int label)
     {
         /**
@@ -157,7 +262,7 @@ public class NaiveBayesClassifierSFE extends NaiveBayesClassifier implements Nai
         // Add log(P(w)u)
         sfeLogLikelihood += (this.unlabelledWordProbs.containsKey(feature)) ? Math.log(this.unlabelledWordProbs.get(feature)) : 0;
 
-        // Subtract sum of labelPriorsTimesLikelihood per class
+        // Subtract log of the sum of labelPriorsTimesLikelihood per class
         sfeLogLikelihood -= this.labelPriorTimesLikelihoodPerLabelSum.get(label);
 
         return sfeLogLikelihood;
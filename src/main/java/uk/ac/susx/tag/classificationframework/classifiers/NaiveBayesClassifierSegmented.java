@@ -0,0 +1,311 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.ints.IntSets;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A snapshot of a NaiveBayesClassifier for serving, which (unlike a NaiveBayesClassifierPreComputed) can be
+ * brought up to date with the classifier at a cost proportional to what changed since the last snapshot,
+ * rather than to the size of the model.
+ *
+ * The log likelihood of a feature under a label is the log of its numerator (smoothing + pseudo-counts +
+ * real counts) minus the log of the label's denominator. Training on a document only changes the numerators
+ * of its features, while the denominators and priors are one number per label. So the snapshot holds:
+ *
+ *   base:   an immutable, feature-major table of the log numerators of every feature
+ *   delta:  the log numerators of the features which have changed since the base was built
+ *
+ * plus the log priors and log denominators of each label, which are recalculated for every snapshot.
+ * Scoring looks each feature up in the delta, then the base. Usage:
+ *
+ *   NaiveBayesClassifierSegmented served = nb.getSegmentedClassifier();
+ *   ... train nb ...
+ *   served = served.update(nb);   // Publish the changes
+ *
+ * The NaiveBayesClassifier stamps each change with the number of the next segment to be taken, so a snapshot
+ * asks only for the features changed since its own segment. Any number of snapshots (and IncrementalRescorers)
+ * can follow the same classifier, and updating one does not affect the others.
+ * Once the delta reaches the merge threshold, update() starts merging it into a new base in the background,
+ * and a later update() adopts the new base once it is ready. The delta is copied on each update, so
+ * snapshots are never modified once built, and can be shared by threads which are classifying at once.
+ *
+ * A change which alters every numerator (e.g. setFeatureSmoothing(), or a new label) rebuilds the whole
+ * snapshot. Changes made directly to the maps returned by the classifier's getters are not seen; start
+ * again with getSegmentedClassifier() after making them.
+ */
+public class NaiveBayesClassifierSegmented extends AbstractNaiveBayesClassifier {
+
+    public static final int DEFAULT_MERGE_THRESHOLD = 10000;
+
+    static final double[] DELETED = new double[0]; // Delta entry of a feature which has left the vocab
+
+    private final int mergeThreshold;               // Delta size (in features) at which it is merged into a new base
+
+    private final long sequence;                    // Number of the classifier's segment that this is up to date with
+    private final int[] labelOrder;
+    private final double[] logPriors;               // Log prior of each label, in the order of labelOrder
+    private final double[] logDenominators;         // Log likelihood denominator of each label, in the order of labelOrder
+
+    private final BaseSegment base;
+    private final Int2ObjectOpenHashMap<double[]> delta;             // Feature --> log numerator under each label (or DELETED)
+
+    private final CompletableFuture<BaseSegment> merging;            // Base being built in the background (null if none)
+    private final Int2ObjectOpenHashMap<double[]> mergingDelta;      // The delta which it is built from
+
+    private volatile IntSet segmentVocab = null;    // Built lazily by getVocab()
+
+    public NaiveBayesClassifierSegmented(NaiveBayesClassifier nb) {
+        this(nb, DEFAULT_MERGE_THRESHOLD);
+    }
+
+    /**
+     * Build a snapshot of every count in *nb*, and start tracking its changes.
+     * @param mergeThreshold Number of changed features at which the delta is merged into a new base.
+     */
+    public NaiveBayesClassifierSegmented(NaiveBayesClassifier nb, int mergeThreshold) {
+        this(nb.segmentAll(), nb.empiricalLabelPriors(), mergeThreshold);
+    }
+
+    private NaiveBayesClassifierSegmented(Snapshot snapshot, boolean empiricalLabelPriors, int mergeThreshold) {
+        this(snapshot, empiricalLabelPriors, mergeThreshold, new BaseSegment(snapshot.labelOrder.length, null, snapshot.logNumerators),
+             new Int2ObjectOpenHashMap<>(), null, null);
+    }
+
+    private NaiveBayesClassifierSegmented(Snapshot snapshot, boolean empiricalLabelPriors, int mergeThreshold, BaseSegment base,
+                                          Int2ObjectOpenHashMap<double[]> delta, CompletableFuture<BaseSegment> merging,
+                                          Int2ObjectOpenHashMap<double[]> mergingDelta) {
+        super();
+        if (mergeThreshold < 1) throw new IllegalArgumentException("Merge threshold must be at least 1");
+        this.empiricalLabelPriors = empiricalLabelPriors;
+        this.mergeThreshold = mergeThreshold;
+        this.sequence = snapshot.sequence;
+        this.labelOrder = snapshot.labelOrder;
+        this.logPriors = snapshot.logPriors;
+        this.logDenominators = snapshot.logDenominators;
+        this.base = base;
+        this.delta = delta;
+        this.merging = merging;
+        this.mergingDelta = mergingDelta;
+        this.labels = new IntOpenHashSet(labelOrder);
+    }
+
+    /**
+     * @return A snapshot of *nb* with the changes made to it since this snapshot (which is not modified).
+     */
+    public NaiveBayesClassifierSegmented update(NaiveBayesClassifier nb) {
+        Snapshot changes = nb.segmentChanges(sequence);
+        if (changes == null || !Arrays.equals(changes.labelOrder, labelOrder))
+            return new NaiveBayesClassifierSegmented(nb, mergeThreshold); // Every numerator may have changed
+
+        BaseSegment newBase = base;
+        Int2ObjectOpenHashMap<double[]> newDelta;
+        CompletableFuture<BaseSegment> newMerging = merging;
+        Int2ObjectOpenHashMap<double[]> newMergingDelta = mergingDelta;
+        if (merging != null && merging.isDone()) {
+            newBase = merging.join();
+            newDelta = unmerged(delta, mergingDelta);
+            newMerging = null;
+            newMergingDelta = null;
+        } else newDelta = new Int2ObjectOpenHashMap<>(delta);
+        newDelta.putAll(changes.logNumerators);
+
+        if (newMerging == null && newDelta.size() >= mergeThreshold) {
+            BaseSegment toMerge = newBase;
+            Int2ObjectOpenHashMap<double[]> toMergeDelta = newDelta;
+            newMerging = CompletableFuture.supplyAsync(() -> new BaseSegment(labelOrder.length, toMerge, toMergeDelta));
+            newMergingDelta = newDelta;
+        }
+        return new NaiveBayesClassifierSegmented(changes, nb.empiricalLabelPriors(), mergeThreshold, newBase, newDelta, newMerging, newMergingDelta);
+    }
+
+    /**
+     * @return A copy of this snapshot whose delta has been merged into its base (waiting for nothing in the background).
+     */
+    public NaiveBayesClassifierSegmented merge() {
+        Snapshot current = new Snapshot(sequence, labelOrder, logPriors, logDenominators, null);
+        return new NaiveBayesClassifierSegmented(current, empiricalLabelPriors, mergeThreshold,
+                new BaseSegment(labelOrder.length, base, delta), new Int2ObjectOpenHashMap<>(), null, null);
+    }
+
+    /**
+     * @return The number of features in the delta.
+     */
+    public int deltaSize() { return delta.size(); }
+
+    /**
+     * @return True if a merge of the delta into a new base is in progress (or finished but not yet adopted by update()).
+     */
+    public boolean isMerging() { return merging != null; }
+
+    public int getMergeThreshold() { return mergeThreshold; }
+
+    /**
+     * @return The labels in the order of their dense label positions.
+     */
+    public int[] getLabelOrder() { return labelOrder; }
+
+    /**
+     * @return The features in the base or the delta. Built on first call, so prefer not to call it on the serving path.
+     */
+    @Override
+    public IntSet getVocab() {
+        IntSet features = segmentVocab;
+        if (features == null) {
+            features = new IntOpenHashSet(base.featureRows.keySet());
+            for (Int2ObjectMap.Entry<double[]> entry : delta.int2ObjectEntrySet()) {
+                if (entry.getValue() == DELETED) features.remove(entry.getIntKey());
+                else features.add(entry.getIntKey());
+            }
+            features = IntSets.unmodifiable(features);
+            segmentVocab = features;
+        }
+        return features;
+    }
+
+    /**
+     * The log priors are those of the classifier that the snapshot was taken from, so they follow
+     * its setting of empiricalLabelPriors at the time.
+     */
+    @Override
+    public void logpriorPlusLoglikelihood(int[] features, LabelScores scores) {
+        double[] logScores = resetToLogPriors(scores);
+        int vocabFeatures = 0;
+        for (int feature : features) {
+            if (addLogNumerators(feature, 1, logScores)) vocabFeatures++;
+        }
+        subtractLogDenominators(vocabFeatures, logScores);
+    }
+
+    @Override
+    public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores) {
+        double[] logScores = resetToLogPriors(scores);
+        int vocabFeatures = 0;
+        for (int j = 0; j < features.size(); j++) {
+            if (addLogNumerators(features.feature(j), features.count(j), logScores)) vocabFeatures += features.count(j);
+        }
+        subtractLogDenominators(vocabFeatures, logScores);
+    }
+
+    private double[] resetToLogPriors(LabelScores scores) {
+        scores.reset(labelOrder);
+        double[] logScores = scores.scores();
+        System.arraycopy(logPriors, 0, logScores, 0, labelOrder.length);
+        return logScores;
+    }
+
+    /**
+     * Add *count* * (log numerator of *feature* under each label) to *logScores*.
+     * @return False if the feature is not in the vocab (so nothing was added).
+     */
+    private boolean addLogNumerators(int feature, int count, double[] logScores) {
+        double[] row = delta.get(feature);
+        if (row == null) return base.addLogNumerators(feature, count, logScores);
+        if (row == DELETED) return false;
+        for (int i = 0; i < row.length; i++)
+            logScores[i] += count * row[i];
+        return true;
+    }
+
+    private void subtractLogDenominators(int vocabFeatures, double[] logScores) {
+        for (int i = 0; i < labelOrder.length; i++)
+            logScores[i] -= vocabFeatures * logDenominators[i];
+    }
+
+    /**
+     * @return The entries of *delta* which were changed after *mergedDelta* was taken from it.
+     *         Updates replace rather than modify the row of a feature, so unchanged rows are identical.
+     */
+    private static Int2ObjectOpenHashMap<double[]> unmerged(Int2ObjectOpenHashMap<double[]> delta, Int2ObjectOpenHashMap<double[]> mergedDelta) {
+        Int2ObjectOpenHashMap<double[]> remaining = new Int2ObjectOpenHashMap<>();
+        for (Int2ObjectMap.Entry<double[]> entry : delta.int2ObjectEntrySet()) {
+            if (mergedDelta.get(entry.getIntKey()) != entry.getValue())
+                remaining.put(entry.getIntKey(), entry.getValue());
+        }
+        return remaining;
+    }
+
+    /**
+     * The log priors and log likelihood denominators of each label of a NaiveBayesClassifier, in the order of
+     * labelOrder, along with the log likelihood numerators of some of its features (see NaiveBayesClassifier.segmentChanges()).
+     * The segments taken from a classifier are numbered in sequence from 1, and a consumer passes the number of
+     * its last segment to segmentChanges() to get the changes made since.
+     */
+    static class Snapshot {
+
+        final long sequence;
+        final int[] labelOrder;
+        final double[] logPriors;
+        final double[] logDenominators;
+        final Int2ObjectOpenHashMap<double[]> logNumerators; // Feature --> log numerator under each label (or DELETED)
+
+        Snapshot(long sequence, int[] labelOrder, double[] logPriors, double[] logDenominators, Int2ObjectOpenHashMap<double[]> logNumerators) {
+            this.sequence = sequence;
+            this.labelOrder = labelOrder;
+            this.logPriors = logPriors;
+            this.logDenominators = logDenominators;
+            this.logNumerators = logNumerators;
+        }
+    }
+
+    /**
+     * Feature-major table of log numerators, as in NaiveBayesClassifierCompiled. Never modified once built.
+     */
+    private static class BaseSegment {
+
+        private final int numLabels;
+        private final Int2IntOpenHashMap featureRows;   // Feature --> row in logNumerators (-1 if not in the base)
+        private final double[] logNumerators;           // Row r holds the log numerators of a feature in [r*numLabels, (r+1)*numLabels)
+
+        /**
+         * The rows of *previous* (may be null) which are not in *delta*, followed by the rows of *delta*.
+         */
+        BaseSegment(int numLabels, BaseSegment previous, Int2ObjectOpenHashMap<double[]> delta) {
+            this.numLabels = numLabels;
+            int rows = 0;
+            if (previous != null) {
+                for (int feature : previous.featureRows.keySet())
+                    if (!delta.containsKey(feature)) rows++;
+            }
+            for (double[] row : delta.values())
+                if (row != DELETED) rows++;
+
+            if ((long) rows * numLabels > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Vocabulary of " + rows + " features with " + numLabels + " labels is too large to compile.");
+            featureRows = new Int2IntOpenHashMap(rows);
+            featureRows.defaultReturnValue(-1);
+            logNumerators = new double[rows * numLabels];
+
+            int next = 0;
+            if (previous != null) {
+                for (Int2IntMap.Entry entry : previous.featureRows.int2IntEntrySet()) {
+                    if (delta.containsKey(entry.getIntKey())) continue;
+                    System.arraycopy(previous.logNumerators, entry.getIntValue() * numLabels, logNumerators, next * numLabels, numLabels);
+                    featureRows.put(entry.getIntKey(), next++);
+                }
+            }
+            for (Int2ObjectMap.Entry<double[]> entry : delta.int2ObjectEntrySet()) {
+                if (entry.getValue() == DELETED) continue;
+                System.arraycopy(entry.getValue(), 0, logNumerators, next * numLabels, numLabels);
+                featureRows.put(entry.getIntKey(), next++);
+            }
+        }
+
+        boolean addLogNumerators(int feature, int count, double[] logScores) {
+            int row = featureRows.get(feature);
+            if (row < 0) return false;
+            int offset = row * numLabels;
+            for (int i = 0; i < numLabels; i++)
+                logScores[i] += count * logNumerators[offset + i];
+            return true;
+        }
+    }
+}
@@ -11,6 +11,7 @@ import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
 import uk.ac.susx.tag.classificationframework.datastructures.ModelState.ClassifierName;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
 
 import java.io.File;
@@ -27,6 +28,11 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 /**
  * Created by thk22 on 03/10/2014.
@@ -52,6 +58,13 @@ import java.util.Map;
  *
  * Further Note: I went for option b), deleting the root of all evil, in the hopes of spreading some good karma across the whole project. (I will still keep the literary work above "as is", because its the only piece of documentation in this file)
  *
+ * The learners are independent, so given an executor (see setTrainingExecutor()) train() trains them concurrently.
+ *
+ * With more than one learner, all learners are scored in a single pass over a document's features, using their
+ * pre-computed likelihoods fused into one table (see OVRScoringTable). The table is built lazily, once the features
+ * scored since the last change outnumber the vocabulary (so that building it costs no more than scoring has already),
+ * and discarded by every method which trains or alters the classifier. If you train the learners directly
+ * (e.g. through getOvrLearners()), then you must call invalidateScoringCache() yourself.
  */
 public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends NaiveBayesClassifier implements NaiveBayesPrecomputable {
 	public static final ClassifierName CLASSIFIER_NAME = ClassifierName.NB_OVR;
@@ -63,6 +76,11 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
     private Int2ObjectMap<T> ovrLearners;
     private Class<T> learnerClass;
 
+	private ExecutorService trainingExecutor = null; // If null, learners are trained one after another
+
+	private volatile OVRScoringTable fusedScoring = null; // Built lazily on scoring, discarded whenever a learner changes
+	private final AtomicLong featuresScoredSinceChange = new AtomicLong();
+
     public NaiveBayesOVRClassifier(IntSet labels, Class<T> learnerClass) {
         super(labels);
         this.ovrLearners = new Int2ObjectOpenHashMap<>();
@@ -227,6 +245,7 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 		for (int l : this.ovrLearners.keySet()) {
 			this.ovrLearners.get(l).setLabelSmoothing(smoothingValue);
 		}
+		this.invalidateScoringCache();
     }
 
 	@Override
@@ -235,6 +254,7 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 		for (int l : this.ovrLearners.keySet()) {
 			this.ovrLearners.get(l).setFeatureSmoothing(smoothingValue);
 		}
+		this.invalidateScoringCache();
 	}
 
 	@Override
@@ -245,6 +265,7 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 		} else {
 			this.ovrLearners.get(OTHER_LABEL).setLabelAlpha(label, alpha);
 		}
+		this.invalidateScoringCache();
 	}
 
 	@Override
@@ -276,6 +297,7 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 		} else {
 			this.ovrLearners.get(OTHER_LABEL).setFeatureAlpha(feature, label, alpha);
 		}
+		this.invalidateScoringCache();
 	}
 
 	@Override
@@ -318,6 +340,12 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 
 	@Override
 	public void trainOnInstance(int label, int[] features, double labelProbability, double weight)
+	{
+		this.trainOnInstance(label, SparseFeatureVector.of(features), labelProbability, weight);
+	}
+
+	@Override
+	public void trainOnInstance(int label, SparseFeatureVector features, double labelProbability, double weight)
 	{
 		if (this.ovrLearners.keySet().size() > 1) {
 			/*
@@ -335,6 +363,33 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 
 		// NaiveBayesClassifierPreComputed fix --> the precomputed one goes direclty on the field instead of going via the accessor
 		this.vocab = this.getVocab();
+		this.invalidateScoringCache();
+	}
+
+	@Override
+	public void untrainOnInstance(int label, SparseFeatureVector features, double labelProbability, double weight)
+	{
+		// Reverses trainOnInstance(), so each learner untrains the instance with the label it was trained with
+		if (this.ovrLearners.keySet().size() > 1) {
+			for (int l : this.labels) {
+				int targetLabel = (l == label) ? label : OTHER_LABEL;
+				this.ovrLearners.get(l).untrainOnInstance(targetLabel, features, labelProbability, weight);
+			}
+		} else {
+			this.ovrLearners.get(OTHER_LABEL).untrainOnInstance(label, features, labelProbability, weight);
+		}
+
+		this.vocab = this.getVocab();
+		this.invalidateScoringCache();
+	}
+
+	@Override
+	public void scaleCounts(double factor)
+	{
+		for (T learner : this.ovrLearners.values()) {
+			learner.scaleCounts(factor);
+		}
+		this.invalidateScoringCache();
 	}
 
 	@Override
@@ -348,6 +403,7 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 		} else {
 			this.ovrLearners.get(OTHER_LABEL).unlabelFeature(feature, label);
 		}
+		this.invalidateScoringCache();
 	}
 
 	@Override
@@ -355,6 +411,7 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 	{
 		int targetLabel = (this.ovrLearners.keySet().size() > 1) ? label : OTHER_LABEL;
 		this.ovrLearners.get(targetLabel).setLabelMultiplier(label, multiplier);
+		this.invalidateScoringCache();
 	}
 
 	@Override
@@ -363,6 +420,12 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 		return (this.ovrLearners.keySet().size() > 1) ? this.ovrLearners.get(label).likelihood(feature, label) : this.ovrLearners.get(OTHER_LABEL).likelihood(feature, label);
 	}
 
+	@Override
+	public double[] likelihoods(int label, int[] features)
+	{
+		return (this.ovrLearners.keySet().size() > 1) ? this.ovrLearners.get(label).likelihoods(label, features) : this.ovrLearners.get(OTHER_LABEL).likelihoods(label, features);
+	}
+
     @Override
     public void train(Iterable<ProcessedInstance> labelledDocuments, Iterable<ProcessedInstance> unlabelledDocuments)
     {
@@ -374,6 +437,7 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 
 		// NaiveBayesClassifierPreComputed fix --> the precomputed one goes direclty on the field instead of going via the accessor
 		this.vocab = this.getVocab();
+		this.invalidateScoringCache();
     }
 
     @Override
@@ -387,6 +451,7 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 
 		// NaiveBayesClassifierPreComputed fix --> the precomputed one goes direclty on the field instead of going via the accessor
 		this.vocab = this.getVocab();
+		this.invalidateScoringCache();
     }
 
     @Override
@@ -409,18 +474,73 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
         return this.ovrLearners;
     }
 
+	public ExecutorService getTrainingExecutor()
+	{
+		return this.trainingExecutor;
+	}
+
+	/**
+	 * Train the learners concurrently on *trainingExecutor* (or one after another if null, the default).
+	 * The executor is not shut down by this classifier.
+	 */
+	public void setTrainingExecutor(ExecutorService trainingExecutor)
+	{
+		this.trainingExecutor = trainingExecutor;
+	}
+
 	@Override
-	public Int2DoubleOpenHashMap logpriorPlusLoglikelihood(int[] features)
+	public void invalidateScoringCache()
 	{
-		Int2DoubleOpenHashMap jll = new Int2DoubleOpenHashMap();
-		for (T learner : this.ovrLearners.values()) {
-			jll.putAll(learner.logpriorPlusLoglikelihood(features));
+		super.invalidateScoringCache();
+		this.fusedScoring = null;
+		this.featuresScoredSinceChange.set(0);
+	}
+
+	/**
+	 * @return the fused table of the learners, or null if it is not (yet) worth building.
+	 */
+	private OVRScoringTable getFusedScoring(int[] features)
+	{
+		if (this.ovrLearners.size() < 2) return null;
+
+		OVRScoringTable table = this.fusedScoring;
+		IntSet learnerVocab = this.ovrLearners.values().iterator().next().getVocab();
+		if (table != null && table.isValidFor(learnerVocab)) return table;
+
+		if (this.featuresScoredSinceChange.addAndGet(features.length) < learnerVocab.size()) return null;
+
+		Int2ObjectMap<AbstractNaiveBayesClassifier> precomputedLearners = new Int2ObjectOpenHashMap<>();
+		for (Int2ObjectMap.Entry<T> entry : this.ovrLearners.int2ObjectEntrySet()) {
+			precomputedLearners.put(entry.getIntKey(), entry.getValue().getPrecomputedClassifier());
 		}
+		table = new OVRScoringTable(precomputedLearners, learnerVocab);
+		this.fusedScoring = table;
+		return table;
+	}
 
-		// Remove other label again
-		jll.remove(OTHER_LABEL);
+	@Override
+	public void logpriorPlusLoglikelihood(int[] features, LabelScores scores)
+	{
+		OVRScoringTable table = this.getFusedScoring(features);
+		if (table != null) {
+			table.logpriorPlusLoglikelihood(features, scores);
+			return;
+		}
+		scores.clear();
+		LabelScores learnerScores = scores.scratch();
+		for (T learner : this.ovrLearners.values()) {
+			learner.logpriorPlusLoglikelihood(features, learnerScores);
+			addAllButOtherLabel(learnerScores, scores);
+		}
+	}
 
-		return jll;
+	/**
+	 * The learners' scores are combined over the dense form (which may be fused, see OVRScoringTable).
+	 */
+	@Override
+	public void logpriorPlusLoglikelihood(SparseFeatureVector features, LabelScores scores)
+	{
+		this.logpriorPlusLoglikelihood(features.toDense(), scores);
 	}
 
 	@Override
@@ -440,38 +560,90 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 
     public Int2DoubleOpenHashMap predict(int[] features)
     {
-        Int2DoubleOpenHashMap prediction = new Int2DoubleOpenHashMap();
+        LabelScores prediction = new LabelScores(this.labels.size());
+        this.predict(features, prediction);
+        return prediction.toMap();
+    }
+
+    /**
+     * Each learner's posterior for its own label(s), so that all that remains are the predictions for the existing labels.
+     */
+    @Override
+    public void predict(int[] features, LabelScores scores)
+    {
+        OVRScoringTable table = this.getFusedScoring(features);
+        if (table != null) {
+            table.predict(features, scores);
+            return;
+        }
+        scores.clear();
+        LabelScores learnerPrediction = scores.scratch();
         for (T learner : this.ovrLearners.values()) {
-            prediction.putAll(learner.predict(features));
+            learner.predict(features, learnerPrediction);
+            addAllButOtherLabel(learnerPrediction, scores);
         }
-
-        // Remove other label, so all that remains are the predictions for the existing labels
-        prediction.remove(OTHER_LABEL);
-
-        return prediction;
     }
 
     public int bestLabel(int[] features)
     {
-        Int2DoubleMap prediction = this.predict(features);
+        return this.bestLabel(features, new LabelScores(this.labels.size()));
+    }
+
+    @Override
+    public int bestLabel(int[] features, LabelScores scratch)
+    {
+        this.predict(features, scratch);
 
         double maxPrediction = Double.MIN_VALUE;
         int bestLabel = -1;
 
-        for (int key : prediction.keySet()) {
-            if (prediction.get(key) > maxPrediction) {
-                maxPrediction = prediction.get(key);
-                bestLabel = key;
+        for (int i = 0; i < scratch.size(); i++) {
+            if (scratch.score(i) > maxPrediction) {
+                maxPrediction = scratch.score(i);
+                bestLabel = scratch.label(i);
             }
         }
 
         return bestLabel;
     }
 
+    @Override
+    public void predict(SparseFeatureVector features, LabelScores scores)
+    {
+        this.predict(features.toDense(), scores);
+    }
+
+    @Override
+    public int bestLabel(SparseFeatureVector features, LabelScores scratch)
+    {
+        return this.bestLabel(features.toDense(), scratch);
+    }
+
+	/**
+	 * Add the scores of *learnerScores* to *scores*, except the score of OTHER_LABEL.
+	 */
+	static void addAllButOtherLabel(LabelScores learnerScores, LabelScores scores)
+	{
+		for (int i = 0; i < learnerScores.size(); i++) {
+			if (learnerScores.label(i) != OTHER_LABEL) {
+				scores.add(learnerScores.label(i), learnerScores.score(i));
+			}
+		}
+	}
+
 	public AbstractNaiveBayesClassifier getPrecomputedClassifier() {
 		return new NaiveBayesClassifierOVRPreComputed(this);
 	}
 
+	/**
+	 * The counts are held by the learners rather than this classifier, so it cannot be segmented.
+	 */
+	@Override
+	NaiveBayesClassifierSegmented.Snapshot segmentAll()
+	{
+		throw new UnsupportedOperationException("NaiveBayesOVRClassifier cannot be segmented, use getPrecomputedClassifier()");
+	}
+
     private void trainBinarySupervised(Iterable<ProcessedInstance> labelledDocs)
     {
         this.ovrLearners.get(OTHER_LABEL).train(labelledDocs);
@@ -484,26 +656,49 @@ public class NaiveBayesOVRClassifier<T extends NaiveBayesClassifier> extends Nai
 
     private void trainOVRSupervised(Iterable<ProcessedInstance> labelledDocs)
     {
-        for (int l : this.labels) {
-            T currLearner = this.ovrLearners.get(l);
-            currLearner.train(this.binariseLabelledDocuments(labelledDocs, l));
-        }
+        this.trainEachLearner(l -> this.ovrLearners.get(l).train(this.binariseLabelledDocuments(labelledDocs, l)));
     }
 
     private void trainOVRSemiSupervised(Iterable<ProcessedInstance> labelledDocs, Iterable<ProcessedInstance> unlabelledDocs)
     {
-        for (int l : this.labels) {
-            T currLearner = this.ovrLearners.get(l);
-            currLearner.train(this.binariseLabelledDocuments(labelledDocs, l), unlabelledDocs);
-        }
+        this.trainEachLearner(l -> this.ovrLearners.get(l).train(this.binariseLabelledDocuments(labelledDocs, l), unlabelledDocs));
     }
 
+	/**
+	 * Apply *training* to the learner of every label, concurrently if there is a training executor.
+	 * Each learner is only touched by its own task, and the documents are only read.
+	 */
+	private void trainEachLearner(IntConsumer training)
+	{
+		if (this.trainingExecutor == null) {
+			for (int l : this.labels) {
+				training.accept(l);
+			}
+			return;
+		}
+
+		List<Future<?>> futures = new ArrayList<>();
+		for (int l : this.labels) {
+			futures.add(this.trainingExecutor.submit(() -> training.accept(l)));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while training one-vs-rest learners", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Training of a one-vs-rest learner failed", e.getCause());
+		}
+	}
+
     private Iterable<ProcessedInstance> binariseLabelledDocuments(Iterable<ProcessedInstance> labelledDocs, int currLabel)
     {
         List<ProcessedInstance> binarisedDocs = new ArrayList<>();
 
         for (ProcessedInstance p : labelledDocs) {
-            binarisedDocs.add(new ProcessedInstance((p.getLabel() == currLabel ? p.getLabel() : OTHER_LABEL), p.features, p.source));
+            binarisedDocs.add(new ProcessedInstance((p.getLabel() == currLabel ? p.getLabel() : OTHER_LABEL), p.features, p.getSparseFeatures(), p.source));
         }
 
         return binarisedDocs;
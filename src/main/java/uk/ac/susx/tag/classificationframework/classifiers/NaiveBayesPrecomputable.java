@@ -5,4 +5,15 @@ package uk.ac.susx.tag.classificationframework.classifiers;
  */
 public interface NaiveBayesPrecomputable {
 	AbstractNaiveBayesClassifier getPrecomputedClassifier();
+
+	/**
+	 * @param compiled If true, the precomputed classifier is further compiled into a feature-major
+	 *                 NaiveBayesClassifierCompiled, which is faster to score with when there are many labels.
+	 */
+	default AbstractNaiveBayesClassifier getPrecomputedClassifier(boolean compiled) {
+		AbstractNaiveBayesClassifier precomputed = getPrecomputedClassifier();
+		if (compiled && precomputed instanceof NaiveBayesClassifierPreComputed)
+			return ((NaiveBayesClassifierPreComputed) precomputed).compile();
+		return precomputed;
+	}
 }
\ No newline at end of file
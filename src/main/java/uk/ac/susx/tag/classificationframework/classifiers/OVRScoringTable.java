@@ -0,0 +1,119 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+/**
+ * The pre-computed learners of a one-vs-rest classifier (one per label, each trained on that label
+ * against OTHER_LABEL) fused into a single feature-major table, so that a document is scored by all
+ * learners in one pass over its features.
+ *
+ * Learner i owns two adjacent columns of every row: the log likelihood of the feature under its
+ * own label, then under OTHER_LABEL. See NaiveBayesOVRClassifier and NaiveBayesClassifierOVRPreComputed.
+ */
+class OVRScoringTable {
+
+    private final IntSet vocab;               // The vocab which the table was built from, and its size.
+    private final int vocabSize;              // These catch the learners being trained without invalidation.
+
+    private final int[] labelOrder;           // Label of each learner
+    private final int[] columnLabels;         // Label of each column: labelOrder[i] at 2i, OTHER_LABEL at 2i+1
+    private final double[] logPriors;         // Log prior of each column
+    private final Int2IntOpenHashMap featureRows;
+    private final double[] logLikelihoods;    // Row r holds the log likelihoods of a feature in [r*numColumns, (r+1)*numColumns)
+
+    /**
+     * @param learners Mapping from each label to the pre-computed learner of that label against OTHER_LABEL.
+     * @param vocab The vocab of the learners, which every learner shares (each is trained on every document,
+     *              and given every feature alpha, see NaiveBayesOVRClassifier.getVocab()).
+     */
+    OVRScoringTable(Int2ObjectMap<? extends AbstractNaiveBayesClassifier> learners, IntSet vocab) {
+        this.vocab = vocab;
+        this.vocabSize = vocab.size();
+
+        labelOrder = learners.keySet().toIntArray();
+        int numColumns = labelOrder.length * 2;
+        if ((long) vocabSize * numColumns > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Vocabulary of " + vocabSize + " features with " + labelOrder.length + " one-vs-rest learners is too large to fuse.");
+
+        NaiveBayesClassifierPreComputed[] sources = new NaiveBayesClassifierPreComputed[numColumns];
+        columnLabels = new int[numColumns];
+        logPriors = new double[numColumns];
+        for (int i = 0; i < labelOrder.length; i++) {
+            NaiveBayesClassifierPreComputed learner = (NaiveBayesClassifierPreComputed) learners.get(labelOrder[i]);
+            columnLabels[2 * i] = labelOrder[i];
+            columnLabels[2 * i + 1] = NaiveBayesOVRClassifier.OTHER_LABEL;
+            for (int column = 2 * i; column <= 2 * i + 1; column++) {
+                sources[column] = learner;
+                logPriors[column] = learner.empiricalLabelPriors() ? learner.getLabelPriors().get(columnLabels[column]) : 0;
+            }
+        }
+
+        featureRows = new Int2IntOpenHashMap(vocabSize);
+        featureRows.defaultReturnValue(-1);
+        logLikelihoods = new double[vocabSize * numColumns];
+
+        int row = 0;
+        for (int feature : vocab) {
+            featureRows.put(feature, row);
+            int offset = row * numColumns;
+            for (int column = 0; column < numColumns; column++) {
+                if (sources[column].getVocab().contains(feature)) {
+                    Int2DoubleMap likelihoods = sources[column].getFeatureLikelihoods().get(columnLabels[column]);
+                    logLikelihoods[offset + column] = likelihoods == null ? 0 : likelihoods.get(feature);
+                }
+            }
+            row++;
+        }
+    }
+
+    boolean isValidFor(IntSet vocab) {
+        return this.vocab == vocab && this.vocab.size() == vocabSize;
+    }
+
+    /**
+     * Fill *scores* with log(P(label)) + log(P(features|label)) of each learner's own label.
+     */
+    void logpriorPlusLoglikelihood(int[] features, LabelScores scores) {
+        double[] columns = scoreColumns(features, scores.scratch());
+        scores.reset(labelOrder);
+        double[] logScores = scores.scores();
+        for (int i = 0; i < labelOrder.length; i++)
+            logScores[i] = columns[2 * i];
+    }
+
+    /**
+     * Fill *scores* with each learner's posterior of its own label (against OTHER_LABEL).
+     */
+    void predict(int[] features, LabelScores scores) {
+        double[] columns = scoreColumns(features, scores.scratch());
+        scores.reset(labelOrder);
+        double[] posteriors = scores.scores();
+        for (int i = 0; i < labelOrder.length; i++) {
+            double own = columns[2 * i];
+            double other = columns[2 * i + 1];
+            posteriors[i] = 1 / (1 + Math.exp(other - own));
+        }
+    }
+
+    /**
+     * Single pass over the features, accumulating the log scores of every column in the scores of *scratch*.
+     */
+    private double[] scoreColumns(int[] features, LabelScores scratch) {
+        int numColumns = columnLabels.length;
+        scratch.reset(columnLabels);
+        double[] columns = scratch.scores();
+        System.arraycopy(logPriors, 0, columns, 0, numColumns);
+
+        for (int feature : features) {
+            int row = featureRows.get(feature);
+            if (row < 0) continue;
+            int offset = row * numColumns;
+            for (int column = 0; column < numColumns; column++)
+                columns[column] += logLikelihoods[offset + column];
+        }
+        return columns;
+    }
+}
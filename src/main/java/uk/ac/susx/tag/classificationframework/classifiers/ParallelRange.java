@@ -0,0 +1,111 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.IntConsumer;
+
+/**
+ * Applies a body to each index of a range on a fork/join pool of a given parallelism, splitting the range
+ * in halves down to single indices. Used by ModelAnalysis, HyperparameterSweep and LinearClassifier.
+ *
+ * reduce() instead splits the range into shards, computes a result per shard, and combines the results
+ * pairwise. Used by the parallel Expectation step of NaiveBayesClassifier, the training of
+ * NaiveBayesClassifierSFE and the solver of NaiveBayesClassifierFeatureMarginals.
+ */
+final class ParallelRange {
+
+    private ParallelRange() {}
+
+    /**
+     * The result of the indices [from, to) of a range.
+     */
+    interface Shard<T> {
+        T apply(int from, int to);
+    }
+
+    /**
+     * Apply *body* to each index in [0, n), on *parallelism* threads (in order on the calling thread if 1).
+     */
+    static void forEach(int n, int parallelism, IntConsumer body) {
+        if (parallelism <= 1 || n < 2) {
+            for (int i = 0; i < n; i++) body.accept(i);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new RangeTask(0, n, body));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Split [0, n) into shards of at least *minShardSize* indices (four per thread, so that threads which finish
+     * early can take on more), apply *shard* to each on *parallelism* threads, and combine the results of
+     * adjacent shards with *combine*, the earlier shard's result first. With a parallelism of 1, or a range of
+     * a single shard, the whole range is one shard, computed on the calling thread.
+     */
+    static <T> T reduce(int n, int parallelism, int minShardSize, Shard<T> shard, BinaryOperator<T> combine) {
+        int shards = Math.max(1, parallelism) * 4;
+        int shardSize = Math.max(Math.max(1, minShardSize), (n + shards - 1) / shards);
+        if (parallelism <= 1 || n <= shardSize) return shard.apply(0, n);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new ReduceTask<>(0, n, shardSize, shard, combine));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class RangeTask extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+        private final IntConsumer body;
+
+        RangeTask(int from, int to, IntConsumer body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                body.accept(from);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(from, middle, body), new RangeTask(middle, to, body));
+            }
+        }
+    }
+
+    private static class ReduceTask<T> extends RecursiveTask<T> {
+
+        private final int from;
+        private final int to;
+        private final int shardSize;
+        private final Shard<T> shard;
+        private final BinaryOperator<T> combine;
+
+        ReduceTask(int from, int to, int shardSize, Shard<T> shard, BinaryOperator<T> combine) {
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+            this.shard = shard;
+            this.combine = combine;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= shardSize) return shard.apply(from, to);
+            int middle = (from + to) >>> 1;
+            ReduceTask<T> second = new ReduceTask<>(middle, to, shardSize, shard, combine);
+            second.fork();
+            T first = new ReduceTask<>(from, middle, shardSize, shard, combine).compute();
+            return combine.apply(first, second.join());
+        }
+    }
+}
@@ -21,6 +21,14 @@ public class FeatureMarginalsConstraint implements UnivariateDifferentiableFunct
     private double l;
 
     public FeatureMarginalsConstraint(double nWPos, double nNotWPos, double nWNeg, double nNotWNeg, double k, double l)
+    {
+        this.set(nWPos, nNotWPos, nWNeg, nNotWNeg, k, l);
+    }
+
+    /**
+     * Re-use this constraint for another feature, rather than creating one per feature.
+     */
+    public FeatureMarginalsConstraint set(double nWPos, double nNotWPos, double nWNeg, double nNotWNeg, double k, double l)
     {
         this.nWPos      = nWPos;
         this.nWNeg      = nWNeg;
@@ -28,6 +36,7 @@ public class FeatureMarginalsConstraint implements UnivariateDifferentiableFunct
         this.nNotWNeg   = nNotWNeg;
         this.k          = k;
         this.l          = l;
+        return this;
     }
 
     @Override
@@ -23,6 +23,7 @@ package uk.ac.susx.tag.classificationframework.datastructures;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import uk.ac.susx.tag.classificationframework.Util;
+import uk.ac.susx.tag.classificationframework.classifiers.LinearClassifier;
 import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
 import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifierFeatureMarginals;
 import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesOVRClassifier;
@@ -40,20 +41,26 @@ import static uk.ac.susx.tag.classificationframework.Util.*;
  *
  * It wraps:
  *
- *  1. a NaiveBayesClassifier ,
+ *  1. a NaiveBayesClassifier (or instead a LinearClassifier, in the linearClassifier field),
  *  2. the labelled tweets that were trained on,
  *  3. the pipeline used to process that data.
  *  4. additional metadata
  *
  * The wrapped structures are saved to a specified directory as four files, respectively:
  *
- *  1. nbmodel.json
+ *  1. nbmodel.json (or nbmodel.bin)
  *  2. training.json
  *  3. pipeline.ser
  *  4. metadata.json
  *
  *  ".ser" files are serialised using Java.
  *  ".json" files are serialised using Gson Json library.
+ *  ".bin" files are serialised using the compact binary format of NaiveBayesClassifier.writeBinary(). This
+ *  is much smaller and faster to load for models with large vocabularies. It is only available for plain
+ *  NaiveBayesClassifiers; other classifiers are always saved as JSON. See ModelFormat.
+ *
+ *  A LinearClassifier is saved to nbmodel.json too (see LinearClassifier.writeJson()), and loaded into the
+ *  linearClassifier field, leaving the classifier field null. Only one of the two fields should be set.
  *
  *  IMPORTANT NOTES:
  *
@@ -77,11 +84,13 @@ public class ModelState {
 
     private static final String METADATA_FILE = "metadata.json";
     private static final String MODEL_FILE = "nbmodel.json";
+    private static final String BINARY_MODEL_FILE = "nbmodel.bin";
     private static final String PIPELINE_FILE = "pipeline.ser";
     private static final String TRAINING_FILE = "training.json";
 
 
     public NaiveBayesClassifier classifier = null;
+    public LinearClassifier linearClassifier = null;
     public List<Instance> trainingDocuments = null;
     public FeatureExtractionPipeline pipeline = null;
     public Map<String, Object> metadata = null;
@@ -93,7 +102,16 @@ public class ModelState {
         NB,
         NB_FM,
         NB_SFE,
-        NB_OVR;
+        NB_OVR,
+        LINEAR;
+    }
+
+    /**
+     * Format in which to save the classifier. Loading uses whichever format was saved.
+     */
+    public static enum ModelFormat {
+        JSON,
+        BINARY;
     }
 
     public ModelState() {}
@@ -106,6 +124,14 @@ public class ModelState {
         this.pipeline = pipeline;
     }
 
+    public ModelState(LinearClassifier linearClassifier,
+                      List<Instance> trainingDocuments,
+                      FeatureExtractionPipeline pipeline){
+        this.linearClassifier = linearClassifier;
+        this.trainingDocuments = trainingDocuments;
+        this.pipeline = pipeline;
+    }
+
     /**
      * Convenience method. Often you will have already processed your Instance objects
      * into ProcessedInstance objects. These are not serialised, but they still
@@ -176,6 +202,19 @@ public class ModelState {
      * field to the pipelineForWriting).
      */
     public void save(File modelDirectory, FeatureExtractionPipeline pipelineForWriting) throws IOException {
+        save(modelDirectory, pipelineForWriting, ModelFormat.JSON);
+    }
+
+    public void save(File modelDirectory, ModelFormat format) throws IOException {
+        save(modelDirectory, pipeline, format);
+    }
+
+    /**
+     * Save with the classifier in the specified format. The BINARY format is only used if the
+     * classifier is a plain NaiveBayesClassifier (otherwise it's saved as JSON). A model file left
+     * over from a previous save in the other format is deleted.
+     */
+    public void save(File modelDirectory, FeatureExtractionPipeline pipelineForWriting, ModelFormat format) throws IOException {
         if (modelDirectory.exists()) {
             if (!modelDirectory.isDirectory()) throw new IOException("Must specify a valid directory.");
         } else if (!modelDirectory.mkdirs()) throw new IOException("Cannot create one or more directories.");
@@ -184,9 +223,14 @@ public class ModelState {
 
         SafeSave safeSave = new SafeSave();
 
-        File modelFile = new File(modelDirectory, MODEL_FILE);
+        boolean binary = format == ModelFormat.BINARY && classifier != null && classifier.getClassifierName() == ClassifierName.NB;
+        File modelFile = new File(modelDirectory, binary ? BINARY_MODEL_FILE : MODEL_FILE);
+        File staleModelFile = new File(modelDirectory, binary ? MODEL_FILE : BINARY_MODEL_FILE);
         if (classifier!=null) {
-            safeSave.add(modelFile, (f) -> classifier.writeJson(f, pipelineForWriting));
+            if (binary) safeSave.add(modelFile, (f) -> classifier.writeBinary(f, pipelineForWriting));
+            else safeSave.add(modelFile, (f) -> classifier.writeJson(f, pipelineForWriting));
+        } else if (linearClassifier!=null) {
+            safeSave.add(modelFile, (f) -> linearClassifier.writeJson(f, pipelineForWriting));
         }
 
         File trainingDataFile = new File(modelDirectory, TRAINING_FILE);
@@ -213,7 +257,8 @@ public class ModelState {
             metadata = new HashMap<>();
         }
 
-        metadata.putAll(classifier.getMetadata());
+        if (classifier != null) metadata.putAll(classifier.getMetadata());
+        else if (linearClassifier != null) metadata.putAll(linearClassifier.getMetadata());
 
         safeSave.add(metadataFile, (f) -> {
             try (BufferedWriter bw = new BufferedWriter(new FileWriter(f))){
@@ -222,6 +267,9 @@ public class ModelState {
         });
 
         safeSave.save();
+
+        if ((classifier != null || linearClassifier != null) && staleModelFile.exists() && !staleModelFile.delete())
+            throw new IOException("Cannot delete model file of previous save: " + staleModelFile);
     }
 
 
@@ -298,8 +346,20 @@ public class ModelState {
         }
     }
 
-    private static void loadTheClassifier(ModelState modelState, File modelDirectory, FeatureExtractionPipeline pipelineForReading) {
+    private static void loadTheClassifier(ModelState modelState, File modelDirectory, FeatureExtractionPipeline pipelineForReading) throws IOException {
         ClassifierName clfName = modelState.metadata.containsKey("classifier_class_name") ? ClassifierName.valueOf((String)modelState.metadata.get("classifier_class_name")) : ClassifierName.NB;
+
+        if (clfName.equals(ClassifierName.LINEAR)) {
+            File modelFile = new File(modelDirectory, MODEL_FILE);
+            if (modelFile.exists()) modelState.linearClassifier = LinearClassifier.readJson(modelFile, pipelineForReading);
+            return;
+        }
+
+        File binaryModelFile = new File(modelDirectory, BINARY_MODEL_FILE);
+        if (clfName.equals(ClassifierName.NB) && binaryModelFile.exists()) {
+            modelState.classifier = NaiveBayesClassifier.readBinary(binaryModelFile, pipelineForReading);
+            return;
+        }
         Class<? extends NaiveBayesClassifier> khlav = getClassifierClassForName(clfName);
 
         try {
@@ -346,7 +406,7 @@ public class ModelState {
 
         Set<String> p = new HashSet<>(Arrays.asList(path.list()));
 
-        if(!p.contains(METADATA_FILE) || !p.contains(MODEL_FILE) || !p.contains(PIPELINE_FILE) || !p.contains(TRAINING_FILE)) {
+        if(!p.contains(METADATA_FILE) || !(p.contains(MODEL_FILE) || p.contains(BINARY_MODEL_FILE)) || !p.contains(PIPELINE_FILE) || !p.contains(TRAINING_FILE)) {
             return false;
         } else {
             return true;
@@ -24,7 +24,7 @@ import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Represents a processed (passed through feature extraction) Instance.
@@ -55,6 +55,8 @@ public class ProcessedInstance {
     public int[] features;
     public Instance source;
 
+    private SparseFeatureVector sparseFeatures; // Counted form of *features*, built on demand (or at indexing time)
+
     private int label;
     private Int2DoubleOpenHashMap labelProbabilities;
 
@@ -69,6 +71,14 @@ public class ProcessedInstance {
         if (label >= 0) this.labelProbabilities.addTo(label, 1.0);
     }
 
+    /**
+     * @param sparseFeatures Counted form of *features*, e.g. built at indexing time (see SparseFeatureVector.of()).
+     */
+    public ProcessedInstance(int label, int[] features, SparseFeatureVector sparseFeatures, Instance source) {
+        this(label, features, source);
+        this.sparseFeatures = sparseFeatures;
+    }
+
     /**
      * @return the most probable label.
      */
@@ -78,6 +88,19 @@ public class ProcessedInstance {
 
     public int[] getFeatures() { return features; }
 
+    /**
+     * @return The features as sorted distinct features with counts. Rebuilt if the *features* field has been
+     *         re-assigned since it was last built.
+     */
+    public SparseFeatureVector getSparseFeatures() {
+        SparseFeatureVector sparse = sparseFeatures;
+        if (sparse == null || sparse.dense != features) {
+            sparse = SparseFeatureVector.of(features);
+            sparseFeatures = sparse;
+        }
+        return sparse;
+    }
+
     public boolean hasFeatures() {
         return !(features.length == 0);
     }
@@ -149,7 +172,7 @@ public class ProcessedInstance {
 
             if (uniformProbabilities){ // If the probabilities are uniform, the best label is chosen by random
                 int[] labels = labelProbabilities.keySet().toIntArray();
-                label = labels[new Random().nextInt(labels.length)];
+                label = labels[ThreadLocalRandom.current().nextInt(labels.length)];
             } else label = maxLabel;
         }
     }
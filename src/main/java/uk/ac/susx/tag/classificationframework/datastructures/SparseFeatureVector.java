@@ -0,0 +1,128 @@
+package uk.ac.susx.tag.classificationframework.datastructures;
+
+import java.util.Arrays;
+
+/**
+ * The features of a document as sorted, distinct feature indices, each with the number of times it occurred.
+ *
+ * Documents tend to repeat features (a tweet repeats a hashtag, an article repeats its topic words), so
+ * training, scoring and querying over this form do one lookup per distinct feature instead of one per
+ * occurrence, and callers needing the distinct features no longer have to build a set to find them.
+ *
+ * Immutable. Obtain one from an int[] of (possibly repeated) features with:
+ *
+ *   SparseFeatureVector.of(features)
+ *
+ * Or from a ProcessedInstance with getSparseFeatures(), which the FeatureExtractionPipeline can fill
+ * at indexing time (see FeatureExtractionPipeline.setSparseFeatureVectors()).
+ */
+public class SparseFeatureVector {
+
+    private final int[] features;   // Distinct features in ascending order
+    private final int[] counts;     // Number of occurrences of each feature in *features*
+    private final int totalCount;   // Sum of counts (i.e. the length of the dense form)
+    final int[] dense;              // The features that this vector was built from (see ProcessedInstance)
+
+    private SparseFeatureVector(int[] features, int[] counts, int totalCount, int[] dense) {
+        this.features = features;
+        this.counts = counts;
+        this.totalCount = totalCount;
+        this.dense = dense;
+    }
+
+    /**
+     * Count the occurrences of each feature in *features*, which is not modified.
+     */
+    public static SparseFeatureVector of(int[] features) {
+        if (features.length == 0) return new SparseFeatureVector(new int[0], new int[0], 0, features);
+
+        int[] sorted = features.clone();
+        Arrays.sort(sorted);
+
+        int distinct = 1;
+        for (int i = 1; i < sorted.length; i++)
+            if (sorted[i] != sorted[i - 1]) distinct++;
+
+        int[] ids = new int[distinct];
+        int[] counts = new int[distinct];
+        int next = 0;
+        ids[0] = sorted[0];
+        for (int feature : sorted) {
+            if (feature != ids[next]) ids[++next] = feature;
+            counts[next]++;
+        }
+        return new SparseFeatureVector(ids, counts, features.length, features);
+    }
+
+    /**
+     * @return The number of distinct features.
+     */
+    public int size() { return features.length; }
+
+    public boolean isEmpty() { return features.length == 0; }
+
+    /**
+     * @return The i-th distinct feature (in ascending order).
+     */
+    public int feature(int i) { return features[i]; }
+
+    /**
+     * @return The number of occurrences of the i-th distinct feature.
+     */
+    public int count(int i) { return counts[i]; }
+
+    /**
+     * @return The distinct features in ascending order. Do not modify.
+     */
+    public int[] features() { return features; }
+
+    /**
+     * @return The number of occurrences of each distinct feature. Do not modify.
+     */
+    public int[] counts() { return counts; }
+
+    /**
+     * @return The total number of feature occurrences.
+     */
+    public int totalCount() { return totalCount; }
+
+    public boolean contains(int feature) {
+        return Arrays.binarySearch(features, feature) >= 0;
+    }
+
+    /**
+     * @return The number of occurrences of *feature* (0 if absent).
+     */
+    public int countOf(int feature) {
+        int i = Arrays.binarySearch(features, feature);
+        return i < 0 ? 0 : counts[i];
+    }
+
+    /**
+     * @return The (possibly repeated) features that this vector was built from. Do not modify.
+     */
+    public int[] toDense() { return dense; }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SparseFeatureVector that = (SparseFeatureVector) o;
+        return Arrays.equals(features, that.features) && Arrays.equals(counts, that.counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(features) + Arrays.hashCode(counts);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < features.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(features[i]).append('x').append(counts[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
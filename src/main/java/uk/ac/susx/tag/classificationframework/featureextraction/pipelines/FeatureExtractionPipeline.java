@@ -31,6 +31,7 @@ import uk.ac.susx.tag.classificationframework.Util;
 import uk.ac.susx.tag.classificationframework.datastructures.Document;
 import uk.ac.susx.tag.classificationframework.datastructures.Instance;
 import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
 import uk.ac.susx.tag.classificationframework.datastructures.StringIndexer;
 import uk.ac.susx.tag.classificationframework.exceptions.CachingException;
 import uk.ac.susx.tag.classificationframework.exceptions.FeatureExtractionException;
@@ -136,6 +137,7 @@ public class FeatureExtractionPipeline implements Serializable, AutoCloseable {
     private transient StringIndexer featureIndexer = new StringIndexer();  // Indexes strings representing features
 
     private boolean fixedVocabulary = false;
+    private boolean sparseFeatureVectors = false; // True if ProcessedInstances are given their SparseFeatureVector at indexing time
 
     /* Getters and Setters */
     public FeatureExtractionPipeline setTokeniser(Tokeniser tokeniser) { this.tokeniser = tokeniser; return this;}
@@ -148,6 +150,19 @@ public class FeatureExtractionPipeline implements Serializable, AutoCloseable {
         this.fixedVocabulary = fixedVocabulary;
     }
 
+    public boolean getSparseFeatureVectors() {
+        return sparseFeatureVectors;
+    }
+
+    /**
+     * If true, features are counted into a SparseFeatureVector as they are indexed, so that the ProcessedInstances
+     * produced are ready for training and scoring by count. Otherwise, each ProcessedInstance counts its features
+     * the first time that getSparseFeatures() is called.
+     */
+    public void setSparseFeatureVectors(boolean sparseFeatureVectors) {
+        this.sparseFeatureVectors = sparseFeatureVectors;
+    }
+
     /* Validation */
     public boolean tokeniserAssigned() { return tokeniser != null; }
     public boolean featureInferrersAssigned() { return featureInferrers.size() > 0; }
@@ -398,7 +413,7 @@ public class FeatureExtractionPipeline implements Serializable, AutoCloseable {
         for (int i = 0; i < featuresPerDocument.size(); i++){
             Document doc = documents.get(i);
             int label = doc.source.label.trim().isEmpty()? -1 : labelIndexer.getIndex(doc.source.label);
-            out.add(new ProcessedInstance(label, indexFeatures(featuresPerDocument.get(i)), doc.source));
+            out.add(newProcessedInstance(label, featuresPerDocument.get(i), doc.source));
         }
         return out;
     }
@@ -689,7 +704,7 @@ public class FeatureExtractionPipeline implements Serializable, AutoCloseable {
         List<Feature> features = extractInferredFeatures(doc);
 
         int label = doc.source.label.trim().isEmpty()? -1 : labelIndexer.getIndex(doc.source.label);
-        ProcessedInstance processed = new ProcessedInstance(label, indexFeatures(features), doc.source);
+        ProcessedInstance processed = newProcessedInstance(label, features, doc.source);
 
         for (Feature feature : features) {
             if (!feature2DocumentIndex.containsKey(feature)) {
@@ -736,7 +751,7 @@ public class FeatureExtractionPipeline implements Serializable, AutoCloseable {
         applyFilters(doc);
         applyNormalisers(doc);
         int label = doc.source.label.trim().isEmpty()? -1 : labelIndexer.getIndex(doc.source.label);
-        return new ProcessedInstance(label, indexFeatures(extractInferredFeatures(doc)), doc.source);
+        return newProcessedInstance(label, extractInferredFeatures(doc), doc.source);
     }
 
     /**
@@ -763,6 +778,20 @@ public class FeatureExtractionPipeline implements Serializable, AutoCloseable {
         return indices;
     }
 
+    /**
+     * Given features produced by extractUnindexedFeatures, index them and count the occurrences of each.
+     */
+    public SparseFeatureVector indexSparseFeatures(List<Feature> features) {
+        return SparseFeatureVector.of(indexFeatures(features));
+    }
+
+    private ProcessedInstance newProcessedInstance(int label, List<Feature> features, Instance source) {
+        if (sparseFeatureVectors) {
+            SparseFeatureVector sparse = indexSparseFeatures(features);
+            return new ProcessedInstance(label, sparse.toDense(), sparse, source);
+        } else return new ProcessedInstance(label, indexFeatures(features), source);
+    }
+
 
     /**
      * Every feature selector may have a set of features that it ALWAYS lets through. This is useful
@@ -11,6 +11,19 @@ import java.util.Collection;
  */
 public class BootstrapEMTrainer extends AbstractNaiveBayesTrainer {
 
+    private final int parallelism; // Number of threads over which the Expectation step is sharded
+
+    public BootstrapEMTrainer() {
+        this(1);
+    }
+
+    /**
+     * @param parallelism Number of threads over which the Expectation step of EM is sharded (1 for no concurrency).
+     */
+    public BootstrapEMTrainer(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
     @Override
     public NaiveBayesClassifier train(FeatureExtractionPipeline pipeline,
                                       Collection<ProcessedInstance> labelledData,
@@ -27,7 +40,7 @@ public class BootstrapEMTrainer extends AbstractNaiveBayesTrainer {
 
         model.train(labelledData);
 
-        model.emTrain(unlabelledData, model);
+        model.emTrain(unlabelledData, model, parallelism);
 
         return model;
     }
@@ -0,0 +1,196 @@
+package uk.ac.susx.tag.classificationframework.trainers;
+
+import uk.ac.susx.tag.classificationframework.classifiers.LabelScores;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Runs EM over the unlabelled data until convergence, rather than the single
+ * E/M pass of the StandardEMTrainer.
+ *
+ * The first Expectation step labels the unlabelled data with a classifier trained only on
+ * the feature pseudo-counts (as the StandardEMTrainer does). Each following step labels it
+ * with the model of the previous iteration. Each iteration's model is trained from scratch on
+ * the labelled data plus the probabilistically labelled unlabelled data.
+ *
+ * Training stops when either:
+ *  1. The relative change in the log-likelihood of the unlabelled data falls below the tolerance
+ *  2. The posteriors of every unlabelled document have stabilised
+ *  3. The maximum number of iterations is reached
+ *
+ * A document's posteriors have stabilised once no label's probability moves by more than the
+ * stability threshold between iterations. From then on the document is no longer re-scored; its
+ * last posteriors (and log-likelihood) are reused for the rest of training.
+ *
+ * Usage:
+ *
+ *   NaiveBayesClassifier model = new ConvergentEMTrainer()
+ *                                   .setMaxIterations(20)
+ *                                   .setIterationListener(System.out::println)
+ *                                   .train(pipeline, labelled, unlabelled, classifier);
+ */
+public class ConvergentEMTrainer extends AbstractNaiveBayesTrainer {
+
+    private int maxIterations = 10;
+    private double tolerance = 1e-4;             // Relative change in log-likelihood below which EM has converged
+    private double stabilityThreshold = 1e-3;    // Largest posterior change for which a document is no longer re-scored
+    private double unlabelledWeight = 0.1;       // Weighting of the counts from unlabelled documents (see NaiveBayesClassifier.emTrain())
+    private IterationListener listener = null;
+
+    public ConvergentEMTrainer setMaxIterations(int maxIterations) {
+        if (maxIterations < 1) throw new IllegalArgumentException("There must be at least 1 iteration");
+        this.maxIterations = maxIterations;
+        return this;
+    }
+
+    public ConvergentEMTrainer setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    /**
+     * Set to 0 to re-score every document on every iteration.
+     */
+    public ConvergentEMTrainer setStabilityThreshold(double stabilityThreshold) {
+        this.stabilityThreshold = stabilityThreshold;
+        return this;
+    }
+
+    public ConvergentEMTrainer setUnlabelledWeight(double unlabelledWeight) {
+        this.unlabelledWeight = unlabelledWeight;
+        return this;
+    }
+
+    public ConvergentEMTrainer setIterationListener(IterationListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    @Override
+    public NaiveBayesClassifier train(FeatureExtractionPipeline pipeline,
+                                      Collection<ProcessedInstance> labelledData,
+                                      Collection<ProcessedInstance> unlabelledData,
+                                      NaiveBayesClassifier classifier) {
+
+        NaiveBayesClassifier featureAlphaModel = new NaiveBayesClassifier(classifier.getLabels());
+        copyFeatureAlphas(classifier, featureAlphaModel);
+        featureAlphaModel.empiricalLabelPriors(classifier.empiricalLabelPriors());
+
+        List<ProcessedInstance> documents = new ArrayList<>(unlabelledData);
+        int[] labelOrder = classifier.getLabels().toIntArray();
+        double[][] posteriors = new double[documents.size()][];   // Per document, the probability of each label in labelOrder
+        double[] logLikelihoods = new double[documents.size()];   // Per document, log(P(document)) under the model which last scored it
+        boolean[] stable = new boolean[documents.size()];
+
+        LabelScores scores = new LabelScores(labelOrder.length);
+        NaiveBayesClassifier scoringModel = featureAlphaModel;
+        NaiveBayesClassifier model = null;
+        double previousLogLikelihood = Double.NaN;
+
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            long start = System.nanoTime();
+            model = new NaiveBayesClassifier(classifier.getLabels());
+            copyLabelMultipliers(classifier, model);
+            model.empiricalLabelPriors(classifier.empiricalLabelPriors());
+            model.train(labelledData);
+
+            // Expectation step (skipping the re-scoring of stable documents)
+            int rescored = 0;
+            double maxPosteriorChange = 0;
+            for (int i = 0; i < documents.size(); i++) {
+                int[] features = documents.get(i).features;
+                if (!stable[i]) {
+                    scoringModel.logpriorPlusLoglikelihood(features, scores);
+                    logLikelihoods[i] = scores.logSumExp();
+                    scores.normaliseLogScores();
+
+                    double change = updatePosteriors(i, posteriors, labelOrder, scores);
+                    stable[i] = change < stabilityThreshold;
+                    maxPosteriorChange = Math.max(maxPosteriorChange, change);
+                    rescored++;
+                }
+                for (int j = 0; j < labelOrder.length; j++)
+                    model.trainOnInstance(labelOrder[j], features, posteriors[i][j], unlabelledWeight);
+            }
+
+            double logLikelihood = 0;
+            for (double documentLogLikelihood : logLikelihoods)
+                logLikelihood += documentLogLikelihood;
+
+            // The feature pseudo-counts are added once the expectations are counted (as in the StandardEMTrainer)
+            copyFeatureAlphas(classifier, model);
+
+            double relativeChange = Math.abs((logLikelihood - previousLogLikelihood) / previousLogLikelihood);
+            boolean converged = rescored == 0 || relativeChange < tolerance;  // NaN on the first iteration, so never converged
+            if (listener != null)
+                listener.iterationComplete(new IterationReport(iteration, logLikelihood, relativeChange, maxPosteriorChange,
+                                                               rescored, documents.size() - rescored,
+                                                               (System.nanoTime() - start) / 1000000, converged));
+            if (converged) break;
+
+            previousLogLikelihood = logLikelihood;
+            scoringModel = model;
+        }
+        return model;
+    }
+
+    /**
+     * Replace the stored posteriors of the ith document with *scores*.
+     * @return The largest absolute change in a label's probability (infinite if there were no stored posteriors).
+     */
+    private static double updatePosteriors(int i, double[][] posteriors, int[] labelOrder, LabelScores scores) {
+        double change = Double.POSITIVE_INFINITY;
+        if (posteriors[i] == null) {
+            posteriors[i] = new double[labelOrder.length];
+        } else change = 0;
+        for (int j = 0; j < labelOrder.length; j++) {
+            double posterior = scores.get(labelOrder[j]);
+            change = Math.max(change, Math.abs(posterior - posteriors[i][j]));
+            posteriors[i][j] = posterior;
+        }
+        return change;
+    }
+
+    /**
+     * Receives a report at the end of every iteration of EM.
+     */
+    public interface IterationListener {
+        void iterationComplete(IterationReport report);
+    }
+
+    public static class IterationReport {
+
+        public final int iteration;                 // Starting from 1
+        public final double logLikelihood;          // Log-likelihood of the unlabelled data under the model which labelled it
+        public final double relativeChange;         // Relative change in log-likelihood since the previous iteration (NaN on the first)
+        public final double maxPosteriorChange;     // Largest change in a re-scored document's label probability
+        public final int rescoredDocuments;
+        public final int skippedDocuments;          // Documents with stable posteriors, which were not re-scored
+        public final long elapsedMillis;
+        public final boolean converged;
+
+        public IterationReport(int iteration, double logLikelihood, double relativeChange, double maxPosteriorChange,
+                               int rescoredDocuments, int skippedDocuments, long elapsedMillis, boolean converged) {
+            this.iteration = iteration;
+            this.logLikelihood = logLikelihood;
+            this.relativeChange = relativeChange;
+            this.maxPosteriorChange = maxPosteriorChange;
+            this.rescoredDocuments = rescoredDocuments;
+            this.skippedDocuments = skippedDocuments;
+            this.elapsedMillis = elapsedMillis;
+            this.converged = converged;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Iteration %d: log-likelihood %.4f (relative change %.2e), max posterior change %.2e, %d re-scored, %d skipped, %dms%s",
+                    iteration, logLikelihood, relativeChange, maxPosteriorChange,
+                    rescoredDocuments, skippedDocuments, elapsedMillis, converged ? " (converged)" : "");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package uk.ac.susx.tag.classificationframework.trainers;
+
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trains as the NoEMTrainer does (on the labelled data only), but instead of training a new model from scratch
+ * each time, it applies the difference between the labelled data of this call and of the last call to the model
+ * it last returned:
+ *
+ *  1. Documents which are new (or have gained a label) are trained on,
+ *  2. Documents which have been relabelled are moved to their new label (see NaiveBayesClassifier.relabel()),
+ *  3. Documents which have been removed (or have lost their label, or had their features re-assigned) are
+ *     untrained (see NaiveBayesClassifier.untrainOnInstance()), and trained on again if they are still labelled.
+ *
+ * So an annotator changing a single label costs the count updates of a single document, however many documents
+ * are labelled. Documents are matched between calls by their equality (the ID of their source Instance), so
+ * each labelled document needs a source Instance with a distinct ID. Otherwise an IllegalArgumentException is
+ * thrown, before the model is changed.
+ *
+ * The difference is only applied if *classifier* is the model that this trainer last returned, in which case
+ * that model is updated in place and returned again (so its feature alphas, label multipliers and so on are
+ * whatever they have since been set to). Otherwise (e.g. on the first call) a new model is trained from scratch,
+ * exactly as the NoEMTrainer would. Unlabelled data is ignored.
+ *
+ *   IncrementalTrainer trainer = new IncrementalTrainer();
+ *   model = trainer.train(pipeline, labelled, unlabelled, model);   // From scratch
+ *   ... the annotator relabels a document ...
+ *   model = trainer.train(pipeline, labelled, unlabelled, model);   // Only that document's counts are moved
+ */
+public class IncrementalTrainer extends AbstractNaiveBayesTrainer {
+
+    private NaiveBayesClassifier model = null; // The model last returned
+    private Map<ProcessedInstance, TrainedDocument> trained = new HashMap<>(); // What each document was trained as
+
+    @Override
+    public NaiveBayesClassifier train(FeatureExtractionPipeline pipeline,
+                                      Collection<ProcessedInstance> labelledData,
+                                      Collection<ProcessedInstance> unlabelledData,
+                                      NaiveBayesClassifier classifier) {
+        if (classifier != model || model == null) {
+            model = new NaiveBayesClassifier(classifier.getLabels());
+            copyLabelMultipliers(classifier, model);
+            copyFeatureAlphas(classifier, model);
+            model.empiricalLabelPriors(classifier.empiricalLabelPriors());
+            trained = new HashMap<>();
+        }
+
+        checkDistinct(labelledData);
+        Map<ProcessedInstance, TrainedDocument> current = new HashMap<>();
+        for (ProcessedInstance document : labelledData) {
+            TrainedDocument now = new TrainedDocument(document.getLabel(), document.getSparseFeatures());
+            TrainedDocument before = trained.remove(document);
+            if (now.isTrainable()) current.put(document, now);
+            if (before == null) {
+                if (now.isTrainable()) model.trainOnInstance(now.label, now.features, 1, 1);
+            } else if (before.features == now.features || before.features.equals(now.features)) {
+                if (before.label == now.label) continue;
+                if (now.isTrainable()) model.relabel(before.label, now.label, now.features, 1);
+                else model.untrainOnInstance(before.label, before.features, 1, 1);
+            } else {
+                model.untrainOnInstance(before.label, before.features, 1, 1);
+                if (now.isTrainable()) model.trainOnInstance(now.label, now.features, 1, 1);
+            }
+        }
+        // Whatever was trained on before, but is no longer in the labelled data
+        for (TrainedDocument removed : trained.values())
+            model.untrainOnInstance(removed.label, removed.features, 1, 1);
+        trained = current;
+        return model;
+    }
+
+    /**
+     * Documents without a source would throw on hashing, and a document sharing the ID of another would hide it,
+     * so that the hidden one was trained on again in every call.
+     */
+    private static void checkDistinct(Collection<ProcessedInstance> labelledData) {
+        Set<ProcessedInstance> seen = new HashSet<>(labelledData.size());
+        for (ProcessedInstance document : labelledData) {
+            if (document.source == null)
+                throw new IllegalArgumentException("Labelled documents need a source Instance, to be matched between calls");
+            if (!seen.add(document))
+                throw new IllegalArgumentException("More than one labelled document has the ID: " + document.source.id);
+        }
+    }
+
+    /**
+     * Forget the model last returned, so that the next call trains from scratch.
+     */
+    public void reset() {
+        model = null;
+        trained = new HashMap<>();
+    }
+
+    /**
+     * The label and features a document had when it was trained on (a ProcessedInstance's can be re-assigned).
+     */
+    private static class TrainedDocument {
+
+        final int label;
+        final SparseFeatureVector features;
+
+        TrainedDocument(int label, SparseFeatureVector features) {
+            this.label = label;
+            this.features = features;
+        }
+
+        /**
+         * As NaiveBayesClassifier.trainOnInstance(), documents with no label or no features are not trained on.
+         */
+        boolean isTrainable() {
+            return label >= 0 && !features.isEmpty();
+        }
+    }
+}
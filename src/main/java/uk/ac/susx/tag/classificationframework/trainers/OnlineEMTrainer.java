@@ -0,0 +1,146 @@
+package uk.ac.susx.tag.classificationframework.trainers;
+
+import uk.ac.susx.tag.classificationframework.classifiers.LabelScores;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifierBlended;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Stepwise (online) EM over a stream of unlabelled documents, which are read in mini-batches from an iterator,
+ * so that memory use does not grow with the number of unlabelled documents (Liang and Klein, 2009).
+ *
+ * The model's counts are the counts of the labelled data, plus a running blend of the expected counts of the
+ * unlabelled documents. The labelled counts are trained once, and kept apart from the unlabelled counts in a
+ * NaiveBayesClassifierBlended, which combines them only when scoring. Each mini-batch is labelled by the
+ * current model (Expectation step), and its expected counts are blended in with a step size which decays
+ * with the number of batches k (counting from 0):
+ *
+ *   step size = (k + 2) ^ -decayExponent
+ *   unlabelled counts = (1 - step size) * unlabelled counts  +  step size * expected counts of the batch per document * scale
+ *
+ * where the scale is the number of unlabelled documents seen so far, times the unlabelled weight. So the
+ * unlabelled counts have the magnitude that batch EM over every document seen would give them (see
+ * NaiveBayesClassifier.emTrain()), but the latest batches carry the most weight. A decay exponent in (0.5, 1]
+ * guarantees convergence; lower values forget older batches faster. Decaying the unlabelled counts is a single
+ * multiplication (see NaiveBayesClassifierBlended.scaleCounts()), so each step costs only the work of its batch.
+ *
+ * The first batch is labelled by a model of the labelled data and the feature pseudo-counts. The model is
+ * updated in place by each batch, so it improves as the data arrives:
+ *
+ *   OnlineEMTrainer trainer = new OnlineEMTrainer().setBatchSize(500);
+ *   NaiveBayesClassifier model = trainer.start(labelled, classifier);
+ *   trainer.train(unlabelledStream);          // Returns once the iterator is exhausted
+ *   ... more documents arrive ...
+ *   trainer.train(moreUnlabelledDocuments);   // Continues with the same model
+ *
+ * As a NaiveBayesTrainer, it starts afresh, streams the unlabelled collection once, and returns a
+ * NaiveBayesClassifier of the combined counts.
+ */
+public class OnlineEMTrainer extends AbstractNaiveBayesTrainer {
+
+    private int batchSize = 1000;
+    private double decayExponent = 0.7;
+    private double unlabelledWeight = 0.1;      // Weighting of the counts from unlabelled documents (see NaiveBayesClassifier.emTrain())
+
+    private NaiveBayesClassifierBlended model = null;
+    private int batches = 0;
+    private long documentsSeen = 0;             // Number of unlabelled documents seen
+
+    public OnlineEMTrainer setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1");
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public OnlineEMTrainer setDecayExponent(double decayExponent) {
+        if (decayExponent <= 0 || decayExponent > 1) throw new IllegalArgumentException("Decay exponent must be in (0, 1]");
+        this.decayExponent = decayExponent;
+        return this;
+    }
+
+    public OnlineEMTrainer setUnlabelledWeight(double unlabelledWeight) {
+        this.unlabelledWeight = unlabelledWeight;
+        return this;
+    }
+
+    public NaiveBayesClassifierBlended getModel() { return model; }
+    public int getBatches() { return batches; }
+    public long getDocumentsSeen() { return documentsSeen; }
+
+    @Override
+    public NaiveBayesClassifier train(FeatureExtractionPipeline pipeline,
+                                      Collection<ProcessedInstance> labelledData,
+                                      Collection<ProcessedInstance> unlabelledData,
+                                      NaiveBayesClassifier classifier) {
+        start(labelledData, classifier);
+        return train(unlabelledData.iterator()).toNaiveBayesClassifier();
+    }
+
+    /**
+     * Begin a new model from the labelled data, and the settings and feature pseudo-counts of *classifier*.
+     * The labelled data is trained on here, and need not be kept.
+     */
+    public NaiveBayesClassifierBlended start(Collection<ProcessedInstance> labelledData, NaiveBayesClassifier classifier) {
+        NaiveBayesClassifier labelledModel = new NaiveBayesClassifier(classifier.getLabels());
+        copyLabelMultipliers(classifier, labelledModel);
+        copyFeatureAlphas(classifier, labelledModel);
+        labelledModel.empiricalLabelPriors(classifier.empiricalLabelPriors());
+        labelledModel.train(labelledData);
+        model = new NaiveBayesClassifierBlended(labelledModel);
+        batches = 0;
+        documentsSeen = 0;
+        return model;
+    }
+
+    /**
+     * Train on the documents of *unlabelledStream* in mini-batches, until it is exhausted.
+     * @return The model (the same one after every call, until start() is called again).
+     */
+    public NaiveBayesClassifierBlended train(Iterator<ProcessedInstance> unlabelledStream) {
+        if (model == null) throw new IllegalStateException("Call start() first");
+        List<ProcessedInstance> batch = new ArrayList<>(batchSize);
+        while (unlabelledStream.hasNext()) {
+            batch.add(unlabelledStream.next());
+            if (batch.size() == batchSize) {
+                step(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) step(batch);
+        return model;
+    }
+
+    /**
+     * Blend the expected counts of a single mini-batch into the model.
+     */
+    private void step(List<ProcessedInstance> batch) {
+        // Expectation step with the current model, before it is changed
+        int[] labelOrder = model.getLabels().toIntArray();
+        double[][] posteriors = new double[batch.size()][];
+        LabelScores scores = new LabelScores(labelOrder.length);
+        for (int d = 0; d < batch.size(); d++) {
+            model.predict(batch.get(d).getSparseFeatures(), scores);
+            posteriors[d] = new double[labelOrder.length];
+            for (int l = 0; l < labelOrder.length; l++)
+                posteriors[d][l] = scores.get(labelOrder[l]);
+        }
+
+        double stepSize = Math.pow(batches + 2, -decayExponent);
+        documentsSeen += batch.size();
+        double documentWeight = stepSize * unlabelledWeight * documentsSeen / batch.size();
+
+        // Only the unlabelled counts are decayed: the labelled counts are in the blended model's base
+        model.scaleCounts(1 - stepSize);
+        for (int d = 0; d < batch.size(); d++) {
+            for (int l = 0; l < labelOrder.length; l++)
+                model.trainOnInstance(labelOrder[l], batch.get(d).getSparseFeatures(), posteriors[d][l], documentWeight);
+        }
+        batches++;
+    }
+}
@@ -11,6 +11,18 @@ import java.util.Collection;
  */
 public class StandardEMTrainer extends AbstractNaiveBayesTrainer {
 
+    private final int parallelism; // Number of threads over which the Expectation step is sharded
+
+    public StandardEMTrainer() {
+        this(1);
+    }
+
+    /**
+     * @param parallelism Number of threads over which the Expectation step of EM is sharded (1 for no concurrency).
+     */
+    public StandardEMTrainer(int parallelism) {
+        this.parallelism = parallelism;
+    }
 
     @Override
     public NaiveBayesClassifier train(FeatureExtractionPipeline pipeline,
@@ -31,7 +43,7 @@ public class StandardEMTrainer extends AbstractNaiveBayesTrainer {
 
         featureAlphaModel.empiricalLabelPriors(classifier.empiricalLabelPriors());
 
-        model.emTrain(unlabelledData, featureAlphaModel);
+        model.emTrain(unlabelledData, featureAlphaModel, parallelism);
 
         copyFeatureAlphas(classifier, model);
 
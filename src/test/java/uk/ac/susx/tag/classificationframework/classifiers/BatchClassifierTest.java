@@ -0,0 +1,42 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.Instance;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Testing that classifying concurrently gives the same labelling as classifying on a single thread.
+ */
+public class BatchClassifierTest {
+
+    @Test
+    public void matchesSerialClassification() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(0, new int[] {1, 2, 3}, 1, 1);
+        nb.trainOnInstance(1, new int[] {3, 4, 5}, 1, 1);
+        nb.trainOnInstance(2, new int[] {5, 6, 1}, 1, 1);
+
+        Random random = new Random(0);
+        List<ProcessedInstance> instances = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            int[] features = new int[1 + random.nextInt(5)];
+            for (int j = 0; j < features.length; j++)
+                features[j] = random.nextInt(10); // Includes features unknown to the classifier
+            instances.add(new ProcessedInstance(-1, features, new Instance("", "", Integer.toString(i))));
+        }
+
+        try (BatchClassifier batchClassifier = new BatchClassifier(nb, 4).setBatchSize(100)) {
+            batchClassifier.classify(instances);
+        }
+
+        for (ProcessedInstance instance : instances) {
+            assertEquals(nb.predict(instance.features), instance.getLabelProbabilities());
+        }
+    }
+}
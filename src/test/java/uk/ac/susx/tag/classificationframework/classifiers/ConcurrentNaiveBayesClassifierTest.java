@@ -0,0 +1,81 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Testing that training on several threads at once gives the same counts as training on one.
+ */
+public class ConcurrentNaiveBayesClassifierTest {
+
+    @Test
+    public void matchesSerialTraining() throws Exception {
+        Random random = new Random(0);
+        int[][] documents = new int[4000][];
+        for (int i = 0; i < documents.length; i++) {
+            documents[i] = new int[1 + random.nextInt(5)];
+            for (int j = 0; j < documents[i].length; j++)
+                documents[i][j] = random.nextInt(20);
+        }
+
+        NaiveBayesClassifier serial = new NaiveBayesClassifier();
+        for (int i = 0; i < documents.length; i++)
+            serial.trainOnInstance(i % 3, documents[i], 1, 1);
+
+        ConcurrentNaiveBayesClassifier concurrent = new ConcurrentNaiveBayesClassifier();
+        concurrent.setFlushThreshold(50);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int offset = thread;
+                futures.add(executor.submit(() -> {
+                    for (int i = offset; i < documents.length; i += 4) {
+                        concurrent.trainOnInstance(i % 3, documents[i], 1, 1);
+                        concurrent.predict(documents[i]); // Classifying alongside training
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+        concurrent.flush();
+
+        assertEquals(serial.getLabels(), concurrent.getLabels());
+        assertEquals(serial.getVocab(), concurrent.getVocab());
+        for (int[] document : documents) {
+            Int2DoubleOpenHashMap expected = serial.predict(document);
+            Int2DoubleOpenHashMap predicted = concurrent.predict(document);
+            for (int label : expected.keySet())
+                assertEquals(expected.get(label), predicted.get(label), 1E-9);
+        }
+    }
+
+    @Test
+    public void dropsBuffersOfEndedThreads() throws Exception {
+        ConcurrentNaiveBayesClassifier concurrent = new ConcurrentNaiveBayesClassifier();
+        for (int i = 0; i < 10; i++) {
+            int label = i % 2;
+            Thread thread = new Thread(() -> concurrent.trainOnInstance(label, new int[]{1, 2}, 1, 1));
+            thread.start();
+            thread.join();
+        }
+        concurrent.flush();
+        assertEquals(0, concurrent.numBuffers());
+        assertEquals(10, concurrent.docCounts.get(0) + concurrent.docCounts.get(1), 0);
+
+        concurrent.trainOnInstance(0, new int[]{3}, 1, 1);
+        concurrent.flush();
+        assertEquals(1, concurrent.numBuffers()); // This thread may train again
+    }
+}
@@ -0,0 +1,65 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing that sweeping the settings of a classifier gives the evaluation of the classifier with each setting.
+ */
+public class HyperparameterSweepTest {
+
+    @Test
+    public void matchesReconfiguredClassifier() {
+        Random random = new Random(11);
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        for (int d = 0; d < 150; d++) {
+            int label = random.nextInt(3);
+            nb.trainOnInstance(label, RandomDocuments.favouringLabel(random, label, 4, 6, 10, 0.5), 1, 1);
+        }
+        nb.setFeatureAlpha(4, 1, 3);
+        nb.setLabelAlpha(2, 5);
+        List<ProcessedInstance> heldOut = new ArrayList<>();
+        for (int d = 0; d < 100; d++) {
+            int label = random.nextInt(3);
+            heldOut.add(new ProcessedInstance(label, RandomDocuments.favouringLabel(random, label, 4, 6, 10, 0.5), null));
+        }
+
+        Int2DoubleOpenHashMap favourLabel1 = new Int2DoubleOpenHashMap();
+        favourLabel1.put(1, 3);
+        List<HyperparameterSweep.Setting> settings = HyperparameterSweep.grid(
+                new double[]{0.5, 5, 50}, new double[]{0.01, 1, 20}, new boolean[]{true, false},
+                Arrays.asList(new Int2DoubleOpenHashMap(), favourLabel1));
+        List<HyperparameterSweep.Result> table = new HyperparameterSweep(nb, heldOut, 4).run(settings);
+
+        assertEquals(settings.size(), table.size());
+        for (int i = 1; i < table.size(); i++)
+            assertTrue(table.get(i - 1).accuracy >= table.get(i).accuracy);
+
+        for (HyperparameterSweep.Result result : table) {
+            result.setting.applyTo(nb);
+            int correct = 0;
+            LabelScores scratch = new LabelScores();
+            for (ProcessedInstance document : heldOut)
+                if (nb.bestLabel(document.features, scratch) == document.getLabel()) correct++;
+            assertEquals(result.setting.toString(), correct, result.totalCorrect);
+            assertEquals(heldOut.size(), result.totalDocuments);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesOneVsRest() {
+        NaiveBayesOVRClassifier<NaiveBayesClassifier> ovr = new NaiveBayesOVRClassifier<>(new IntOpenHashSet(new int[]{0, 1, 2}), NaiveBayesClassifier.class);
+        new HyperparameterSweep(ovr, new ArrayList<>()); // Its own counts are empty, so every setting would score alike
+    }
+}
@@ -0,0 +1,116 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing that the label probabilities kept by the rescorer are those that the classifier would predict.
+ */
+public class IncrementalRescorerTest {
+
+    private static final int VOCAB_SIZE = 500;
+
+    @Test
+    public void followsTraining() {
+        Random random = new Random(12);
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        for (int d = 0; d < 100; d++)
+            nb.trainOnInstance(random.nextInt(3), RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), 1, 1);
+        List<ProcessedInstance> pool = new ArrayList<>();
+        for (int d = 0; d < 300; d++)
+            pool.add(new ProcessedInstance(-1, RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), null));
+
+        IncrementalRescorer rescorer = new IncrementalRescorer(nb, pool);
+        assertPredicted(nb, pool);
+
+        for (int round = 0; round < 5; round++) {
+            nb.trainOnInstance(random.nextInt(3), RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), 1, 1);
+            assertTrue(rescorer.rescore() < pool.size());
+            assertPredicted(nb, pool);
+        }
+
+        nb.setFeatureAlpha(VOCAB_SIZE + 1, 1, 2);   // In no document of the pool
+        nb.deleteFeature(pool.get(0).features[0]);
+        nb.setLabelAlpha(0, 3);
+        rescorer.rescore();
+        assertPredicted(nb, pool);
+
+        nb.setFeatureSmoothing(0.5);                // Changes every numerator
+        assertEquals(pool.size(), rescorer.rescore());
+        assertPredicted(nb, pool);
+
+    }
+
+    @Test
+    public void sharesClassifierWithSnapshots() {
+        Random random = new Random(15);
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        for (int d = 0; d < 100; d++)
+            nb.trainOnInstance(random.nextInt(3), RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), 1, 1);
+        List<ProcessedInstance> pool = new ArrayList<>();
+        for (int d = 0; d < 300; d++)
+            pool.add(new ProcessedInstance(-1, RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), null));
+
+        IncrementalRescorer rescorer = new IncrementalRescorer(nb, pool);
+        NaiveBayesClassifierSegmented served = nb.getSegmentedClassifier();
+        for (int round = 0; round < 6; round++) {
+            nb.trainOnInstance(random.nextInt(3), RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), 1, 1);
+            if (round % 2 == 0) {                   // Each reads the changes since its own last segment, in either order
+                served = served.update(nb);
+                assertTrue(rescorer.rescore() < pool.size());
+            } else {
+                assertTrue(rescorer.rescore() < pool.size());
+                served = served.update(nb);
+            }
+            assertPredicted(nb, pool);
+            assertTrue(served.deltaSize() > 0);     // Not rebuilt
+        }
+    }
+
+    @Test
+    public void rescoresInFullWhenDue() {
+        Random random = new Random(16);
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        for (int d = 0; d < 100; d++)
+            nb.trainOnInstance(random.nextInt(3), RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), 1, 1);
+        List<ProcessedInstance> pool = new ArrayList<>();
+        for (int d = 0; d < 300; d++)
+            pool.add(new ProcessedInstance(-1, RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), null));
+
+        IncrementalRescorer rescorer = new IncrementalRescorer(nb, pool);
+        Int2DoubleOpenHashMap probabilities = pool.get(0).getLabelProbabilities();
+        rescorer.setFullRescoreInterval(2);
+        for (int round = 0; round < 6; round++) {
+            nb.trainOnInstance(random.nextInt(3), RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), 1, 1);
+            int rescored = rescorer.rescore();
+            if (round % 3 == 2) assertEquals(pool.size(), rescored);  // After two incremental rescores
+            else assertTrue(rescored < pool.size());
+            assertPredicted(nb, pool);
+        }
+
+        rescorer.setMaxDrift(Double.MIN_VALUE);    // Any correction drifts too far
+        nb.trainOnInstance(0, RandomDocuments.uniform(random, 2, 6, VOCAB_SIZE), 1, 1);
+        assertEquals(pool.size(), rescorer.rescore());
+        assertPredicted(nb, pool);
+        assertSame(probabilities, pool.get(0).getLabelProbabilities()); // Written in place
+    }
+
+    private static void assertPredicted(NaiveBayesClassifier nb, List<ProcessedInstance> pool) {
+        for (ProcessedInstance document : pool) {
+            Int2DoubleOpenHashMap expected = nb.predict(document.features);
+            assertEquals(expected.size(), document.getLabelProbabilities().size());
+            for (Int2DoubleOpenHashMap.Entry entry : expected.int2DoubleEntrySet())
+                assertEquals(entry.getDoubleValue(), document.getLabelProbability(entry.getIntKey()), 1E-9);
+        }
+    }
+}
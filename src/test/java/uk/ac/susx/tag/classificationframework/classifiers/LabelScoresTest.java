@@ -0,0 +1,91 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Testing that predicting into a reused LabelScores agrees with the map-returning methods.
+ */
+public class LabelScoresTest {
+
+    private static final int[][] TEST_DOCUMENTS = {{1, 2}, {1, 3, 2}, {4}, {3, 3, 99}};
+
+    @Test
+    public void naiveBayes() {
+        NaiveBayesClassifier nb = getExampleClassifier();
+        LabelScores scores = new LabelScores();
+        for (int[] document : TEST_DOCUMENTS) {
+            nb.predict(document, scores);
+            assertEquals(nb.getLabels().size(), scores.size());
+
+            // P(label|document) is proportional to P(label) * product of P(feature|label)
+            Int2DoubleOpenHashMap expected = new Int2DoubleOpenHashMap();
+            double normalisation = 0;
+            for (int label : nb.getLabels()) {
+                double joint = nb.labelPriors().get(label);
+                for (int feature : document)
+                    if (nb.getVocab().contains(feature)) joint *= nb.likelihood(feature, label);
+                expected.put(label, joint);
+                normalisation += joint;
+            }
+            for (int i = 0; i < scores.size(); i++) {
+                assertEquals(expected.get(scores.label(i)) / normalisation, scores.score(i), 1E-9);
+            }
+        }
+        assertSamePredictions(nb);
+    }
+
+    @Test
+    public void preComputedAndCompiled() {
+        assertSamePredictions(getExampleClassifier().getPrecomputedClassifier());
+        assertSamePredictions(getExampleClassifier().getPrecomputedClassifier(true));
+    }
+
+    @Test
+    public void oneVsRest() {
+        NaiveBayesOVRClassifier<NaiveBayesClassifier> ovr = new NaiveBayesOVRClassifier<>(new IntOpenHashSet(new int[]{0, 1, 2}), NaiveBayesClassifier.class);
+        ovr.trainOnInstance(0, new int[]{1, 2}, 1, 1);
+        ovr.trainOnInstance(1, new int[]{2, 3}, 1, 1);
+        ovr.trainOnInstance(2, new int[]{3, 4, 4}, 1, 1);
+        assertSamePredictions(ovr);
+        assertSamePredictions(ovr.getPrecomputedClassifier());
+    }
+
+    @Test
+    public void normaliseLogScores() {
+        LabelScores scores = new LabelScores(1); // Forces the holder to grow
+        scores.add(5, Math.log(1));
+        scores.add(7, Math.log(3));
+        scores.normaliseLogScores();
+        assertEquals(0.25, scores.get(5), 1E-9);
+        assertEquals(0.75, scores.get(7), 1E-9);
+        assertEquals(0, scores.get(6), 0);
+        assertEquals(7, scores.argMax());
+    }
+
+    private static void assertSamePredictions(AbstractNaiveBayesClassifier classifier) {
+        LabelScores scores = new LabelScores();
+        for (int[] document : TEST_DOCUMENTS) {
+            Int2DoubleOpenHashMap expected = classifier.predict(document);
+            classifier.predict(document, scores);
+            assertEquals(expected.size(), scores.size());
+            for (int i = 0; i < scores.size(); i++) {
+                assertEquals(expected.get(scores.label(i)), scores.score(i), 1E-9);
+            }
+            assertEquals(classifier.bestLabel(document), classifier.bestLabel(document, scores));
+        }
+    }
+
+    private static NaiveBayesClassifier getExampleClassifier() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(1, new int[] {1, 2}, 1, 1);
+        nb.trainOnInstance(1, new int[] {1, 3}, 1, 1);
+        nb.trainOnInstance(0, new int[] {1}, 1, 1);
+        nb.trainOnInstance(0, new int[] {3, 4}, 1, 1);
+        nb.trainOnInstance(2, new int[] {4, 4}, 1, 1);
+        return nb;
+    }
+}
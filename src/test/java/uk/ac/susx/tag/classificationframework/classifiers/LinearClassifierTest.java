@@ -0,0 +1,101 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing that the linear classifier learns separable data with each loss, and that L1 regularisation zeroes weights.
+ */
+public class LinearClassifierTest {
+
+    private static final int NUM_LABELS = 3;
+    private static final int SHARED_FEATURES = 20;
+
+    @Test
+    public void learnsWithEachLoss() {
+        Random random = new Random(3);
+        List<ProcessedInstance> training = documents(random, 600);
+        List<ProcessedInstance> test = documents(random, 200);
+
+        for (LinearClassifier.Loss loss : LinearClassifier.Loss.values()) {
+            LinearClassifier linear = new LinearClassifier();
+            linear.setLoss(loss);
+            linear.setParallelism(4);
+            linear.train(training);
+            assertTrue(loss.name(), accuracy(linear, test) > 0.9);
+        }
+    }
+
+    @Test
+    public void l1ZeroesUninformativeWeights() {
+        Random random = new Random(4);
+        List<ProcessedInstance> training = documents(random, 600);
+        LinearClassifier linear = new LinearClassifier();
+        linear.setL1(1E-2);
+        linear.train(training);
+
+        int zeroes = 0;
+        for (int feature = 0; feature < SHARED_FEATURES; feature++)
+            for (int label = 0; label < NUM_LABELS; label++)
+                if (linear.weight(feature, label) == 0) zeroes++;
+        assertTrue(zeroes > SHARED_FEATURES * NUM_LABELS / 2);
+        assertTrue(accuracy(linear, documents(random, 200)) > 0.9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesL2DecayToZero() {
+        LinearClassifier linear = new LinearClassifier();
+        linear.setL2(0.5);
+        linear.setLearningRate(2); // Every step would scale the weights by 1 - 2 * 0.5 = 0
+    }
+
+    @Test
+    public void jsonRoundTrip() throws IOException {
+        Random random = new Random(5);
+        FeatureExtractionPipeline pipeline = new FeatureExtractionPipeline() {};
+        for (int label = 0; label < NUM_LABELS; label++) pipeline.labelIndex("label" + label);
+        for (int feature = 0; feature < SHARED_FEATURES + NUM_LABELS * 10; feature++) pipeline.featureIndex("feature" + feature);
+
+        LinearClassifier linear = new LinearClassifier();
+        linear.setLoss(LinearClassifier.Loss.HINGE);
+        linear.train(documents(random, 100));
+        File file = File.createTempFile("linear", ".json");
+        file.deleteOnExit();
+        linear.writeJson(file, pipeline);
+        LinearClassifier read = LinearClassifier.readJson(file, pipeline);
+
+        assertEquals(linear.getLoss(), read.getLoss());
+        assertEquals(linear.getLabels(), read.getLabels());
+        assertEquals(linear.getVocab(), read.getVocab());
+        for (ProcessedInstance document : documents(random, 20)) {
+            LabelScores expected = new LabelScores();
+            LabelScores actual = new LabelScores();
+            linear.predict(document.features, expected);
+            read.predict(document.features, actual);
+            for (int label : linear.getLabels())
+                assertEquals(expected.get(label), actual.get(label), 1E-12);
+        }
+    }
+
+    private static double accuracy(LinearClassifier linear, List<ProcessedInstance> documents) {
+        int correct = 0;
+        LabelScores scratch = new LabelScores();
+        for (ProcessedInstance document : documents)
+            if (linear.bestLabel(document.getSparseFeatures(), scratch) == document.getLabel()) correct++;
+        return correct / (double) documents.size();
+    }
+
+    private static List<ProcessedInstance> documents(Random random, int n) {
+        return RandomDocuments.favouringLabels(random, n, NUM_LABELS, 4, 6, SHARED_FEATURES, 0.5);
+    }
+}
@@ -0,0 +1,71 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing label divergences and model drift against their definitions.
+ */
+public class ModelAnalysisTest {
+
+    @Test
+    public void divergencesMatchDefinitions() {
+        NaiveBayesClassifier nb = getExampleClassifier();
+        ModelAnalysis analysis = new ModelAnalysis(nb, 2);
+        ModelAnalysis.LabelDivergences kld = analysis.klDivergences();
+        ModelAnalysis.LabelDivergences jsd = analysis.jsDivergences();
+
+        for (int p : nb.getLabels()) {
+            for (int q : nb.getLabels()) {
+                double expectedKld = 0;
+                double expectedJsd = 0;
+                for (int k : nb.getVocab()) {
+                    double pk = nb.likelihood(k, p);
+                    double qk = nb.likelihood(k, q);
+                    double mk = (pk + qk) / 2;
+                    if (p != q) expectedKld += pk * Math.log(pk / qk) / Math.log(2);
+                    expectedJsd += (pk * Math.log(pk / mk) + qk * Math.log(qk / mk)) / (2 * Math.log(2));
+                }
+                assertEquals(expectedKld, kld.get(p, q), 1E-9);
+                assertEquals(expectedJsd, jsd.get(p, q), 1E-9);
+            }
+        }
+        assertEquals(kld.get(0, 1), NaiveBayesClassifier.pairWiseLabelKLD(nb)[0][1], 1E-9);
+
+        List<ModelAnalysis.LabelPair> closest = jsd.closestPairs(1);
+        assertEquals(1, closest.size());
+        assertEquals(0, closest.get(0).label1); // Labels 0 and 2 share most features
+        assertEquals(2, closest.get(0).label2);
+    }
+
+    @Test
+    public void driftFollowsTraining() {
+        ModelAnalysis before = new ModelAnalysis(getExampleClassifier(), 2);
+        assertEquals(0, before.drift(before).get(0).jsDivergence, 1E-12);
+
+        NaiveBayesClassifier nb = getExampleClassifier();
+        nb.trainOnInstance(1, new int[]{1, 1, 1, 6}, 1, 1);
+        List<ModelAnalysis.LabelDrift> drift = before.drift(new ModelAnalysis(nb, 2));
+
+        assertEquals(3, drift.size());
+        ModelAnalysis.LabelDrift label1 = drift.get(1);
+        assertEquals(1, label1.label);
+        assertEquals(1, label1.addedFeatures);
+        assertEquals(0, label1.removedFeatures);
+        assertTrue(label1.priorChange > 0);
+        assertTrue(label1.jsDivergence > drift.get(0).jsDivergence);
+    }
+
+    private static NaiveBayesClassifier getExampleClassifier() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier(new IntOpenHashSet(new int[]{0, 1, 2}));
+        nb.trainOnInstance(0, new int[]{1, 2, 2, 3}, 1, 1);
+        nb.trainOnInstance(1, new int[]{4, 5, 5}, 1, 1);
+        nb.trainOnInstance(2, new int[]{1, 2, 3, 3}, 1, 1);
+        return nb;
+    }
+}
@@ -0,0 +1,57 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing that a ModelHandle's readers only see published snapshots.
+ */
+public class ModelHandleTest {
+
+    private static final int[] DOCUMENT = {1, 2};
+
+    @Test
+    public void snapshotsAreIsolatedFromTraining() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(0, new int[] {1, 2}, 1, 1);
+        nb.trainOnInstance(1, new int[] {3}, 1, 1);
+
+        try (ModelHandle<NaiveBayesClassifier> handle = new ModelHandle<>(nb, true)) {
+            ModelHandle.Snapshot first = handle.current();
+            assertEquals(1, first.getVersion());
+            assertEquals(0, handle.classifier().bestLabel(DOCUMENT));
+            assertFalse(handle.publishIfModified());
+
+            handle.update(model -> {
+                for (int i = 0; i < 10; i++) model.trainOnInstance(1, DOCUMENT, 1, 1);
+            });
+            assertEquals(0, handle.classifier().bestLabel(DOCUMENT)); // Not yet published
+
+            assertTrue(handle.publishIfModified());
+            assertEquals(2, handle.current().getVersion());
+            assertEquals(1, handle.classifier().bestLabel(DOCUMENT));
+            assertEquals(0, first.getClassifier().bestLabel(DOCUMENT)); // Older snapshots are unchanged
+        }
+    }
+
+    @Test
+    public void publishesInBackground() throws InterruptedException {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(0, new int[] {1, 2}, 1, 1);
+
+        try (ModelHandle<NaiveBayesClassifier> handle = new ModelHandle<>(nb).publishEvery(10, TimeUnit.MILLISECONDS)) {
+            ModelHandle.Snapshot first = handle.current();
+            handle.update(model -> model.trainOnInstance(1, new int[] {3}, 1, 1));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (handle.current() == first && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+            assertTrue(handle.current().getVersion() > first.getVersion());
+            assertEquals(2, handle.classifier().getLabels().size());
+        }
+    }
+}
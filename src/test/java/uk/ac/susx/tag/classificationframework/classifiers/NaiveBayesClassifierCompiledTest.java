@@ -0,0 +1,138 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static uk.ac.susx.tag.testingtools.ScoreAssertions.assertSameScores;
+
+/**
+ * Testing that the compiled (feature-major) classifier scores documents exactly as the classifier it was compiled from.
+ */
+public class NaiveBayesClassifierCompiledTest {
+
+    private static final int[][] TEST_DOCUMENTS = {{1, 2}, {1, 3, 2}, {4}, {3, 3, 99}, {}};
+
+    @Test
+    public void matchesPreComputed() {
+        NaiveBayesClassifier nb = getExampleClassifier();
+        NaiveBayesClassifierPreComputed precomputed = new NaiveBayesClassifierPreComputed(nb);
+        AbstractNaiveBayesClassifier compiled = nb.getPrecomputedClassifier(true);
+
+        for (int[] document : TEST_DOCUMENTS) {
+            assertSameScores(precomputed.logpriorPlusLoglikelihood(document), compiled.logpriorPlusLoglikelihood(document));
+        }
+    }
+
+    @Test
+    public void matchesPreComputedWithoutEmpiricalPriors() {
+        NaiveBayesClassifier nb = getExampleClassifier();
+        NaiveBayesClassifierPreComputed precomputed = new NaiveBayesClassifierPreComputed(nb);
+        precomputed.empiricalLabelPriors(false);
+        NaiveBayesClassifierCompiled compiled = precomputed.compile();
+
+        for (int[] document : TEST_DOCUMENTS) {
+            assertSameScores(precomputed.logpriorPlusLoglikelihood(document), compiled.logpriorPlusLoglikelihood(document));
+        }
+    }
+
+    @Test
+    public void matchesOneVsRestPreComputed() {
+        NaiveBayesOVRClassifier<NaiveBayesClassifier> ovr = new NaiveBayesOVRClassifier<>(new IntOpenHashSet(new int[]{0, 1, 2}), NaiveBayesClassifier.class);
+        ovr.trainOnInstance(0, new int[]{1, 2}, 1, 1);
+        ovr.trainOnInstance(1, new int[]{2, 3}, 1, 1);
+        ovr.trainOnInstance(2, new int[]{3, 4, 4}, 1, 1);
+
+        NaiveBayesClassifierPreComputed precomputed = (NaiveBayesClassifierPreComputed) ovr.getPrecomputedClassifier();
+        AbstractNaiveBayesClassifier compiled = ovr.getPrecomputedClassifier(true);
+
+        for (int[] document : TEST_DOCUMENTS) {
+            assertSameScores(precomputed.logpriorPlusLoglikelihood(document), compiled.logpriorPlusLoglikelihood(document));
+        }
+    }
+
+    @Test
+    public void matchesMapped() throws IOException {
+        NaiveBayesClassifierCompiled compiled = (NaiveBayesClassifierCompiled) getExampleClassifier().getPrecomputedClassifier(true);
+        File file = File.createTempFile("nbmodel", ".mapped");
+        file.deleteOnExit();
+        NaiveBayesClassifierMapped.write(compiled, file);
+        NaiveBayesClassifierMapped mapped = new NaiveBayesClassifierMapped(file);
+
+        assertEquals(compiled.getVocab(), mapped.getVocab());
+        for (int[] document : TEST_DOCUMENTS) {
+            assertSameScores(compiled.logpriorPlusLoglikelihood(document), mapped.logpriorPlusLoglikelihood(document));
+        }
+    }
+
+    @Test
+    public void quantizedKeepsRankings() {
+        NaiveBayesClassifierCompiled compiled = (NaiveBayesClassifierCompiled) getExampleClassifier().getPrecomputedClassifier(true);
+        List<ProcessedInstance> documents = new ArrayList<>();
+        for (int[] document : TEST_DOCUMENTS)
+            documents.add(new ProcessedInstance(-1, document, null));
+
+        for (NaiveBayesClassifierQuantized.Precision precision : NaiveBayesClassifierQuantized.Precision.values()) {
+            NaiveBayesClassifierQuantized quantized = compiled.quantize(precision);
+            NaiveBayesClassifierQuantized.ValidationReport report = NaiveBayesClassifierQuantized.validate(compiled, quantized, documents);
+            assertEquals(TEST_DOCUMENTS.length, report.documents);
+            assertEquals(0, report.labelFlipRate, 0);
+            assertEquals(0, report.maxPosteriorDeviation, precision == NaiveBayesClassifierQuantized.Precision.BYTE ? 1E-2 : 1E-4);
+            assertEquals(compiled.getVocab(), quantized.getVocab());
+        }
+    }
+
+    @Test
+    public void topLabelsMatchFullScoring() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        Random random = new Random(9);
+        for (int d = 0; d < 2000; d++) {
+            int label = random.nextInt(300);
+            int[] features = new int[2 + random.nextInt(6)];
+            for (int i = 0; i < features.length; i++)
+                features[i] = random.nextBoolean() ? random.nextInt(50) : 50 + label * 3 + random.nextInt(3);
+            nb.trainOnInstance(label, features, 1, 1);
+        }
+        NaiveBayesClassifierCompiled compiled = (NaiveBayesClassifierCompiled) nb.getPrecomputedClassifier(true);
+
+        LabelScores all = new LabelScores();
+        LabelScores top = new LabelScores();
+        for (int d = 0; d < 100; d++) {
+            int[] document = new int[1 + random.nextInt(12)];
+            for (int i = 0; i < document.length; i++)
+                document[i] = random.nextInt(50 + 300 * 3);
+            compiled.logpriorPlusLoglikelihood(document, all);
+            assertEquals(all.argMax(), compiled.bestLabel(document, top));
+            assertEquals(all.argMax(), compiled.bestLabel(SparseFeatureVector.of(document), top));
+
+            Integer[] ranked = new Integer[all.size()];
+            for (int i = 0; i < ranked.length; i++) ranked[i] = i;
+            Arrays.sort(ranked, (a, b) -> Double.compare(all.score(b), all.score(a)));
+            compiled.topLabels(SparseFeatureVector.of(document), 5, top);
+            assertEquals(5, top.size());
+            for (int i = 0; i < 5; i++)
+                assertEquals(all.score(ranked[i]), top.score(i), 1E-9);
+        }
+    }
+
+    private static NaiveBayesClassifier getExampleClassifier() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(1, new int[] {1, 2}, 1, 1);
+        nb.trainOnInstance(1, new int[] {1, 3}, 1, 1);
+        nb.trainOnInstance(1, new int[] {1, 2, 3}, 1, 1);
+        nb.trainOnInstance(0, new int[] {1}, 1, 1);
+        nb.trainOnInstance(0, new int[] {2}, 1, 1);
+        nb.trainOnInstance(0, new int[] {3, 4}, 1, 1);
+        nb.setFeatureAlpha(4, 0, 10);
+        return nb;
+    }
+}
@@ -0,0 +1,141 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.Instance;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static uk.ac.susx.tag.testingtools.ScoreAssertions.assertSameScores;
+
+/**
+ * Testing that storing the joint counts feature-major gives the same model as the label-major NaiveBayesClassifier.
+ */
+public class NaiveBayesClassifierFeatureMajorTest {
+
+    private static final int NUM_LABELS = 7;  // More labels than the table's initial row capacity
+    private static final int VOCAB_SIZE = 300;
+
+    @Test
+    public void matchesLabelMajor() {
+        NaiveBayesClassifier labelMajor = new NaiveBayesClassifier();
+        NaiveBayesClassifierFeatureMajor featureMajor = new NaiveBayesClassifierFeatureMajor();
+        List<ProcessedInstance> unlabelled = new ArrayList<>();
+
+        Random random = new Random(3);
+        for (int d = 0; d < 200; d++) {
+            int[] features = RandomDocuments.favouringLowIndices(random, 5, 10, VOCAB_SIZE);
+            int label = random.nextInt(NUM_LABELS);
+            if (d % 2 == 0) {
+                labelMajor.trainOnInstance(label, features, 1, 1);
+                featureMajor.trainOnInstance(label, features, 1, 1);
+            } else {
+                SparseFeatureVector sparse = SparseFeatureVector.of(features);
+                labelMajor.trainOnInstance(label, sparse, 0.5, 2);
+                featureMajor.trainOnInstance(label, sparse, 0.5, 2);
+            }
+            unlabelled.add(new ProcessedInstance(-1, RandomDocuments.favouringLowIndices(random, 5, 10, VOCAB_SIZE), new Instance("", "", Integer.toString(d))));
+        }
+        for (NaiveBayesClassifier nb : new NaiveBayesClassifier[]{labelMajor, featureMajor}) {
+            nb.setFeatureAlpha(VOCAB_SIZE + 1, 2, 4);  // A feature known only through pseudo-counts
+            nb.setFeatureAlpha(5, 1, 2);
+        }
+        assertSameModel(labelMajor, featureMajor, random);
+
+        labelMajor.emTrain(unlabelled, 0.5);
+        featureMajor.emTrain(unlabelled, 0.5);
+        assertSameModel(labelMajor, featureMajor, random);
+
+        // Feature counts are multiples of 0.5, so a cutoff between them doesn't depend on the order of summing
+        assertEquals(labelMajor.trimInfrequentFeature(4.25), featureMajor.trimInfrequentFeature(4.25));
+        assertSameModel(labelMajor, featureMajor, random);
+
+        assertSameModel(labelMajor, new NaiveBayesClassifierFeatureMajor(labelMajor), random);
+    }
+
+    @Test
+    public void untrainingMatchesLabelMajor() {
+        NaiveBayesClassifier labelMajor = new NaiveBayesClassifier();
+        NaiveBayesClassifierFeatureMajor featureMajor = new NaiveBayesClassifierFeatureMajor();
+        List<ProcessedInstance> documents = new ArrayList<>();
+        Random random = new Random(4);
+        for (int d = 0; d < 100; d++)
+            documents.add(new ProcessedInstance(random.nextInt(NUM_LABELS), RandomDocuments.uniform(random, 3, 5, VOCAB_SIZE), null));
+
+        for (NaiveBayesClassifier nb : new NaiveBayesClassifier[]{labelMajor, featureMajor}) {
+            for (ProcessedInstance document : documents)
+                nb.trainOnInstance(document.getLabel(), document.features, 1, 1);
+            for (ProcessedInstance document : documents.subList(0, 60))  // Many features drop out of the vocab
+                nb.untrainOnInstance(document.getLabel(), document.features, 1, 1);
+
+            // A feature whose counts are untrained while it has pseudo-counts, then is unlabelled and trained again
+            nb.setFeatureAlpha(VOCAB_SIZE, 0, 1);
+            nb.trainOnInstance(1, new int[]{VOCAB_SIZE}, 1, 1);
+            nb.untrainOnInstance(1, new int[]{VOCAB_SIZE}, 1, 1);
+            nb.unlabelFeature(VOCAB_SIZE, 0);
+            nb.trainOnInstance(2, new int[]{VOCAB_SIZE}, 1, 1);
+        }
+        assertSameModel(labelMajor, featureMajor, random);
+        assertEquals(featureMajor.getVocab().size(), featureMajor.getCountTable().size());
+        for (int feature : featureMajor.getVocab())
+            assertEquals(feature, featureMajor.getCountTable().feature(featureMajor.getCountTable().row(feature)));
+    }
+
+    @Test
+    public void removesRows() {
+        FeatureLabelCountTable table = new FeatureLabelCountTable();
+        Int2DoubleOpenHashMap expected = new Int2DoubleOpenHashMap();
+        Random random = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            int feature = random.nextInt(VOCAB_SIZE) * 64; // Multiples of a power of 2, so that probe runs collide
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.containsKey(feature), table.remove(feature));
+                expected.remove(feature);
+            } else {
+                table.add(feature, random.nextInt(NUM_LABELS), 1);
+                expected.addTo(feature, 1);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (int feature = 0; feature < VOCAB_SIZE * 64; feature += 64)
+            assertEquals(expected.get(feature), table.total(feature), 0);
+    }
+
+    private static void assertSameModel(NaiveBayesClassifier expected, NaiveBayesClassifierFeatureMajor actual, Random random) {
+        assertEquals(expected.getVocab(), actual.getVocab());
+        assertEquals(expected.getLabels(), actual.getLabels());
+
+        Int2ObjectMap<Int2DoubleOpenHashMap> expectedCounts = expected.getJointCounts();
+        Int2ObjectMap<Int2DoubleOpenHashMap> actualCounts = actual.getJointCounts();
+        for (int label : expected.getLabels()) {
+            for (int feature : expected.getVocab()) {
+                double count = expectedCounts.containsKey(label) ? expectedCounts.get(label).get(feature) : 0;
+                assertEquals(count, actualCounts.containsKey(label) ? actualCounts.get(label).get(feature) : 0, 1E-9);
+                assertEquals(expected.likelihood(feature, label), actual.likelihood(feature, label), 1E-12);
+            }
+            int[] features = expected.getVocab().toIntArray();
+            double[] likelihoods = actual.likelihoods(label, features);
+            for (int i = 0; i < features.length; i++)
+                assertEquals(expected.likelihood(features[i], label), likelihoods[i], 1E-12);
+        }
+        for (int feature : expected.getVocab())
+            assertEquals(expected.featureCount(feature), actual.featureCount(feature), 1E-9);
+
+        for (int d = 0; d < 20; d++) {
+            int[] document = RandomDocuments.favouringLowIndices(random, 5, 10, VOCAB_SIZE);
+            assertSameScores(expected.logpriorPlusLoglikelihood(document), actual.logpriorPlusLoglikelihood(document));
+            LabelScores expectedScores = new LabelScores();
+            LabelScores actualScores = new LabelScores();
+            expected.logpriorPlusLoglikelihood(SparseFeatureVector.of(document), expectedScores);
+            actual.logpriorPlusLoglikelihood(SparseFeatureVector.of(document), actualScores);
+            assertSameScores(expectedScores.toMap(), actualScores.toMap());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing that solving the feature marginal constraints in parallel, or from the roots of a previous solve,
+ * finds the same probabilities as solving them one by one from scratch.
+ */
+public class NaiveBayesClassifierFeatureMarginalsTest {
+
+    private static final int VOCAB_SIZE = 5000; // Enough words to be split across several solve tasks
+
+    @Test
+    public void parallelSolveMatchesSerial() {
+        List<ProcessedInstance> labelled = RandomDocuments.twoLabelled(400, 20, VOCAB_SIZE / 2, new Random(1), true);
+        List<ProcessedInstance> unlabelled = RandomDocuments.twoLabelled(2000, 20, VOCAB_SIZE / 2, new Random(2), false);
+
+        NaiveBayesClassifierFeatureMarginals serial = newClassifier();
+        serial.calculateFeatureMarginals(labelled, unlabelled);
+
+        NaiveBayesClassifierFeatureMarginals parallel = newClassifier();
+        parallel.setSolverParallelism(4);
+        parallel.calculateFeatureMarginals(labelled, unlabelled);
+
+        assertSameProbabilities(serial, parallel);
+        assertEquals(serial.getLastSolveStatistics().totalEvaluations, parallel.getLastSolveStatistics().totalEvaluations);
+        assertTrue(serial.getLastSolveStatistics().roots > 0);
+    }
+
+    @Test
+    public void warmStartConvergesToSameRoots() {
+        List<ProcessedInstance> labelled = RandomDocuments.twoLabelled(400, 20, VOCAB_SIZE / 2, new Random(1), true);
+        List<ProcessedInstance> unlabelled = RandomDocuments.twoLabelled(2000, 20, VOCAB_SIZE / 2, new Random(2), false);
+
+        NaiveBayesClassifierFeatureMarginals fresh = newClassifier();
+        fresh.calculateFeatureMarginals(labelled, unlabelled);
+
+        NaiveBayesClassifierFeatureMarginals retrained = newClassifier();
+        retrained.calculateFeatureMarginals(labelled, unlabelled);
+        long coldEvaluations = retrained.getLastSolveStatistics().totalEvaluations;
+        retrained.calculateFeatureMarginals(labelled, unlabelled);
+
+        NaiveBayesClassifierFeatureMarginals.SolveStatistics warm = retrained.getLastSolveStatistics();
+        assertEquals(warm.roots, warm.warmStarts);
+        assertTrue(warm.totalEvaluations < coldEvaluations);
+        assertSameProbabilities(fresh, retrained);
+    }
+
+    private static void assertSameProbabilities(NaiveBayesClassifierFeatureMarginals expected, NaiveBayesClassifierFeatureMarginals actual) {
+        assertEquals(expected.getOptClassCondFMProbs().keySet(), actual.getOptClassCondFMProbs().keySet());
+        for (int label : expected.getOptClassCondFMProbs().keySet()) {
+            Int2DoubleOpenHashMap expectedProbs = expected.getOptClassCondFMProbs().get(label);
+            Int2DoubleOpenHashMap actualProbs = actual.getOptClassCondFMProbs().get(label);
+            assertEquals(expectedProbs.keySet(), actualProbs.keySet());
+            for (int feature : expectedProbs.keySet()) {
+                assertEquals(expectedProbs.get(feature), actualProbs.get(feature), 1E-9);
+            }
+        }
+    }
+
+    private static NaiveBayesClassifierFeatureMarginals newClassifier() {
+        return new NaiveBayesClassifierFeatureMarginals(new IntOpenHashSet(new int[]{0, 1}));
+    }
+}
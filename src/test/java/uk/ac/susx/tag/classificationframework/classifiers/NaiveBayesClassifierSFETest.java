@@ -0,0 +1,62 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the log space sums of SFE training, in serial, in parallel and incrementally.
+ */
+public class NaiveBayesClassifierSFETest {
+
+    @Test
+    public void longDocumentsDoNotUnderflow() {
+        List<ProcessedInstance> labelled = RandomDocuments.twoLabelled(50, 2000, 50, new Random(1), true);
+        List<ProcessedInstance> unlabelled = RandomDocuments.twoLabelled(50, 2000, 50, new Random(2), false);
+
+        NaiveBayesClassifierSFE serial = newClassifier();
+        serial.train(labelled, unlabelled);
+        NaiveBayesClassifierSFE parallel = newClassifier();
+        parallel.setTrainingParallelism(4);
+        parallel.train(labelled, unlabelled);
+
+        Int2DoubleOpenHashMap logSums = serial.getLabelPriorTimesLikelihoodPerLabelSum();
+        assertEquals(2, logSums.size());
+        for (int label : logSums.keySet()) {
+            assertTrue(logSums.get(label) > Double.NEGATIVE_INFINITY && logSums.get(label) < 0);
+            assertEquals(logSums.get(label), parallel.getLabelPriorTimesLikelihoodPerLabelSum().get(label), 1E-9);
+        }
+    }
+
+    @Test
+    public void updateAddsNewDocuments() {
+        List<ProcessedInstance> labelled = RandomDocuments.twoLabelled(40, 10, 50, new Random(1), true);
+        List<ProcessedInstance> unlabelled = RandomDocuments.twoLabelled(40, 10, 50, new Random(2), false);
+
+        NaiveBayesClassifierSFE retrained = newClassifier();
+        retrained.train(labelled, unlabelled);
+
+        NaiveBayesClassifierSFE updated = newClassifier();
+        updated.train(labelled.subList(0, 30), unlabelled);
+        Int2DoubleOpenHashMap before = new Int2DoubleOpenHashMap(updated.getLabelPriorTimesLikelihoodPerLabelSum());
+        updated.update(labelled.subList(30, 40));
+
+        // Same counts as training on everything, and every label's sum grows
+        assertEquals(retrained.docCounts, updated.docCounts);
+        for (int label : before.keySet()) {
+            assertTrue(updated.getLabelPriorTimesLikelihoodPerLabelSum().get(label) > before.get(label));
+        }
+    }
+
+    private static NaiveBayesClassifierSFE newClassifier() {
+        return new NaiveBayesClassifierSFE(new IntOpenHashSet(new int[]{0, 1}));
+    }
+}
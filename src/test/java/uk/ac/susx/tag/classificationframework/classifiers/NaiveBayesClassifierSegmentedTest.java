@@ -0,0 +1,94 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing that a segmented classifier, updated with the changes to a NaiveBayesClassifier, scores as the classifier does.
+ */
+public class NaiveBayesClassifierSegmentedTest {
+
+    private static final int VOCAB_SIZE = 200;
+
+    @Test
+    public void updatesFollowTraining() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        Random random = new Random(5);
+        train(nb, random, 50);
+
+        NaiveBayesClassifierSegmented served = new NaiveBayesClassifierSegmented(nb, 40);
+        assertSameScores(nb, served, random);
+
+        for (int round = 0; round < 10; round++) {
+            train(nb, random, 3);
+            served = served.update(nb);
+            assertSameScores(nb, served, random);
+            assertTrue(served.deltaSize() < VOCAB_SIZE);
+        }
+
+        nb.setFeatureAlpha(VOCAB_SIZE + 1, 0, 3);   // A feature known only through pseudo-counts
+        nb.setLabelAlpha(2, 4);
+        nb.deleteFeature(7);
+        served = served.update(nb);
+        assertSameScores(nb, served, random);
+        assertFalse(served.getVocab().contains(7));
+        assertTrue(served.getVocab().contains(VOCAB_SIZE + 1));
+        assertEquals(nb.getVocab(), served.getVocab());
+
+        NaiveBayesClassifierSegmented merged = served.merge();
+        assertEquals(0, merged.deltaSize());
+        assertSameScores(nb, merged, random);
+
+        nb.setFeatureSmoothing(0.5);                // Changes every numerator, so rebuilds
+        served = served.update(nb);
+        assertEquals(0, served.deltaSize());
+        assertSameScores(nb, served, random);
+
+        nb.trainOnInstance(3, new int[]{1, 2}, 1, 1); // A new label, so rebuilds
+        served = served.update(nb);
+        assertEquals(0, served.deltaSize());
+        assertSameScores(nb, served, random);
+    }
+
+    @Test
+    public void featureMajorCountsSegment() {
+        NaiveBayesClassifierFeatureMajor nb = new NaiveBayesClassifierFeatureMajor();
+        Random random = new Random(6);
+        train(nb, random, 30);
+        NaiveBayesClassifierSegmented served = nb.getSegmentedClassifier();
+        train(nb, random, 5);
+        served = served.update(nb);
+        assertSameScores(nb, served, random);
+    }
+
+    private static void train(NaiveBayesClassifier nb, Random random, int documents) {
+        for (int d = 0; d < documents; d++)
+            nb.trainOnInstance(random.nextInt(3), RandomDocuments.uniform(random, 3, 8, VOCAB_SIZE), 1, 1);
+    }
+
+    private static void assertSameScores(NaiveBayesClassifier expected, NaiveBayesClassifierSegmented actual, Random random) {
+        assertEquals(expected.getLabels(), actual.getLabels());
+        for (int d = 0; d < 20; d++) {
+            int[] document = RandomDocuments.uniform(random, 3, 8, VOCAB_SIZE);
+            Int2DoubleOpenHashMap expectedScores = expected.logpriorPlusLoglikelihood(document);
+            Int2DoubleOpenHashMap actualScores = actual.logpriorPlusLoglikelihood(document);
+            LabelScores sparseScores = new LabelScores();
+            actual.logpriorPlusLoglikelihood(SparseFeatureVector.of(document), sparseScores);
+
+            assertEquals(new IntOpenHashSet(expectedScores.keySet()), new IntOpenHashSet(actualScores.keySet()));
+            for (int label : expectedScores.keySet()) {
+                assertEquals(expectedScores.get(label), actualScores.get(label), 1E-9);
+                assertEquals(expectedScores.get(label), sparseScores.get(label), 1E-9);
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.Instance;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.classificationframework.datastructures.SparseFeatureVector;
+import uk.ac.susx.tag.classificationframework.featureextraction.pipelines.FeatureExtractionPipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Testing the NaiveBayesClassifier.
+ */
+public class NaiveBayesClassifierTest {
+
+    private static final int[] DOCUMENT = {1, 2, 3, 5};
+
+    /**
+     * Test that the scores cached between training steps are discarded by each kind of training or alteration.
+     */
+    @Test
+    public void scoringFollowsTraining() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(0, new int[] {1, 2}, 1, 1);
+        nb.trainOnInstance(1, new int[] {2, 3}, 1, 1);
+        assertPredictsFromCounts(nb);
+
+        nb.trainOnInstance(1, new int[] {3, 4}, 1, 1);   // New feature changes every denominator
+        assertPredictsFromCounts(nb);
+        nb.trainOnInstance(2, new int[] {5}, 0.5, 1);    // New label
+        assertPredictsFromCounts(nb);
+        nb.setFeatureAlpha(5, 0, 3);
+        assertPredictsFromCounts(nb);
+        nb.unlabelFeature(5, 0);
+        assertPredictsFromCounts(nb);
+        nb.setLabelAlpha(1, 2);
+        assertPredictsFromCounts(nb);
+        nb.setLabelMultiplier(0, 4);
+        assertPredictsFromCounts(nb);
+        nb.setFeatureSmoothing(0.5);
+        assertPredictsFromCounts(nb);
+        nb.setLabelSmoothing(1);
+        assertPredictsFromCounts(nb);
+        nb.empiricalLabelPriors(false);
+        assertPredictsFromCounts(nb);
+        nb.deleteFeature(4);
+        assertPredictsFromCounts(nb);
+        nb.emTrain(Collections.singletonList(new ProcessedInstance(-1, new int[] {1, 5}, new Instance("", "", "1"))));
+        assertPredictsFromCounts(nb);
+    }
+
+    /**
+     * Test that sharding the Expectation step of EM across threads gives the same model as the serial version.
+     */
+    @Test
+    public void parallelEMMatchesSerial() {
+        Random random = new Random(0);
+        List<ProcessedInstance> unlabelled = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            int[] features = new int[1 + random.nextInt(4)];
+            for (int j = 0; j < features.length; j++)
+                features[j] = random.nextInt(8);
+            unlabelled.add(new ProcessedInstance(-1, features, new Instance("", "", Integer.toString(i))));
+        }
+
+        NaiveBayesClassifier serial = getExampleClassifier();
+        serial.emTrain(unlabelled, serial);
+        NaiveBayesClassifier parallel = getExampleClassifier();
+        parallel.emTrain(unlabelled, parallel, 4);
+
+        for (ProcessedInstance document : unlabelled.subList(0, 50)) {
+            Int2DoubleOpenHashMap expected = serial.predict(document.features);
+            Int2DoubleOpenHashMap predicted = parallel.predict(document.features);
+            for (int label : expected.keySet())
+                assertEquals(expected.get(label), predicted.get(label), 1E-9);
+        }
+    }
+
+    /**
+     * Test that a classifier read from the binary format, with a differently indexed pipeline, predicts as the original.
+     */
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        FeatureExtractionPipeline pipeline = new FeatureExtractionPipeline() {};
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(pipeline.labelIndex("positive"), indices(pipeline, "good", "great", "film"), 1, 1);
+        nb.trainOnInstance(pipeline.labelIndex("negative"), indices(pipeline, "bad", "film"), 1, 1);
+        nb.setFeatureAlpha(pipeline.featureIndex("awful"), pipeline.labelIndex("negative"), 3);
+        nb.setLabelMultiplier(pipeline.labelIndex("positive"), 2);
+        nb.setFeatureSmoothing(0.5);
+
+        File file = File.createTempFile("nbmodel", ".bin");
+        file.deleteOnExit();
+        nb.writeBinary(file, pipeline);
+
+        FeatureExtractionPipeline otherPipeline = new FeatureExtractionPipeline() {};
+        otherPipeline.featureIndex("unrelated");
+        otherPipeline.labelIndex("negative");
+        NaiveBayesClassifier read = NaiveBayesClassifier.readBinary(file, otherPipeline);
+
+        assertEquals(nb.getFeatureSmoothing(), read.getFeatureSmoothing(), 0);
+        assertEquals(nb.getVocab().size(), read.getVocab().size());
+        String[][] documents = {{"good", "film"}, {"awful", "film"}, {"bad", "great"}};
+        for (String[] document : documents) {
+            Int2DoubleOpenHashMap expected = nb.predict(indices(pipeline, document));
+            Int2DoubleOpenHashMap predicted = read.predict(indices(otherPipeline, document));
+            for (String label : new String[]{"positive", "negative"})
+                assertEquals(expected.get(pipeline.labelIndex(label)), predicted.get(otherPipeline.labelIndex(label)), 1E-12);
+        }
+    }
+
+    /**
+     * Test that a string length which overruns the file is reported as a corrupt model, rather than allocated.
+     */
+    @Test(expected = IOException.class)
+    public void binaryRejectsCorruptStringLength() throws IOException {
+        FeatureExtractionPipeline pipeline = new FeatureExtractionPipeline() {};
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(pipeline.labelIndex("positive"), indices(pipeline, "good", "film"), 1, 1);
+
+        File file = File.createTempFile("nbmodel", ".bin");
+        file.deleteOnExit();
+        nb.writeBinary(file, pipeline);
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+            data.seek(8);   // Length of the classifier name, after the magic number and version
+            data.writeInt(Integer.MAX_VALUE);
+        }
+        NaiveBayesClassifier.readBinary(file, pipeline);
+    }
+
+    /**
+     * Test that the running feature totals follow training, and that trimming removes every count of the infrequent features.
+     */
+    @Test
+    public void trimmingFollowsTraining() {
+        NaiveBayesClassifier nb = getExampleClassifier();
+        assertEquals(2, nb.featureCount(3), 0);    // Totals are counted here, then kept up to date
+
+        nb.trainOnInstance(0, new int[] {1, 1, 8}, 1, 1);
+        nb.trainOnInstance(1, SparseFeatureVector.of(new int[] {4, 4, 6}), 0.5, 2);
+        nb.setFeatureAlpha(7, 1, 3);
+        nb.setFeatureAlpha(9, 0, 0.5);
+        nb.emTrain(Collections.singletonList(new ProcessedInstance(-1, new int[] {2, 5}, new Instance("", "", "1"))), 0.25);
+        assertTotalsMatchCounts(nb);
+
+        int labelsWithPseudoCounts = nb.getLabelledFeatures().size();
+        IntSet trimmed = nb.trimInfrequentFeature(1.5);
+        assertEquals(new IntOpenHashSet(new int[] {2, 8, 9}), trimmed);
+        assertEquals(labelsWithPseudoCounts, nb.getLabelledFeatures().size()); // No empty maps inserted
+        for (int feature : trimmed) {
+            assertFalse(nb.getVocab().contains(feature));
+            assertEquals(0, nb.featureCount(feature), 0);
+            for (int label : nb.getLabels()) {
+                assertFalse(nb.hasRealCounts(feature, label));
+                assertFalse(nb.hasPseudoCounts(feature, label));
+            }
+        }
+        for (int label : nb.getLabels()) {
+            double labelCount = 0;
+            for (double count : nb.getJointCounts().get(label).values()) labelCount += count;
+            assertEquals(labelCount, nb.labelCounts.get(label), 1E-9);
+        }
+        assertTotalsMatchCounts(nb);
+        assertPredictsFromCounts(nb);
+    }
+
+    /**
+     * Test that untraining and relabelling documents leaves the same model as retraining without them.
+     */
+    @Test
+    public void untrainingMatchesRetraining() {
+        IntSet labels = new IntOpenHashSet(new int[] {0, 1, 2});
+        List<NaiveBayesClassifier> models = new ArrayList<>();
+        models.add(new NaiveBayesClassifier(labels));
+        models.add(new NaiveBayesClassifierFeatureMajor(labels));
+        models.add(new ConcurrentNaiveBayesClassifier(labels));
+        models.add(new NaiveBayesOVRClassifier<>(labels, NaiveBayesClassifier.class));
+        for (NaiveBayesClassifier nb : models) {
+            NaiveBayesClassifier expected = nb instanceof NaiveBayesOVRClassifier
+                    ? new NaiveBayesOVRClassifier<>(labels, NaiveBayesClassifier.class)
+                    : new NaiveBayesClassifier(labels);
+            for (NaiveBayesClassifier model : new NaiveBayesClassifier[] {nb, expected}) {
+                model.setFeatureAlpha(9, 2, 2);
+                model.trainOnInstance(0, new int[] {1, 2, 3}, 1, 1);
+                model.trainOnInstance(2, new int[] {5, 9}, 1, 0.3);
+            }
+            nb.trainOnInstance(1, new int[] {3, 4, 8, 8}, 1, 0.7);   // Only feature 8 is unique to this document
+            nb.trainOnInstance(0, new int[] {5, 6, 7}, 1, 1);
+            expected.trainOnInstance(2, new int[] {5, 6, 7}, 1, 1);
+            if (nb instanceof ConcurrentNaiveBayesClassifier) ((ConcurrentNaiveBayesClassifier) nb).flush();
+
+            nb.untrainOnInstance(1, new int[] {3, 4, 8, 8}, 1, 0.7);
+            nb.relabel(0, 2, new int[] {5, 6, 7}, 1);
+
+            String name = nb.getClass().getSimpleName();
+            assertEquals(name, expected.getVocab(), nb.getVocab());
+            assertFalse(name, nb.getVocab().contains(8));
+            for (int[] document : new int[][] {DOCUMENT, {4, 6}, {9}}) {
+                Int2DoubleOpenHashMap predicted = nb.predict(document);
+                for (Int2DoubleOpenHashMap.Entry entry : expected.predict(document).int2DoubleEntrySet())
+                    assertEquals(name, entry.getDoubleValue(), predicted.get(entry.getIntKey()), 1E-9);
+            }
+        }
+    }
+
+    private static void assertTotalsMatchCounts(NaiveBayesClassifier nb) {
+        for (int feature : nb.getVocab()) {
+            double real = 0, pseudo = 0;
+            for (int label : nb.getLabels()) {
+                real += nb.getJointCounts().containsKey(label) ? nb.getJointCounts().get(label).get(feature) : 0;
+                pseudo += nb.getLabelledFeatures().containsKey(label) ? nb.getLabelledFeatures().get(label).get(feature) : 0;
+            }
+            assertEquals(real, nb.realFeatureCount(feature), 1E-9);
+            assertEquals(pseudo, nb.pseudoFeatureCount(feature), 1E-9);
+        }
+    }
+
+    private static int[] indices(FeatureExtractionPipeline pipeline, String... features) {
+        int[] indices = new int[features.length];
+        for (int i = 0; i < features.length; i++)
+            indices[i] = pipeline.featureIndex(features[i]);
+        return indices;
+    }
+
+    /**
+     * Assert that the classifier's prediction of DOCUMENT is P(label) * product of P(feature|label), normalised.
+     */
+    private static void assertPredictsFromCounts(NaiveBayesClassifier nb) {
+        Int2DoubleOpenHashMap expected = new Int2DoubleOpenHashMap();
+        double normalisation = 0;
+        for (int label : nb.getLabels()) {
+            double joint = nb.labelPriors().get(label);
+            for (int feature : DOCUMENT)
+                if (nb.getVocab().contains(feature)) joint *= nb.likelihood(feature, label);
+            expected.put(label, joint);
+            normalisation += joint;
+        }
+        Int2DoubleOpenHashMap predicted = nb.predict(DOCUMENT);
+        assertEquals(expected.size(), predicted.size());
+        for (int label : expected.keySet()) {
+            assertEquals(expected.get(label) / normalisation, predicted.get(label), 1E-9);
+        }
+    }
+
+    private static NaiveBayesClassifier getExampleClassifier() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier();
+        nb.trainOnInstance(0, new int[] {1, 2, 3}, 1, 1);
+        nb.trainOnInstance(1, new int[] {3, 4, 5}, 1, 1);
+        nb.trainOnInstance(2, new int[] {5, 6, 7}, 1, 1);
+        return nb;
+    }
+}
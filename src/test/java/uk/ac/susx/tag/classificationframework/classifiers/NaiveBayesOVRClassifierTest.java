@@ -0,0 +1,83 @@
+package uk.ac.susx.tag.classificationframework.classifiers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static uk.ac.susx.tag.testingtools.ScoreAssertions.assertSameScores;
+
+/**
+ * Testing that the one-vs-rest classifier scores the same whether its learners are trained concurrently or not,
+ * and whether they are scored one by one or in a single fused pass.
+ */
+public class NaiveBayesOVRClassifierTest {
+
+    private static final int[][] TEST_DOCUMENTS = {{1, 2}, {2, 3, 5}, {4}, {3, 3, 99}, {}};
+
+    @Test
+    public void fusedScoringMatchesLearners() {
+        NaiveBayesOVRClassifier<NaiveBayesClassifier> ovr = getExampleClassifier(null);
+
+        for (int repeat = 0; repeat < 10; repeat++) { // Enough features scored for the fused table to be built
+            for (int[] document : TEST_DOCUMENTS) {
+                Int2DoubleOpenHashMap expectedScores = new Int2DoubleOpenHashMap();
+                Int2DoubleOpenHashMap expectedPosteriors = new Int2DoubleOpenHashMap();
+                for (int label : ovr.getLabels()) {
+                    NaiveBayesClassifier learner = ovr.getOvrLearners().get(label);
+                    expectedScores.put(label, learner.logpriorPlusLoglikelihood(document).get(label));
+                    expectedPosteriors.put(label, learner.predict(document).get(label));
+                }
+                assertSameScores(expectedScores, ovr.logpriorPlusLoglikelihood(document));
+                assertSameScores(expectedPosteriors, ovr.predict(document));
+            }
+        }
+
+        // Training discards the fused table
+        ovr.trainOnInstance(0, new int[]{4, 5}, 1, 1);
+        NaiveBayesClassifier learner = ovr.getOvrLearners().get(0);
+        assertEquals(learner.predict(TEST_DOCUMENTS[2]).get(0), ovr.predict(TEST_DOCUMENTS[2]).get(0), 1E-9);
+    }
+
+    @Test
+    public void parallelTrainingMatchesSerial() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            NaiveBayesOVRClassifier<NaiveBayesClassifier> serial = getExampleClassifier(null);
+            NaiveBayesOVRClassifier<NaiveBayesClassifier> parallel = getExampleClassifier(executor);
+
+            NaiveBayesClassifierPreComputed serialPrecomputed = (NaiveBayesClassifierPreComputed) serial.getPrecomputedClassifier();
+            NaiveBayesClassifierPreComputed parallelPrecomputed = (NaiveBayesClassifierPreComputed) parallel.getPrecomputedClassifier();
+            for (int[] document : TEST_DOCUMENTS) {
+                assertSameScores(serial.predict(document), parallel.predict(document));
+                assertSameScores(serialPrecomputed.logpriorPlusLoglikelihood(document), parallelPrecomputed.logpriorPlusLoglikelihood(document));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void refusesSegmentation() {
+        getExampleClassifier(null).getSegmentedClassifier(); // The wrapper holds none of the counts
+    }
+
+    private static NaiveBayesOVRClassifier<NaiveBayesClassifier> getExampleClassifier(ExecutorService executor) {
+        NaiveBayesOVRClassifier<NaiveBayesClassifier> ovr = new NaiveBayesOVRClassifier<>(new IntOpenHashSet(new int[]{0, 1, 2}), NaiveBayesClassifier.class);
+        ovr.setTrainingExecutor(executor);
+        List<ProcessedInstance> documents = new ArrayList<>();
+        documents.add(new ProcessedInstance(0, new int[]{1, 2}, null));
+        documents.add(new ProcessedInstance(0, new int[]{1, 1, 5}, null));
+        documents.add(new ProcessedInstance(1, new int[]{2, 3}, null));
+        documents.add(new ProcessedInstance(1, new int[]{3, 5}, null));
+        documents.add(new ProcessedInstance(2, new int[]{3, 4, 4}, null));
+        ovr.train(documents);
+        return ovr;
+    }
+}
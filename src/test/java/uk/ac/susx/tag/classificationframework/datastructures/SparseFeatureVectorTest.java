@@ -0,0 +1,83 @@
+package uk.ac.susx.tag.classificationframework.datastructures;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.classifiers.AbstractNaiveBayesClassifier;
+import uk.ac.susx.tag.classificationframework.classifiers.LabelScores;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifierPreComputed;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing the counting of features into a SparseFeatureVector, and that classifiers train and score
+ * the same on it as on the dense features.
+ */
+public class SparseFeatureVectorTest {
+
+    private static final int[][] TEST_DOCUMENTS = {{1, 2}, {2, 3, 5, 2, 2}, {4, 4, 99}, {}};
+
+    @Test
+    public void counting() {
+        SparseFeatureVector sparse = SparseFeatureVector.of(new int[]{5, 3, 5, 9, 3, 5});
+
+        assertArrayEquals(new int[]{3, 5, 9}, sparse.features());
+        assertArrayEquals(new int[]{2, 3, 1}, sparse.counts());
+        assertEquals(6, sparse.totalCount());
+        assertEquals(3, sparse.countOf(5));
+        assertEquals(0, sparse.countOf(4));
+        assertTrue(SparseFeatureVector.of(new int[0]).isEmpty());
+    }
+
+    @Test
+    public void rebuiltWhenFeaturesReassigned() {
+        ProcessedInstance instance = new ProcessedInstance(0, new int[]{1, 1, 2}, null);
+        SparseFeatureVector sparse = instance.getSparseFeatures();
+        assertSame(sparse, instance.getSparseFeatures());
+
+        instance.features = new int[]{7};
+        assertArrayEquals(new int[]{7}, instance.getSparseFeatures().features());
+    }
+
+    @Test
+    public void trainingAndScoringMatchDense() {
+        List<ProcessedInstance> documents = new ArrayList<>();
+        documents.add(new ProcessedInstance(0, new int[]{1, 2, 1, 1}, null));
+        documents.add(new ProcessedInstance(0, new int[]{1, 5, 5}, null));
+        documents.add(new ProcessedInstance(1, new int[]{2, 3, 3, 3}, null));
+        documents.add(new ProcessedInstance(1, new int[]{3, 5}, null));
+        documents.add(new ProcessedInstance(2, new int[]{3, 4, 4}, null));
+
+        NaiveBayesClassifier sparseTrained = new NaiveBayesClassifier(new IntOpenHashSet(new int[]{0, 1, 2}));
+        sparseTrained.train(documents);
+        NaiveBayesClassifier denseTrained = new NaiveBayesClassifier(new IntOpenHashSet(new int[]{0, 1, 2}));
+        for (ProcessedInstance document : documents)
+            denseTrained.trainOnInstance(document.getLabel(), document.features, 1, 1);
+
+        AbstractNaiveBayesClassifier precomputed = sparseTrained.getPrecomputedClassifier();
+        AbstractNaiveBayesClassifier compiled = ((NaiveBayesClassifierPreComputed) precomputed).compile();
+        for (int[] document : TEST_DOCUMENTS) {
+            SparseFeatureVector sparse = SparseFeatureVector.of(document);
+            Int2DoubleOpenHashMap expected = denseTrained.logpriorPlusLoglikelihood(document);
+            assertSameScores(expected, sparseTrained, sparse);
+            assertSameScores(precomputed.logpriorPlusLoglikelihood(document), precomputed, sparse);
+            assertSameScores(compiled.logpriorPlusLoglikelihood(document), compiled, sparse);
+            assertEquals(denseTrained.bestLabel(document), sparseTrained.bestLabel(sparse, new LabelScores()));
+        }
+    }
+
+    private static void assertSameScores(Int2DoubleOpenHashMap expected, AbstractNaiveBayesClassifier classifier, SparseFeatureVector features) {
+        LabelScores scores = new LabelScores();
+        classifier.logpriorPlusLoglikelihood(features, scores);
+        assertEquals(expected.size(), scores.size());
+        for (int i = 0; i < scores.size(); i++)
+            assertEquals(expected.get(scores.label(i)), scores.score(i), 1E-9);
+    }
+}
@@ -0,0 +1,76 @@
+package uk.ac.susx.tag.classificationframework.trainers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
+import uk.ac.susx.tag.classificationframework.datastructures.Instance;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing EM run to convergence.
+ */
+public class ConvergentEMTrainerTest {
+
+    @Test
+    public void singleIterationIsStandardEM() {
+        List<ProcessedInstance> labelled = getLabelledData();
+        List<ProcessedInstance> unlabelled = getUnlabelledData();
+        NaiveBayesClassifier expected = new StandardEMTrainer().train(null, labelled, unlabelled, getClassifier());
+        NaiveBayesClassifier trained = new ConvergentEMTrainer().setMaxIterations(1).train(null, labelled, unlabelled, getClassifier());
+        for (ProcessedInstance document : unlabelled.subList(0, 20)) {
+            Int2DoubleOpenHashMap predicted = trained.predict(document.features);
+            for (Int2DoubleOpenHashMap.Entry entry : expected.predict(document.features).int2DoubleEntrySet())
+                assertEquals(entry.getDoubleValue(), predicted.get(entry.getIntKey()), 1E-9);
+        }
+    }
+
+    @Test
+    public void stopsOnConvergence() {
+        List<ConvergentEMTrainer.IterationReport> reports = new ArrayList<>();
+        new ConvergentEMTrainer()
+                .setMaxIterations(100)
+                .setIterationListener(reports::add)
+                .train(null, getLabelledData(), getUnlabelledData(), getClassifier());
+
+        ConvergentEMTrainer.IterationReport last = reports.get(reports.size() - 1);
+        assertTrue(last.converged);
+        assertTrue(reports.size() < 100);
+        assertEquals(reports.size(), last.iteration);
+        assertTrue(last.skippedDocuments > 0);
+    }
+
+    private static NaiveBayesClassifier getClassifier() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier(new IntOpenHashSet(new int[] {0, 1}));
+        nb.setFeatureAlpha(1, 0, 5);
+        nb.setFeatureAlpha(5, 1, 5);
+        return nb;
+    }
+
+    private static List<ProcessedInstance> getLabelledData() {
+        List<ProcessedInstance> labelled = new ArrayList<>();
+        labelled.add(new ProcessedInstance(0, new int[] {1, 2}, new Instance("", "", "l0")));
+        labelled.add(new ProcessedInstance(1, new int[] {4, 5}, new Instance("", "", "l1")));
+        return labelled;
+    }
+
+    private static List<ProcessedInstance> getUnlabelledData() {
+        Random random = new Random(0);
+        List<ProcessedInstance> unlabelled = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            int offset = random.nextBoolean() ? 0 : 3;  // Features 0-2 or 3-5
+            int[] features = new int[1 + random.nextInt(4)];
+            for (int j = 0; j < features.length; j++)
+                features[j] = offset + random.nextInt(3);
+            unlabelled.add(new ProcessedInstance(-1, features, new Instance("", "", Integer.toString(i))));
+        }
+        return unlabelled;
+    }
+}
@@ -0,0 +1,93 @@
+package uk.ac.susx.tag.classificationframework.trainers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
+import uk.ac.susx.tag.classificationframework.datastructures.Instance;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Testing that applying the changes to the labelled data gives the model that training from scratch would.
+ */
+public class IncrementalTrainerTest {
+
+    @Test
+    public void matchesNoEMTrainer() {
+        Random random = new Random(7);
+        List<ProcessedInstance> labelled = new ArrayList<>();
+        for (int d = 0; d < 200; d++)
+            labelled.add(new ProcessedInstance(random.nextInt(3), RandomDocuments.uniform(random, 1, 5, 60), new Instance("", "", "d" + d)));
+        NaiveBayesClassifier settings = new NaiveBayesClassifier(new IntOpenHashSet(new int[] {0, 1, 2}));
+        settings.setFeatureAlpha(3, 1, 4);
+
+        IncrementalTrainer trainer = new IncrementalTrainer();
+        NaiveBayesClassifier model = trainer.train(null, labelled, Collections.emptyList(), settings);
+        assertSameModel(new NoEMTrainer().train(null, labelled, Collections.emptyList(), settings), model);
+
+        for (int round = 0; round < 5; round++) {
+            for (int change = 0; change < 10; change++) {
+                ProcessedInstance document = labelled.get(random.nextInt(labelled.size()));
+                switch (random.nextInt(4)) {
+                    case 0: document.setLabeling(random.nextInt(3)); break;
+                    case 1: document.resetLabeling(); break;
+                    case 2: document.features = RandomDocuments.uniform(random, 1, 5, 60); break;
+                    default: labelled.remove(document);
+                }
+            }
+            labelled.add(new ProcessedInstance(random.nextInt(3), RandomDocuments.uniform(random, 1, 5, 60), new Instance("", "", "new" + round)));
+
+            NaiveBayesClassifier updated = trainer.train(null, labelled, Collections.emptyList(), model);
+            assertSame(model, updated);
+            assertSameModel(new NoEMTrainer().train(null, labelled, Collections.emptyList(), settings), model);
+        }
+    }
+
+    @Test
+    public void rejectsUnmatchableDocuments() {
+        NaiveBayesClassifier settings = new NaiveBayesClassifier(new IntOpenHashSet(new int[] {0, 1}));
+        IncrementalTrainer trainer = new IncrementalTrainer();
+        List<ProcessedInstance> labelled = new ArrayList<>();
+        labelled.add(new ProcessedInstance(0, new int[] {1, 2}, new Instance("", "", "a")));
+        NaiveBayesClassifier model = trainer.train(null, labelled, Collections.emptyList(), settings);
+
+        labelled.add(new ProcessedInstance(1, new int[] {3}, new Instance("", "", "a")));
+        assertRejected(trainer, labelled, model);
+        labelled.set(1, new ProcessedInstance(1, new int[] {3}, null));
+        assertRejected(trainer, labelled, model);
+
+        labelled.remove(1);                             // The model was left as it was
+        assertSame(model, trainer.train(null, labelled, Collections.emptyList(), model));
+        assertSameModel(new NoEMTrainer().train(null, labelled, Collections.emptyList(), settings), model);
+    }
+
+    private static void assertRejected(IncrementalTrainer trainer, List<ProcessedInstance> labelled, NaiveBayesClassifier model) {
+        try {
+            trainer.train(null, labelled, Collections.emptyList(), model);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void assertSameModel(NaiveBayesClassifier expected, NaiveBayesClassifier actual) {
+        assertEquals(expected.getVocab(), actual.getVocab());
+        Random random = new Random(8);
+        for (int d = 0; d < 20; d++) {
+            int[] document = RandomDocuments.uniform(random, 1, 5, 60);
+            Int2DoubleOpenHashMap predicted = actual.predict(document);
+            for (Int2DoubleOpenHashMap.Entry entry : expected.predict(document).int2DoubleEntrySet())
+                assertEquals(entry.getDoubleValue(), predicted.get(entry.getIntKey()), 1E-9);
+        }
+    }
+}
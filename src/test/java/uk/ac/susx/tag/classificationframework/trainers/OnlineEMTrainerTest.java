@@ -0,0 +1,126 @@
+package uk.ac.susx.tag.classificationframework.trainers;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifier;
+import uk.ac.susx.tag.classificationframework.classifiers.NaiveBayesClassifierBlended;
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+import uk.ac.susx.tag.testingtools.RandomDocuments;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testing stepwise EM over a stream of unlabelled documents.
+ */
+public class OnlineEMTrainerTest {
+
+    @Test
+    public void singleBatchIsWeightedEM() {
+        Random random = new Random(13);
+        List<ProcessedInstance> labelled = documents(random, 20);
+        List<ProcessedInstance> unlabelled = documents(random, 50);
+        for (ProcessedInstance document : unlabelled) document.resetLabeling();
+
+        NaiveBayesClassifier trained = new OnlineEMTrainer().setBatchSize(100).train(null, labelled, unlabelled, getClassifier());
+
+        NaiveBayesClassifier expected = getClassifier();
+        expected.train(labelled);
+        NaiveBayesClassifier firstModel = getClassifier();
+        firstModel.train(labelled);
+        expected.emTrain(unlabelled, Math.pow(2, -0.7) * 0.1, firstModel);   // First step size, times the unlabelled weight
+
+        for (ProcessedInstance document : documents(random, 20)) {
+            Int2DoubleOpenHashMap predicted = trained.predict(document.features);
+            for (Int2DoubleOpenHashMap.Entry entry : expected.predict(document.features).int2DoubleEntrySet())
+                assertEquals(entry.getDoubleValue(), predicted.get(entry.getIntKey()), 1E-9);
+        }
+    }
+
+    @Test
+    public void learnsFromStream() {
+        Random random = new Random(14);
+        List<ProcessedInstance> labelled = documents(random, 6);
+        List<ProcessedInstance> test = documents(random, 300);
+
+        OnlineEMTrainer trainer = new OnlineEMTrainer().setBatchSize(100);
+        NaiveBayesClassifier model = trainer.start(labelled, getClassifier());
+        double labelledOnly = accuracy(model, test);
+
+        assertSame(model, trainer.train(stream(random, 2000)));
+        assertSame(model, trainer.train(stream(random, 550)));
+        assertEquals(26, trainer.getBatches());
+        assertEquals(2550, trainer.getDocumentsSeen());
+        assertTrue(accuracy(model, test) >= labelledOnly);
+        assertTrue(accuracy(model, test) > 0.9);
+    }
+
+    @Test
+    public void blendsWithoutChangingLabelledCounts() {
+        Random random = new Random(15);
+        List<ProcessedInstance> labelled = documents(random, 20);
+        NaiveBayesClassifier labelledOnly = getClassifier();
+        labelledOnly.train(labelled);
+
+        OnlineEMTrainer trainer = new OnlineEMTrainer().setBatchSize(50);
+        NaiveBayesClassifierBlended model = trainer.start(labelled, getClassifier());
+        trainer.train(stream(random, 500));
+        model.scaleCounts(1E-60);
+        model.scaleCounts(1E-60);   // Multiplied into the unlabelled counts, rather than underflowing
+        assertEquals(1, model.getScale(), 0);
+        trainer.train(stream(random, 200));
+        assertEquals(labelledOnly.getJointCounts(), model.getBase().getJointCounts());
+
+        NaiveBayesClassifier materialised = model.toNaiveBayesClassifier();
+        for (ProcessedInstance document : documents(random, 20)) {
+            Int2DoubleOpenHashMap predicted = model.predict(document.features);
+            for (Int2DoubleOpenHashMap.Entry entry : materialised.predict(document.features).int2DoubleEntrySet())
+                assertEquals(entry.getDoubleValue(), predicted.get(entry.getIntKey()), 1E-9);
+        }
+    }
+
+    private static double accuracy(NaiveBayesClassifier model, List<ProcessedInstance> documents) {
+        int correct = 0;
+        for (ProcessedInstance document : documents)
+            if (model.bestLabel(document.features) == document.getLabel()) correct++;
+        return correct / (double) documents.size();
+    }
+
+    /**
+     * Unlabelled documents generated on demand, so that none are held in memory.
+     */
+    private static Iterator<ProcessedInstance> stream(Random random, int n) {
+        return new Iterator<ProcessedInstance>() {
+            private int generated = 0;
+
+            @Override
+            public boolean hasNext() { return generated < n; }
+
+            @Override
+            public ProcessedInstance next() {
+                generated++;
+                return new ProcessedInstance(-1, RandomDocuments.favouringLabel(random, random.nextInt(2), 3, 5, 20, 1 / 3.0), null);
+            }
+        };
+    }
+
+    /**
+     * Features 0-19 are shared by both labels, and each label also favours ten of its own.
+     */
+    private static List<ProcessedInstance> documents(Random random, int n) {
+        return RandomDocuments.favouringLabels(random, n, 2, 3, 5, 20, 1 / 3.0);
+    }
+
+    private static NaiveBayesClassifier getClassifier() {
+        NaiveBayesClassifier nb = new NaiveBayesClassifier(new IntOpenHashSet(new int[] {0, 1}));
+        nb.setFeatureAlpha(20, 0, 2);
+        nb.setFeatureAlpha(30, 1, 2);
+        return nb;
+    }
+}
@@ -0,0 +1,77 @@
+package uk.ac.susx.tag.testingtools;
+
+import uk.ac.susx.tag.classificationframework.datastructures.ProcessedInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Random documents of feature indices, for the tests of the classifiers and trainers.
+ */
+public class RandomDocuments {
+
+    /**
+     * @return A document of minLength + [0, lengthRange) features, drawn uniformly from [0, vocabSize).
+     */
+    public static int[] uniform(Random random, int minLength, int lengthRange, int vocabSize) {
+        int[] features = new int[minLength + random.nextInt(lengthRange)];
+        for (int i = 0; i < features.length; i++)
+            features[i] = random.nextInt(vocabSize);
+        return features;
+    }
+
+    /**
+     * As uniform(), but favouring low indices, so that features repeat within and across documents.
+     */
+    public static int[] favouringLowIndices(Random random, int minLength, int lengthRange, int vocabSize) {
+        int[] features = new int[minLength + random.nextInt(lengthRange)];
+        for (int i = 0; i < features.length; i++)
+            features[i] = random.nextInt(vocabSize / (1 + random.nextInt(4)));
+        return features;
+    }
+
+    /**
+     * @return A document of *label*, of minLength + [0, lengthRange) features. With probability *sharedProportion*
+     *         each feature is drawn from [0, sharedFeatures), which every label shares, and otherwise from the label's
+     *         own ten features, which follow the shared ones in label order.
+     */
+    public static int[] favouringLabel(Random random, int label, int minLength, int lengthRange, int sharedFeatures, double sharedProportion) {
+        int[] features = new int[minLength + random.nextInt(lengthRange)];
+        for (int i = 0; i < features.length; i++)
+            features[i] = random.nextDouble() < sharedProportion ? random.nextInt(sharedFeatures) : sharedFeatures + label * 10 + random.nextInt(10);
+        return features;
+    }
+
+    /**
+     * @return *count* documents of labels drawn uniformly from [0, numLabels), each as favouringLabel().
+     */
+    public static List<ProcessedInstance> favouringLabels(Random random, int count, int numLabels, int minLength, int lengthRange,
+                                                          int sharedFeatures, double sharedProportion) {
+        List<ProcessedInstance> documents = new ArrayList<>();
+        for (int d = 0; d < count; d++) {
+            int label = random.nextInt(numLabels);
+            documents.add(new ProcessedInstance(label, favouringLabel(random, label, minLength, lengthRange, sharedFeatures, sharedProportion), null));
+        }
+        return documents;
+    }
+
+    /**
+     * Documents of labels 0 and 1. Each has *length* features, three quarters of which are drawn from the
+     * half of the vocab [0, 2 * halfVocabSize) which belongs to its label, and the rest from the other half.
+     * @param labelled If false, the documents bear no label (though their features still follow one).
+     */
+    public static List<ProcessedInstance> twoLabelled(int count, int length, int halfVocabSize, Random random, boolean labelled) {
+        List<ProcessedInstance> documents = new ArrayList<>();
+        for (int d = 0; d < count; d++) {
+            int label = random.nextInt(2);
+            int[] features = new int[length];
+            for (int i = 0; i < length; i++) {
+                int feature = random.nextInt(halfVocabSize);
+                features[i] = feature + (random.nextInt(4) == 0 ? 1 - label : label) * halfVocabSize;
+            }
+            documents.add(new ProcessedInstance(labelled ? label : -1, features, null));
+        }
+        return documents;
+    }
+}
@@ -0,0 +1,21 @@
+package uk.ac.susx.tag.testingtools;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Assertions about the label scores given by classifiers.
+ */
+public class ScoreAssertions {
+
+    /**
+     * Assert that *actual* scores the same labels as *expected*, each to within 1E-9.
+     */
+    public static void assertSameScores(Int2DoubleMap expected, Int2DoubleMap actual) {
+        assertEquals(new IntOpenHashSet(expected.keySet()), new IntOpenHashSet(actual.keySet()));
+        for (int label : expected.keySet())
+            assertEquals(expected.get(label), actual.get(label), 1E-9);
+    }
+}